@@ -16,29 +16,68 @@ import java.io.IOException;
 public abstract class AbstractRackDispatcher implements RackDispatcher {
     
     protected final RackContext context;
+    private final AdmissionController admission;
+    private final RequestPriorities priorities;
+    private final boolean sharedErrorRuntime;
 
     public AbstractRackDispatcher(RackContext context) {
         if (context == null) {
             throw new IllegalArgumentException("null context");
         }
         this.context = context;
+        this.admission = AdmissionController.getInstance(context);
+        this.priorities = RequestPriorities.configure(context);
+        this.sharedErrorRuntime = DefaultRackApplicationFactory.isErrorRuntimeShared(context.getConfig());
     }
 
     public void process(RackEnvironment request, RackResponseEnvironment response)
         throws IOException {
 
-        RackApplication app = null;
+        final RequestPriorities priorities = this.priorities;
+        if ( priorities != null ) priorities.enter(request);
         try {
-            app = getApplication();
-            app.call(request).respond(response);
-        } 
-        catch (Exception e) {
-            handleException(e, request, response);
-        } 
+            final AdmissionController admission = this.admission;
+            if ( admission != null && ! admission.admit() ) {
+                // overloaded - shed load before touching any runtime :
+                admission.reject(response);
+                return;
+            }
+            
+            RackApplication app = null; boolean exposed = false;
+            try {
+                app = getApplication(request);
+                app.call(request).respond(response);
+            } 
+            catch (Exception e) {
+                // the error application might run inside the failed app's runtime :
+                if ( app != null && sharedErrorRuntime && ! response.isCommitted() ) {
+                    request.setAttribute(RackEnvironment.APPLICATION, app);
+                    exposed = true;
+                }
+                handleException(e, request, response);
+            } 
+            finally {
+                try {
+                    // a null value removes the attribute (the app is returned) :
+                    if ( exposed ) request.setAttribute(RackEnvironment.APPLICATION, null);
+                    if ( app != null ) afterProcess(request, app);
+                }
+                finally {
+                    if ( admission != null ) admission.release();
+                }
+            }
+        }
         finally {
-            if ( app != null ) afterProcess(app);
+            if ( priorities != null ) priorities.exit();
         }
     }
+    
+    /**
+     * @return the admission controller (null if not enabled)
+     */
+    public AdmissionController getAdmissionController() {
+        return admission;
+    }
 
     protected void handleException(
             final Exception e,
@@ -57,8 +96,32 @@ public abstract class AbstractRackDispatcher implements RackDispatcher {
 
     protected abstract RackApplication getApplication() throws RackException;
     
+    /**
+     * Retrieves the application to process the given request with.
+     * Defaults to {@link #getApplication()}.
+     * @param request
+     * @return the application
+     * @throws RackException 
+     */
+    protected RackApplication getApplication(RackEnvironment request) 
+        throws RackException {
+        return getApplication();
+    }
+    
     protected abstract void afterProcess(RackApplication app) throws IOException;
     
+    /**
+     * Called after the given request has been processed by the application.
+     * Defaults to {@link #afterProcess(RackApplication)}.
+     * @param request
+     * @param app
+     * @throws IOException 
+     */
+    protected void afterProcess(RackEnvironment request, RackApplication app) 
+        throws IOException {
+        afterProcess(app);
+    }
+    
     protected abstract void afterException(
             RackEnvironment request, 
             Exception e, 
@@ -0,0 +1,261 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletContext;
+
+/**
+ * Admission control (load shedding) in front of the runtime pool.
+ * <p>
+ * Limits the number of requests being processed concurrently, requests over
+ * the limit wait in a bounded queue and once the queue is full requests are
+ * rejected right away with a 503 (Service Unavailable) and a Retry-After
+ * header, before any runtime gets touched.
+ * <p>
+ * The time a request might spend waiting adapts (CoDel style) : as long as the
+ * queue has been empty within the last interval requests wait up to the
+ * (maximum) timeout, but once the queue stays non-empty for longer than the
+ * interval (a standing queue) the wait time drops to the target delay.
+ * <ul>
+ * <li><code>jruby.rack.admission.queue</code>: Maximum number of waiting
+ *  requests, enables admission control. Default is none.
+ * <li><code>jruby.rack.admission.concurrency</code>: Maximum number of
+ *  requests processed concurrently. Defaults to <code>jruby.max.runtimes</code>.
+ * <li><code>jruby.rack.admission.timeout</code>: Maximum time (in seconds) a
+ *  request waits in the queue. Default is 10.0 (seconds).
+ * <li><code>jruby.rack.admission.target</code>: Target queue delay (in millis)
+ *  requests wait while there's a standing queue. Default is 50 (ms).
+ * <li><code>jruby.rack.admission.interval</code>: Interval (in millis) after
+ *  which a non-empty queue is considered standing. Default is 500 (ms).
+ * <li><code>jruby.rack.admission.retry.after</code>: The Retry-After (seconds)
+ *  value sent with rejected requests. Default is 1.
+ * </ul>
+ */
+public class AdmissionController {
+
+    /**
+     * The (servlet) context attribute the controller is kept in, thus all
+     * dispatchers (e.g. a servlet and a filter) share the same limit.
+     */
+    public static final String ATTRIBUTE = "jruby.rack.admission.controller";
+
+    private final Permits permits;
+    private final int queueSize;
+    private final AtomicInteger waiting = new AtomicInteger(0);
+
+    private long timeout = 10 * 1000; // millis
+    private long targetDelay = 50; // millis
+    private long interval = 500; // millis
+    private int retryAfter = 1; // seconds
+
+    private volatile long lastEmpty = System.currentTimeMillis();
+
+    public AdmissionController(int concurrency, int queueSize) {
+        this(new Permits.SemaphorePermits(concurrency, true), queueSize);
+    }
+
+    /**
+     * @param permits the permits (limiting concurrency)
+     * @param queueSize
+     */
+    public AdmissionController(Permits permits, int queueSize) {
+        this.permits = permits;
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Configures (a new) admission control from the context parameters.
+     * @param context
+     * @return the controller or null if not enabled
+     */
+    public static AdmissionController configure(final RackContext context) {
+        final RackConfig config = context.getConfig();
+        final Number queue = config.getNumberProperty("jruby.rack.admission.queue");
+        if ( queue == null ) return null;
+
+        Number concurrency = config.getNumberProperty("jruby.rack.admission.concurrency");
+        if ( concurrency == null ) {
+            try {
+                concurrency = config.getMaximumRuntimes();
+            }
+            catch (UnsupportedOperationException e) { /* embedded config */ }
+        }
+        if ( concurrency == null || concurrency.intValue() <= 0 ) {
+            context.log(RackLogger.WARN, "admission control disabled, please set " +
+                "jruby.rack.admission.concurrency (or jruby.max.runtimes)");
+            return null;
+        }
+        // with request priorities the highest priority waiter is admitted first
+        final RequestPriorities priorities = RequestPriorities.configure(context);
+        final AdmissionController admission = new AdmissionController(
+            priorities == null ? new Permits.SemaphorePermits(concurrency.intValue(), true) :
+                priorities.newPermits(concurrency.intValue()), queue.intValue() );
+        Number value = config.getNumberProperty("jruby.rack.admission.timeout");
+        if ( value != null ) admission.setTimeout( (long) (value.floatValue() * 1000) );
+        value = config.getNumberProperty("jruby.rack.admission.target");
+        if ( value != null ) admission.setTargetDelay( value.longValue() );
+        value = config.getNumberProperty("jruby.rack.admission.interval");
+        if ( value != null ) admission.setInterval( value.longValue() );
+        value = config.getNumberProperty("jruby.rack.admission.retry.after");
+        if ( value != null ) admission.setRetryAfter( value.intValue() );
+
+        context.log(RackLogger.INFO, "admission control with " + concurrency +
+            " concurrent requests and a queue of " + queue);
+        return admission;
+    }
+
+    /**
+     * Returns the admission controller of a context, configured (from the
+     * context parameters) on first use and shared afterwards.
+     * @param context
+     * @return the controller or null if not enabled
+     * @see #configure(RackContext)
+     */
+    public static AdmissionController getInstance(final RackContext context) {
+        if ( ! ( context instanceof ServletContext ) ) return configure(context);
+        final ServletContext servletContext = (ServletContext) context;
+        synchronized (AdmissionController.class) {
+            Object admission = servletContext.getAttribute(ATTRIBUTE);
+            if ( admission == null ) {
+                admission = configure(context);
+                // remember it's disabled (no need to configure again) :
+                servletContext.setAttribute(ATTRIBUTE, admission == null ? Boolean.FALSE : admission);
+            }
+            return admission instanceof AdmissionController ? (AdmissionController) admission : null;
+        }
+    }
+
+    /**
+     * Admits a request, might wait (in the queue) for a permit.
+     * @return true if admitted (the caller is expected to {@link #release()})
+     * false if the request should be rejected
+     */
+    public boolean admit() {
+        if ( waiting.get() == 0 && permits.tryAcquire() ) {
+            lastEmpty = System.currentTimeMillis();
+            return true;
+        }
+        final int queued = waiting.incrementAndGet();
+        if ( queued > queueSize ) {
+            waiting.decrementAndGet();
+            return false; // queue full - fail fast
+        }
+        if ( queued == 1 ) lastEmpty = System.currentTimeMillis();
+        try {
+            return permits.tryAcquire(getQueueTimeout(), TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        finally {
+            if ( waiting.decrementAndGet() == 0 ) {
+                lastEmpty = System.currentTimeMillis();
+            }
+        }
+    }
+
+    /**
+     * Releases a permit gained by an {@link #admit()}.
+     */
+    public void release() {
+        permits.release();
+    }
+
+    /**
+     * @return the current (adaptive) queue timeout in millis
+     */
+    public long getQueueTimeout() {
+        final boolean standingQueue =
+            System.currentTimeMillis() - lastEmpty > interval;
+        return standingQueue ? Math.min(targetDelay, timeout) : timeout;
+    }
+
+    /**
+     * Responds with a 503 (Service Unavailable).
+     * @param response
+     * @throws IOException
+     */
+    public void reject(final RackResponseEnvironment response) throws IOException {
+        if ( response.isCommitted() ) return;
+        response.defaultRespond(new ServiceUnavailable(retryAfter));
+    }
+
+    public int getWaiting() {
+        return waiting.get();
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    public long getTargetDelay() {
+        return targetDelay;
+    }
+
+    public void setTargetDelay(long targetDelay) {
+        this.targetDelay = targetDelay;
+    }
+
+    public long getInterval() {
+        return interval;
+    }
+
+    public void setInterval(long interval) {
+        this.interval = interval;
+    }
+
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+
+    public void setRetryAfter(int retryAfter) {
+        this.retryAfter = retryAfter;
+    }
+
+    private static class ServiceUnavailable implements RackResponse {
+
+        private final Map<String, String> headers;
+
+        ServiceUnavailable(final int retryAfter) {
+            final Map<String, String> headers = new HashMap<String, String>(4);
+            headers.put("Content-Type", "text/plain");
+            headers.put("Retry-After", Integer.toString(retryAfter));
+            this.headers = Collections.unmodifiableMap(headers);
+        }
+
+        public int getStatus() { return 503; }
+
+        public Map getHeaders() { return headers; }
+
+        public String getBody() { return "Service Unavailable"; }
+
+        public void respond(RackResponseEnvironment response) {
+            try {
+                response.defaultRespond(this);
+            }
+            catch (IOException e) {
+                throw new RackException(e);
+            }
+        }
+
+    }
+
+}
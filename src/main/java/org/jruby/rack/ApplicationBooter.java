@@ -0,0 +1,98 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Boots applications (runtimes) of the pool in the background, all boots
+ * (initial pool fill, on demand growth, spares, replacements and generations)
+ * share the same bounded set of threads.
+ * <ul>
+ * <li><code>jruby.runtime.init.threads</code>: Maximum number of runtimes
+ *  booted concurrently. Default is 4. Threads are started on demand and
+ *  stop once idle.
+ * </ul>
+ *
+ * @see PoolingRackApplicationFactory
+ */
+public class ApplicationBooter {
+
+    public static final int THREADS_DEFAULT = 4; // quad-core baby
+
+    private int threads = THREADS_DEFAULT;
+    private ExecutorService executor;
+    private boolean shutdown;
+
+    /**
+     * @return <code>jruby.runtime.init.threads</code>
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(Integer threads) {
+        this.threads = threads == null ? THREADS_DEFAULT : Math.max(1, threads);
+    }
+
+    /**
+     * Runs a boot task using the (bounded) boot threads, at most
+     * <code>jruby.runtime.init.threads</code> tasks run concurrently.
+     * @param task
+     * @return false if shut down (the task did not run)
+     */
+    public boolean boot(final Runnable task) {
+        final ExecutorService executor = getExecutor();
+        if ( executor == null ) return false;
+        try {
+            executor.execute(task);
+            return true;
+        }
+        catch (RejectedExecutionException e) {
+            return false; // shutdown meanwhile
+        }
+    }
+
+    /**
+     * Shuts down the boot threads, boots already started complete while
+     * queued ones still run (these are expected to check for the pool being
+     * destroyed and tear down what they booted).
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        if ( executor != null ) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if ( executor == null && ! shutdown ) {
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+                private final AtomicInteger index = new AtomicInteger(0);
+
+                public Thread newThread(Runnable task) {
+                    final Thread thread = new Thread(task, "JRuby-Rack-App-Boot-" + index.getAndIncrement());
+                    thread.setDaemon(true); // never hold up (JVM) shutdown
+                    return thread;
+                }
+
+            });
+            executor.allowCoreThreadTimeOut(true); // idle unless booting
+            this.executor = executor;
+        }
+        return executor;
+    }
+
+}
@@ -0,0 +1,180 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tears down the applications (runtimes) of the pool in parallel once it gets
+ * destroyed, applications still serving requests are torn down once returned
+ * (until the destroy deadline).
+ * <ul>
+ * <li><code>jruby.runtime.destroy.threads</code>: Number of threads used to
+ *  tear down runtimes (in parallel). Defaults to
+ *  <code>jruby.runtime.init.threads</code>.
+ * <li><code>jruby.runtime.destroy.timeout</code>: Value (in seconds) for how
+ *  long destroying the pool might take, including waiting for runtimes still
+ *  serving requests to be returned. Default is 30.0 (seconds), runtimes not
+ *  torn down by then are left behind.
+ * </ul>
+ *
+ * @see PoolingRackApplicationFactory#destroy()
+ */
+public class ApplicationDestroyer {
+
+    private static final float TIMEOUT_DEFAULT = 30.0f;
+
+    private final PoolingRackApplicationFactory pool;
+
+    private Integer threads;
+    private float timeout = TIMEOUT_DEFAULT; // in seconds
+    // applications handed out (and not yet returned)
+    private final AtomicInteger checkedOutApplications = new AtomicInteger(0);
+    private volatile ExecutorService executor; // set once destroying
+    private long deadline;
+
+    public ApplicationDestroyer(PoolingRackApplicationFactory pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @return <code>jruby.runtime.destroy.threads</code>
+     */
+    public Integer getThreads() {
+        return threads;
+    }
+
+    public void setThreads(Integer threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * @return <code>jruby.runtime.destroy.timeout</code> (in seconds)
+     */
+    public Number getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(Number timeout) {
+        this.timeout = timeout == null ? TIMEOUT_DEFAULT : timeout.floatValue();
+    }
+
+    /**
+     * Called when an application is handed out from the pool.
+     */
+    public void checkOut() {
+        checkedOutApplications.incrementAndGet();
+    }
+
+    /**
+     * Called when an application handed out is no longer accounted as part
+     * of the pool (and thus will not be returned).
+     */
+    public void abandon() {
+        checkedOutApplications.decrementAndGet();
+    }
+
+    /**
+     * Called when an application is being returned.
+     * @param app
+     * @return true if the pool is being destroyed (the application got torn
+     * down or will be shortly)
+     */
+    public boolean checkIn(final RackApplication app) {
+        checkedOutApplications.decrementAndGet();
+        if ( executor == null ) return false;
+        tearDown(app);
+        synchronized (checkedOutApplications) {
+            checkedOutApplications.notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Starts destroying, the destroy deadline starts ticking and applications
+     * returned from now on are torn down (instead of being pooled).
+     * NOTE: threads are started on demand.
+     */
+    public synchronized void start() {
+        if ( executor != null ) return;
+        deadline = System.currentTimeMillis() + (long) (timeout * 1000);
+        final int threads = this.threads != null ? this.threads : pool.getInitThreads();
+        executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+
+            private final AtomicInteger index = new AtomicInteger(0);
+
+            public Thread newThread(Runnable task) {
+                final Thread thread = new Thread(task, "JRuby-Rack-App-Destroy-" + index.getAndIncrement());
+                thread.setDaemon(true); // never hold up (JVM) shutdown
+                return thread;
+            }
+
+        });
+    }
+
+    /**
+     * Tears down an application (using the destroy threads if still available).
+     * @param app
+     */
+    public void tearDown(final RackApplication app) {
+        final ExecutorService executor = this.executor;
+        if ( executor != null ) {
+            try {
+                executor.execute(new Runnable() {
+                    public void run() { tearDownSafely(app); }
+                });
+                return;
+            }
+            catch (RejectedExecutionException e) { /* past the deadline */ }
+        }
+        tearDownSafely(app);
+    }
+
+    private void tearDownSafely(final RackApplication app) {
+        try {
+            pool.tearDownApplication(app);
+        }
+        catch (RuntimeException e) {
+            pool.getContext().log(RackLogger.WARN, "failed to tear down application", e);
+        }
+    }
+
+    /**
+     * Waits (at most till the deadline) for applications in use to be returned
+     * and all tear downs to complete.
+     */
+    public void await() {
+        final ExecutorService executor = this.executor;
+        try {
+            // drain - wait for applications in use to be returned :
+            synchronized (checkedOutApplications) {
+                long remaining;
+                while ( checkedOutApplications.get() > 0 &&
+                        ( remaining = deadline - System.currentTimeMillis() ) > 0 ) {
+                    checkedOutApplications.wait(remaining);
+                }
+            }
+            executor.shutdown();
+            final long remaining = deadline - System.currentTimeMillis();
+            if ( ! executor.awaitTermination(Math.max(0, remaining), TimeUnit.MILLISECONDS) ||
+                 checkedOutApplications.get() > 0 ) {
+                pool.getContext().log(RackLogger.WARN, "pool not destroyed within " + timeout + " seconds (" +
+                    checkedOutApplications.get() + " applications still in use)");
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            executor.shutdown(); // returned applications torn down in place
+        }
+    }
+
+}
@@ -0,0 +1,381 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Keeps track of the generation each application (runtime) of the pool
+ * belongs to and swaps a new generation into the pool without a restart
+ * (e.g. to deploy new application code).
+ * <p>
+ * The new generation boots in the background from a fresh read of the
+ * rackup script (runtimes booted for the current generation meanwhile keep
+ * using the previous one) and takes over the pool once it's ready. Runtimes
+ * of the previous generation are torn down as soon as they're idle, in-flight
+ * requests complete on the old runtimes. If the new generation fails to boot
+ * the old one keeps serving requests.
+ * <p>
+ * The new generation counts against the pool maximum, if the pool is full
+ * idle runtimes of the current generation are torn down to make room (set
+ * the ready size below <code>jruby.max.runtimes</code> to keep serving from
+ * the old generation while the new one boots). Runtimes torn down to make
+ * room for a generation that fails to boot are replaced on demand.
+ * <ul>
+ * <li><code>jruby.runtime.generation.trigger</code>: A (relative to the web
+ *  application root) file path, touching the file boots a new generation.
+ *  The file is checked every <code>jruby.runtime.pool.maintain.interval</code>.
+ * <li><code>jruby.runtime.generation.ready</code>: The number of runtimes of
+ *  the new generation to boot before traffic shifts over to them. Defaults to
+ *  <code>jruby.min.runtimes</code> (or 1 if not set).
+ * </ul>
+ * A swap might also be started using JMX, the generations are exposed as an
+ * MBean (named <code>org.jruby.rack:type=ApplicationGenerations</code>).
+ *
+ * @see PoolingRackApplicationFactory
+ */
+public class ApplicationGenerations implements ApplicationGenerationsMBean {
+
+    private final PoolingRackApplicationFactory pool;
+
+    private volatile int generation;
+    // the generation each (created) application belongs to
+    private final Map<RackApplication, Integer> generations =
+        new ConcurrentHashMap<RackApplication, Integer>();
+    private final AtomicBoolean swapping = new AtomicBoolean(false);
+
+    private Integer readySize;
+    private File trigger; // touched to boot a new generation
+    private volatile long triggerModified;
+
+    private ObjectName objectName;
+
+    public ApplicationGenerations(PoolingRackApplicationFactory pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @return the current generation (incremented on each successful swap)
+     */
+    public int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return whether a new generation is being booted
+     */
+    public boolean isSwapping() {
+        return swapping.get();
+    }
+
+    /**
+     * @return <code>jruby.runtime.generation.ready</code>
+     */
+    public Integer getReadySize() {
+        return readySize;
+    }
+
+    public void setReadySize(Integer readySize) {
+        this.readySize = readySize;
+    }
+
+    /**
+     * @return <code>jruby.runtime.generation.trigger</code> (resolved file)
+     */
+    public File getTrigger() {
+        return trigger;
+    }
+
+    public void setTrigger(File trigger) {
+        this.trigger = trigger;
+        this.triggerModified = trigger == null ? 0 : trigger.lastModified();
+    }
+
+    /**
+     * @return true if the trigger file has been touched since last checked
+     */
+    public boolean isTriggered() {
+        final File trigger = this.trigger;
+        if ( trigger == null ) return false;
+        final long modified = trigger.lastModified();
+        if ( modified == 0 || modified == triggerModified ) return false;
+        triggerModified = modified;
+        return true;
+    }
+
+    /**
+     * Start tracking a (created) application as part of the current generation.
+     * @param app
+     */
+    public void track(final RackApplication app) {
+        if ( app != null ) generations.put(app, generation);
+    }
+
+    /**
+     * Start tracking an application of the given (booting) generation.
+     * @param app
+     * @param next
+     */
+    void track(final RackApplication app, final Generation next) {
+        if ( app != null ) generations.put(app, next.number);
+    }
+
+    /**
+     * Stop tracking an application (that is being torn down).
+     * @param app
+     */
+    public void forget(final RackApplication app) {
+        if ( app != null ) generations.remove(app);
+    }
+
+    /**
+     * @param app
+     * @return true if the application belongs to a previous generation
+     */
+    public boolean isRetired(final RackApplication app) {
+        final Integer appGeneration = app == null ? null : generations.get(app);
+        return appGeneration != null && appGeneration.intValue() < generation;
+    }
+
+    /**
+     * Boots a new generation of applications (with a fresh read of the rackup
+     * script) and once the ready size of applications is booted swaps them
+     * into the pool, idle applications of the previous generation are torn
+     * down while applications serving requests are torn down when returned.
+     * Blocks until the new generation takes over (or fails to boot, in which
+     * case the current generation is kept).
+     * @return true if the new generation took over
+     */
+    public boolean swapGeneration() {
+        if ( ! swapping.compareAndSet(false, true) ) {
+            log(RackLogger.INFO, "generation swap already in progress");
+            return false;
+        }
+        try {
+            final Generation next;
+            try {
+                next = new Generation(generation + 1, readRackup());
+            }
+            catch (RuntimeException e) {
+                log(RackLogger.ERROR, "failed to read rackup, keeping generation " + generation, e);
+                return false;
+            }
+            log(RackLogger.INFO, "booting application generation " + next.number);
+            final List<RackApplication> apps = boot(next);
+            if ( apps == null ) return false;
+            takeOver(next, apps);
+            log(RackLogger.INFO, "application generation " + next.number +
+                " took over, pool size now = " + pool.getApplicationPoolSize());
+            return true;
+        }
+        finally {
+            swapping.set(false);
+        }
+    }
+
+    /**
+     * @return the rackup script (and it's location) a new generation boots
+     * with or null if the (real) factory does not use a rackup script
+     */
+    private String[] readRackup() {
+        final RackApplicationFactory realFactory =
+            DefaultRackApplicationFactory.getRealFactory( pool.getDelegate() );
+        if ( realFactory instanceof DefaultRackApplicationFactory ) {
+            return ((DefaultRackApplicationFactory) realFactory).readRackup();
+        }
+        return null;
+    }
+
+    private List<RackApplication> boot(final Generation next) {
+        final Integer initialSize = pool.getInitialSize();
+        final int size = readySize != null ? readySize.intValue() :
+            ( initialSize != null && initialSize > 0 ? initialSize.intValue() : 1 );
+        final List<RackApplication> apps =
+            Collections.synchronizedList(new ArrayList<RackApplication>(size));
+        final AtomicInteger pending = new AtomicInteger(size);
+
+        final int workers = Math.max(1, Math.min(pool.getInitThreads(), size));
+        final CountDownLatch booted = new CountDownLatch(workers);
+        for ( int i = 0; i < workers; i++ ) {
+            final boolean launched = pool.bootInBackground(new Runnable() {
+
+                public void run() {
+                    try {
+                        while ( pending.getAndDecrement() > 0 ) {
+                            final RackApplication app = bootApplication(next);
+                            if ( app == null ) break; // failed (or destroyed)
+                            apps.add(app);
+                        }
+                    }
+                    finally {
+                        booted.countDown();
+                    }
+                }
+
+            });
+            if ( ! launched ) booted.countDown(); // destroyed
+        }
+        try {
+            booted.await();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pending.set(0);
+        }
+
+        synchronized (apps) {
+            if ( apps.size() < size || pool.isDestroyed() ) {
+                log(RackLogger.ERROR, "application generation " + next.number + " failed to boot (" +
+                    apps.size() + " of " + size + " runtimes ready), keeping generation " + generation);
+                for ( RackApplication app : apps ) pool.tearDownApplication(app);
+                return null;
+            }
+            return new ArrayList<RackApplication>(apps);
+        }
+    }
+
+    /**
+     * Boots an application of the next generation, within the pool maximum.
+     * @return the booted application or null
+     */
+    private RackApplication bootApplication(final Generation next) {
+        final long deadline = pool.getAcquireDeadline();
+        RackApplication app;
+        try {
+            while ( ( app = pool.createApplication(next) ) == null ) { // full
+                if ( pool.isDestroyed() ) return null;
+                // make room - idle applications of the current generation :
+                final RackApplication idle = pool.pollApplicationFromPool();
+                if ( idle != null ) {
+                    pool.tearDownApplication(idle); continue;
+                }
+                final long remaining = deadline - System.currentTimeMillis();
+                if ( remaining <= 0 ) {
+                    log(RackLogger.WARN, "no room for application generation " + next.number +
+                        " (all runtimes of generation " + generation + " are in use)");
+                    return null;
+                }
+                pool.awaitApplicationReturned(remaining);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch (RuntimeException e) {
+            log(RackLogger.WARN, "unable to create application of generation " + next.number, e);
+            return null;
+        }
+        return pool.initApplication(app) ? app : null;
+    }
+
+    private void takeOver(final Generation next, final List<RackApplication> apps) {
+        synchronized (pool) { // no applications created (by the pool) meanwhile
+            if ( next.rackup != null ) {
+                final RackApplicationFactory realFactory =
+                    DefaultRackApplicationFactory.getRealFactory( pool.getDelegate() );
+                ((DefaultRackApplicationFactory) realFactory).setRackup(next.rackup);
+            }
+            generation = next.number; // retires all applications of previous generations
+        }
+        final List<RackApplication> retired = new ArrayList<RackApplication>();
+        for ( final Map.Entry<RackApplication, Integer> entry : generations.entrySet() ) {
+            if ( entry.getValue().intValue() < next.number ) retired.add( entry.getKey() );
+        }
+        for ( final RackApplication app : apps ) {
+            if ( ! pool.putApplicationToPool(app) ) pool.tearDownApplication(app);
+        }
+        // idle ones are torn down now, the rest once returned :
+        for ( final RackApplication app : retired ) {
+            if ( pool.removeApplicationFromPool(app) ) pool.tearDownApplication(app);
+        }
+    }
+
+    /**
+     * Registers the generations with the platform MBean server.
+     */
+    public void register() {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final String name = "org.jruby.rack:type=ApplicationGenerations,context=" +
+            ObjectName.quote( BootProfiler.getContextName( pool.getContext() ) );
+        try {
+            try {
+                objectName = new ObjectName(name);
+                server.registerMBean(this, objectName);
+            }
+            catch (InstanceAlreadyExistsException e) { // same context name
+                objectName = new ObjectName(name + ",id=" + System.identityHashCode(this));
+                server.registerMBean(this, objectName);
+            }
+        }
+        catch (Exception e) {
+            objectName = null;
+            log(RackLogger.WARN, "failed to register application generations MBean", e);
+        }
+    }
+
+    /**
+     * Unregisters the generations (if registered).
+     */
+    public void unregister() {
+        if ( objectName == null ) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        }
+        catch (Exception e) {
+            log(RackLogger.DEBUG, "failed to unregister application generations MBean", e);
+        }
+        objectName = null;
+    }
+
+    private void log(final String level, final String message) {
+        pool.getContext().log(level, message);
+    }
+
+    private void log(final String level, final String message, final Exception e) {
+        pool.getContext().log(level, message, e);
+    }
+
+    /**
+     * A generation (being booted) and the rackup it's applications use.
+     */
+    static final class Generation {
+
+        final int number;
+        final String[] rackup; // null if not applicable
+
+        Generation(int number, String[] rackup) {
+            this.number = number;
+            this.rackup = rackup;
+        }
+
+        /**
+         * Creates a new (not initialized) application of this generation.
+         * @param delegate the pool's delegate factory
+         * @return the application
+         */
+        RackApplication newApplication(final RackApplicationFactory delegate) {
+            if ( rackup == null ) return delegate.newApplication();
+            final RackApplicationFactory realFactory =
+                DefaultRackApplicationFactory.getRealFactory(delegate);
+            return ((DefaultRackApplicationFactory) realFactory).newApplication(rackup);
+        }
+
+    }
+
+}
@@ -0,0 +1,30 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack;
+
+/**
+ * JMX view of the runtime pool generations.
+ *
+ * @see ApplicationGenerations
+ */
+public interface ApplicationGenerationsMBean {
+
+    /**
+     * @return the current generation (incremented on each successful swap)
+     */
+    int getGeneration();
+
+    /**
+     * @return whether a new generation is being booted
+     */
+    boolean isSwapping();
+
+    /**
+     * Boots a new generation of runtimes and swaps it into the pool.
+     * @return true if the new generation took over
+     */
+    boolean swapGeneration();
+
+}
@@ -0,0 +1,128 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks (lock-free) which applications (runtimes) are sitting idle in the
+ * pool. An application in the pool is available and whoever clears the bit
+ * first claims it, thus an application might be claimed (e.g. reclaimed by
+ * the thread that used it last) without locking nor scanning the pool (queue).
+ * The pool might still hold an entry of a claimed application (queued), such
+ * entries are skipped once polled or re-used when the application is returned.
+ *
+ * @see PoolingRackApplicationFactory
+ */
+public class ApplicationPoolStates {
+
+    private static final int AVAILABLE = 1, QUEUED = 2;
+
+    private final PoolingRackApplicationFactory pool;
+
+    private final ConcurrentMap<RackApplication, AtomicInteger> states =
+        new ConcurrentHashMap<RackApplication, AtomicInteger>();
+    private final AtomicInteger availableApplications = new AtomicInteger(0);
+
+    public ApplicationPoolStates(PoolingRackApplicationFactory pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @return the number of available (idle) applications
+     */
+    public int size() {
+        return availableApplications.get();
+    }
+
+    /**
+     * Makes an application available unless the pool is full, the application
+     * gets queued (into the pool) unless it's entry is still in the pool.
+     * @param app
+     * @return false if the pool is full or the application is already available
+     */
+    public boolean add(final RackApplication app) {
+        final Integer maximumSize = pool.getMaximumSize();
+        int size;
+        do {
+            size = availableApplications.get();
+            if ( maximumSize != null && size >= maximumSize ) return false;
+        }
+        while ( ! availableApplications.compareAndSet(size, size + 1) );
+
+        AtomicInteger state = states.get(app);
+        if ( state == null ) {
+            final AtomicInteger newState = new AtomicInteger(0);
+            state = states.putIfAbsent(app, newState);
+            if ( state == null ) state = newState;
+        }
+        pool.setIdle(app, true);
+        int current;
+        do {
+            current = state.get();
+            if ( ( current & AVAILABLE ) != 0 ) { // already pooled
+                availableApplications.decrementAndGet();
+                return false;
+            }
+        }
+        while ( ! state.compareAndSet(current, AVAILABLE | QUEUED) );
+        if ( ( current & QUEUED ) == 0 ) pool.queueApplication(app);
+        return true;
+    }
+
+    /**
+     * Claims an available application (leaving it's entry in the pool).
+     * @param app
+     * @return true if claimed (was available)
+     */
+    public boolean claim(final RackApplication app) {
+        final AtomicInteger state = app == null ? null : states.get(app);
+        if ( state == null ) return false;
+        int current;
+        do {
+            current = state.get();
+            if ( ( current & AVAILABLE ) == 0 ) return false; // claimed
+        }
+        while ( ! state.compareAndSet(current, current & ~AVAILABLE) );
+        availableApplications.decrementAndGet();
+        pool.setIdle(app, false);
+        return true;
+    }
+
+    /**
+     * Claims an application whose entry has just been removed from the pool.
+     * @param app
+     * @return true if claimed, false if the entry was left behind by an
+     * application claimed (or torn down) meanwhile
+     */
+    public boolean claimPolled(final RackApplication app) {
+        final AtomicInteger state = app == null ? null : states.get(app);
+        if ( state == null ) return false;
+        if ( ( state.getAndSet(0) & AVAILABLE ) == 0 ) return false;
+        availableApplications.decrementAndGet();
+        pool.setIdle(app, false);
+        return true;
+    }
+
+    /**
+     * @param app
+     * @return true if the application is available (sitting idle in the pool)
+     */
+    public boolean isAvailable(final RackApplication app) {
+        final AtomicInteger state = app == null ? null : states.get(app);
+        return state != null && ( state.get() & AVAILABLE ) != 0;
+    }
+
+    /**
+     * Stop tracking an application (an entry left in the pool gets skipped).
+     * @param app
+     */
+    public void forget(final RackApplication app) {
+        if ( app != null ) states.remove(app);
+    }
+
+}
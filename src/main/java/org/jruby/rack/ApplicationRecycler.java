@@ -0,0 +1,226 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Recycles applications (runtimes) of the pool after a number of requests,
+ * an age or heap growth.
+ * <p>
+ * A runtime due for recycling keeps serving requests until a replacement is
+ * booted (in the background), the replacement then takes it's place in the
+ * pool and the old runtime gets torn down. The replacement counts against
+ * <code>jruby.max.runtimes</code>, if the pool is at it's maximum the old
+ * runtime is torn down (when returned) before it's replacement boots :
+ * <ul>
+ * <li><code>jruby.runtime.recycle.requests</code>: Number of requests after
+ *  which a runtime gets recycled. Default is none.
+ * <li><code>jruby.runtime.recycle.age</code>: Value (in seconds) after which a
+ *  runtime gets recycled. Default is none.
+ * <li><code>jruby.runtime.recycle.memory.bytes</code>: Recycle a runtime once
+ *  the (JVM) heap used after garbage collection grows by the given amount of
+ *  bytes (since the last time a runtime got recycled). Default is none.
+ * </ul>
+ *
+ * @see PoolingRackApplicationFactory
+ */
+public class ApplicationRecycler {
+
+    private final PoolingRackApplicationFactory pool;
+
+    private Integer maximumRequests; // requests served before recycled
+    private Float maximumAge; // in seconds
+    private Long maximumMemoryGrowth; // in bytes
+    // per application statistics (only tracked if runtimes are recycled)
+    private final Map<RackApplication, ApplicationStats> stats =
+        new ConcurrentHashMap<RackApplication, ApplicationStats>();
+    private volatile long memoryBaseline, memoryCheckedAt;
+
+    public ApplicationRecycler(PoolingRackApplicationFactory pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @return <code>jruby.runtime.recycle.requests</code>
+     */
+    public Integer getMaximumRequests() {
+        return maximumRequests;
+    }
+
+    public void setMaximumRequests(Integer maximumRequests) {
+        this.maximumRequests = maximumRequests;
+    }
+
+    /**
+     * @return <code>jruby.runtime.recycle.age</code> (in seconds)
+     */
+    public Number getMaximumAge() {
+        return maximumAge;
+    }
+
+    public void setMaximumAge(Number maximumAge) {
+        this.maximumAge = maximumAge == null ? null : maximumAge.floatValue();
+    }
+
+    /**
+     * @return <code>jruby.runtime.recycle.memory.bytes</code>
+     */
+    public Long getMaximumMemoryGrowth() {
+        return maximumMemoryGrowth;
+    }
+
+    public void setMaximumMemoryGrowth(Long maximumMemoryGrowth) {
+        this.maximumMemoryGrowth = maximumMemoryGrowth;
+    }
+
+    /**
+     * @return whether runtimes get recycled
+     */
+    public boolean isRecycling() {
+        return maximumRequests != null ||
+            maximumAge != null || maximumMemoryGrowth != null;
+    }
+
+    /**
+     * Takes the heap growth baseline (once the pool is filled).
+     */
+    public void start() {
+        if ( maximumMemoryGrowth != null ) memoryBaseline = getHeapUsedAfterGC();
+    }
+
+    /**
+     * Start tracking (request statistics of) a created application.
+     * @param app
+     */
+    public void track(final RackApplication app) {
+        if ( app != null && isRecycling() ) stats.put(app, new ApplicationStats());
+    }
+
+    /**
+     * Stop tracking an application (that is being torn down).
+     * @param app
+     */
+    public void forget(final RackApplication app) {
+        if ( app != null ) stats.remove(app);
+    }
+
+    /**
+     * Called when an application is being returned, checks whether the
+     * application is due for recycling and if so boots a replacement (if the
+     * pool is full the application is torn down before it's replacement boots).
+     * @param app the returned application
+     * @return true if the application has been torn down (instead of being
+     * returned to the pool) as it's replacement is already in place
+     */
+    public boolean recycleOnReturn(final RackApplication app) {
+        if ( ! isRecycling() ) return false;
+        ApplicationStats appStats = stats.get(app);
+        if ( appStats == null ) { // not created by the pool
+            stats.put(app, appStats = new ApplicationStats());
+        }
+        final int requests = appStats.requests.incrementAndGet();
+        if ( appStats.replaced ) {
+            log(RackLogger.INFO, "recycled application after " + requests + " requests");
+            pool.tearDownApplication(app); return true;
+        }
+        if ( ! appStats.retiring && isRecycleDue(appStats) ) {
+            appStats.retiring = true;
+            if ( pool.isPoolFull() ) { // no room for a replacement - make room first
+                log(RackLogger.INFO, "recycled application after " + requests + " requests");
+                pool.tearDownApplication(app);
+                pool.bootInBackground(new Runnable() {
+                    public void run() { pool.bootSpareApplication(); }
+                });
+                return true;
+            }
+            pool.bootInBackground(new Runnable() {
+                public void run() { replace(app); }
+            });
+        }
+        return false;
+    }
+
+    private boolean isRecycleDue(final ApplicationStats appStats) {
+        if ( maximumRequests != null && appStats.requests.get() >= maximumRequests ) {
+            return true;
+        }
+        final long now = System.currentTimeMillis();
+        if ( maximumAge != null && now - appStats.created >= (long) (maximumAge * 1000) ) {
+            return true;
+        }
+        if ( maximumMemoryGrowth != null && now - memoryCheckedAt >= 1000 ) {
+            memoryCheckedAt = now; // do not check the heap on every request
+            final long used = getHeapUsedAfterGC();
+            if ( used - memoryBaseline >= maximumMemoryGrowth ) {
+                memoryBaseline = used; return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Boots a replacement for the given application and swaps it into the
+     * pool, the replaced application is torn down (if it's in use it will be
+     * torn down when returned). The replacement is not booted if the pool
+     * maximum has been reached meanwhile.
+     * @param app the application to be replaced
+     */
+    void replace(final RackApplication app) {
+        final ApplicationStats appStats = stats.get(app);
+        if ( appStats == null ) return; // torn down meanwhile
+        final RackApplication replacement = pool.bootApplication(true);
+        if ( replacement == null ) { // failed (or full) - retry on next return
+            appStats.retiring = false;
+            return;
+        }
+        if ( ! pool.removeApplicationFromPool(app) ) {
+            // in use or torn down meanwhile (e.g. due being idle)
+            appStats.replaced = true;
+            // retry in case it got returned in between :
+            if ( pool.removeApplicationFromPool(app) ) pool.tearDownApplication(app);
+        }
+        else {
+            log(RackLogger.INFO, "recycled application after " + appStats.requests + " requests");
+            pool.tearDownApplication(app);
+        }
+        if ( ! pool.putApplicationToPool(replacement) ) {
+            pool.tearDownApplication(replacement);
+        }
+    }
+
+    private void log(final String level, final String message) {
+        pool.getContext().log(level, message);
+    }
+
+    private static long getHeapUsedAfterGC() {
+        long used = 0;
+        for ( MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() ) {
+            if ( pool.getType() == MemoryType.HEAP ) {
+                final MemoryUsage usage = pool.getCollectionUsage();
+                if ( usage != null ) used += usage.getUsed();
+            }
+        }
+        return used;
+    }
+
+    /**
+     * Application statistics (used for recycling).
+     */
+    private static class ApplicationStats {
+
+        final long created = System.currentTimeMillis();
+        final AtomicInteger requests = new AtomicInteger(0);
+        volatile boolean retiring, replaced;
+
+    }
+
+}
@@ -0,0 +1,243 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletContext;
+
+/**
+ * Warms up a (freshly initialized) application before it goes into service by
+ * replaying synthetic requests through {@link RackApplication#call(RackEnvironment)}.
+ * <p>
+ * Requests are configured using the following parameters :
+ * <ul>
+ * <li><code>jruby.runtime.warmup.paths</code>: A comma separated list of
+ *  request URIs (relative to the application e.g. <code>/,/users?page=1</code>)
+ *  to be replayed as GET requests.
+ * <li><code>jruby.runtime.warmup.file</code>: A (recorded) file with a request
+ *  per line in the <code>[METHOD] URI</code> format, lines starting with '#'
+ *  are ignored. Relative paths are resolved against the web application root.
+ * <li><code>jruby.runtime.warmup.requests</code>: The maximum number of calls
+ *  (the requests are replayed in rounds). Default is 100.
+ * <li><code>jruby.runtime.warmup.latency</code>: Target latency (in millis),
+ *  warm-up stops as soon as a whole round averages below the given value.
+ *  Default is none (all requests get replayed).
+ * </ul>
+ * Responses are discarded, each replayed request has the
+ * <code>jruby.rack.warmup</code> attribute set.
+ */
+public class ApplicationWarmUp {
+
+    public static final String ATTRIBUTE = "jruby.rack.warmup";
+
+    private final RackContext context;
+    private final List<String[]> requests; // [ method, uri ]
+    private int maximumCalls = 100;
+    private Float targetLatency; // millis
+
+    public ApplicationWarmUp(RackContext context, List<String[]> requests) {
+        this.context = context;
+        this.requests = requests;
+    }
+
+    /**
+     * Configures a warm-up from the context parameters.
+     * @param context
+     * @return the warm-up or null if none is configured
+     */
+    public static ApplicationWarmUp configure(final RackContext context) {
+        final RackConfig config = context.getConfig();
+        final List<String[]> requests = new ArrayList<String[]>();
+
+        final String paths = config.getProperty("jruby.runtime.warmup.paths");
+        if ( paths != null ) {
+            for ( String path : paths.split(",") ) {
+                path = path.trim();
+                if ( path.length() > 0 ) requests.add( new String[] { "GET", path } );
+            }
+        }
+        final String file = config.getProperty("jruby.runtime.warmup.file");
+        if ( file != null && file.trim().length() > 0 ) {
+            try {
+                requests.addAll( readRequests( resolveFile(context, file.trim()) ) );
+            }
+            catch (IOException e) {
+                context.log(RackLogger.WARN, "could not read warm-up requests from: " + file, e);
+            }
+        }
+        if ( requests.isEmpty() ) return null;
+
+        final ApplicationWarmUp warmUp = new ApplicationWarmUp(context, requests);
+        Number calls = config.getNumberProperty("jruby.runtime.warmup.requests");
+        if ( calls != null ) warmUp.setMaximumCalls( calls.intValue() );
+        Number latency = config.getNumberProperty("jruby.runtime.warmup.latency");
+        if ( latency != null ) warmUp.setTargetLatency( latency.floatValue() );
+        return warmUp;
+    }
+
+    public List<String[]> getRequests() {
+        return Collections.unmodifiableList(requests);
+    }
+
+    public int getMaximumCalls() {
+        return maximumCalls;
+    }
+
+    public void setMaximumCalls(int maximumCalls) {
+        this.maximumCalls = maximumCalls;
+    }
+
+    public Float getTargetLatency() {
+        return targetLatency;
+    }
+
+    public void setTargetLatency(Float targetLatency) {
+        this.targetLatency = targetLatency;
+    }
+
+    /**
+     * Replay the warm-up requests through the given application.
+     * Failures are logged but never propagated, a failed warm-up simply
+     * means the application goes into service (more or less) cold.
+     * @param app an initialized application
+     * @return the number of calls performed
+     */
+    public int warmUp(final RackApplication app) {
+        final long start = System.currentTimeMillis();
+        final int size = requests.size();
+        int calls = 0; long lastRound = -1;
+        try {
+            while ( calls < maximumCalls ) {
+                final long roundStart = System.nanoTime(); int round = 0;
+                for ( int i = 0; i < size && calls < maximumCalls; i++ ) {
+                    final String[] request = requests.get(i);
+                    final RackResponse response = app.call(
+                        new Request(context, request[0], request[1])
+                    );
+                    response.getBody(); // consumes (and closes) the body
+                    calls++; round++;
+                }
+                lastRound = ( System.nanoTime() - roundStart ) / round / 1000;
+                if ( targetLatency != null && lastRound <= targetLatency * 1000 ) {
+                    break;
+                }
+            }
+        }
+        catch (RuntimeException e) {
+            context.log(RackLogger.WARN, "warm-up failed after " + calls + " requests", e);
+            return calls;
+        }
+        context.log(RackLogger.INFO, "warmed up application with " + calls + " requests in " +
+            ( System.currentTimeMillis() - start ) + " ms (last round averaged " +
+            ( lastRound / 1000f ) + " ms per request)");
+        return calls;
+    }
+
+    static File resolveFile(final RackContext context, final String path) {
+        File file = new File(path);
+        if ( ! file.isAbsolute() && context instanceof ServletContext ) {
+            final String realPath = ((ServletContext) context).getRealPath(path);
+            if ( realPath != null ) file = new File(realPath);
+        }
+        return file;
+    }
+
+    static List<String[]> readRequests(final File file) throws IOException {
+        final List<String[]> requests = new ArrayList<String[]>();
+        final BufferedReader reader = new BufferedReader(
+            new InputStreamReader(new FileInputStream(file), "UTF-8")
+        );
+        try {
+            String line;
+            while ( ( line = reader.readLine() ) != null ) {
+                line = line.trim();
+                if ( line.length() == 0 || line.charAt(0) == '#' ) continue;
+                final String[] parts = line.split("\\s+", 2);
+                if ( parts.length == 1 ) {
+                    requests.add( new String[] { "GET", parts[0] } );
+                }
+                else {
+                    requests.add( new String[] { parts[0].toUpperCase(), parts[1] } );
+                }
+            }
+        }
+        finally {
+            reader.close();
+        }
+        return requests;
+    }
+
+    /**
+     * A synthetic (body-less) request environment.
+     */
+    public static class Request implements RackEnvironment {
+
+        private final RackContext context;
+        private final String method, pathInfo, queryString, requestURI;
+        private final Map<String, Object> attributes = new HashMap<String, Object>();
+
+        public Request(RackContext context, String method, String uri) {
+            this.context = context;
+            this.method = method;
+            this.requestURI = uri;
+            final int query = uri.indexOf('?');
+            this.pathInfo = query == -1 ? uri : uri.substring(0, query);
+            this.queryString = query == -1 ? null : uri.substring(query + 1);
+            attributes.put(ATTRIBUTE, Boolean.TRUE);
+        }
+
+        public RackContext getContext() { return context; }
+
+        public InputStream getInput() throws IOException {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        public String getScriptName() { return ""; }
+        public String getPathInfo() { return pathInfo; }
+        public String getRequestURI() { return requestURI; }
+
+        public Enumeration getAttributeNames() {
+            return Collections.enumeration(attributes.keySet());
+        }
+        public Object getAttribute(String key) { return attributes.get(key); }
+        public void setAttribute(String key, Object value) {
+            if ( value == null ) attributes.remove(key);
+            else attributes.put(key, value);
+        }
+
+        public Enumeration getHeaderNames() {
+            return Collections.enumeration(Collections.singleton("Host"));
+        }
+        public String getHeader(String name) {
+            return "Host".equalsIgnoreCase(name) ? "localhost" : null;
+        }
+
+        public String getScheme() { return "http"; }
+        public String getContentType() { return null; }
+        public int getContentLength() { return -1; }
+        public String getMethod() { return method; }
+        public String getQueryString() { return queryString; }
+        public String getServerName() { return "localhost"; }
+        public String getRemoteHost() { return "localhost"; }
+        public String getRemoteAddr() { return "127.0.0.1"; }
+        public String getRemoteUser() { return null; }
+        public int getServerPort() { return 80; }
+
+    }
+
+}
@@ -0,0 +1,253 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jruby.Ruby;
+import org.jruby.RubyThread;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.backtrace.BacktraceElement;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * Keeps track of applications (runtimes) checked out from the pool and
+ * quarantines the ones that have not been returned within a hard deadline
+ * e.g. due a Ruby infinite loop or a hung socket read.
+ * <p>
+ * A wedged application gets it's (checking out) thread's Ruby backtrace
+ * logged, an <code>Interrupt</code> is raised into the thread and the thread
+ * is interrupted (to break out of blocking I/O). The application is no longer
+ * accounted as part of the pool and it's replacement gets booted, if the
+ * thread ever returns the application it is torn down.
+ * <ul>
+ * <li><code>jruby.runtime.checkout.deadline</code>: Value (in seconds) after
+ *  which an application checked out from the pool is considered wedged.
+ *  Default is none (no watchdog).
+ * </ul>
+ *
+ * @see PoolingRackApplicationFactory
+ */
+public class ApplicationWatchdog {
+
+    private final RackContext context;
+    private final long deadline; // millis
+
+    private final ConcurrentMap<RackApplication, Checkout> checkouts =
+        new ConcurrentHashMap<RackApplication, Checkout>();
+    private final ConcurrentMap<RackApplication, Checkout> quarantined =
+        new ConcurrentHashMap<RackApplication, Checkout>();
+
+    public ApplicationWatchdog(RackContext context, long deadline) {
+        this.context = context;
+        this.deadline = deadline;
+    }
+
+    /**
+     * Configures a watchdog from the context parameters.
+     * @param context
+     * @return the watchdog or null if no deadline is configured
+     */
+    public static ApplicationWatchdog configure(final RackContext context) {
+        final RackConfig config = context.getConfig();
+        final Number deadline = config.getNumberProperty("jruby.runtime.checkout.deadline");
+        if ( deadline == null || deadline.floatValue() <= 0 ) return null;
+        return new ApplicationWatchdog(context, (long) (deadline.floatValue() * 1000));
+    }
+
+    /**
+     * @return the deadline (in millis)
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * @return how often (in millis) checked out applications should be checked
+     */
+    public long getCheckInterval() {
+        return Math.max(100, deadline / 4);
+    }
+
+    /**
+     * Start tracking an application being handed out to the current thread.
+     * @param app
+     */
+    public void checkOut(final RackApplication app) {
+        if ( app != null ) {
+            checkouts.put(app, new Checkout(Thread.currentThread()));
+        }
+    }
+
+    /**
+     * Stop tracking an application being returned.
+     * @param app
+     * @return true if the application has been quarantined meanwhile (it is
+     * no longer part of the pool and should be torn down)
+     */
+    public boolean checkIn(final RackApplication app) {
+        if ( checkouts.remove(app) != null ) return false;
+        final Checkout checkout = quarantined.remove(app);
+        if ( checkout != null ) {
+            synchronized (checkout) { // the thread is not interrupted afterwards
+                checkout.returned = true;
+                Thread.interrupted(); // clear the flag we might have set
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of checked out applications being tracked
+     */
+    public int getCheckedOutCount() {
+        return checkouts.size();
+    }
+
+    /**
+     * @return applications quarantined (and not yet returned)
+     */
+    public Collection<RackApplication> getQuarantined() {
+        return Collections.unmodifiableCollection(quarantined.keySet());
+    }
+
+    /**
+     * Quarantines all applications checked out for longer than the deadline.
+     * @return the quarantined applications (to be replaced)
+     */
+    public List<RackApplication> quarantineWedged() {
+        final long now = System.currentTimeMillis();
+        List<RackApplication> wedged = null;
+        for ( Map.Entry<RackApplication, Checkout> entry : checkouts.entrySet() ) {
+            final Checkout checkout = entry.getValue();
+            if ( now - checkout.time < deadline ) continue;
+            if ( quarantine(entry.getKey(), checkout, now) ) {
+                if ( wedged == null ) wedged = new ArrayList<RackApplication>(2);
+                wedged.add(entry.getKey());
+            }
+        }
+        if ( wedged == null ) return Collections.emptyList();
+        return wedged;
+    }
+
+    private boolean quarantine(final RackApplication app,
+        final Checkout checkout, final long now) {
+        quarantined.put(app, checkout);
+        if ( ! checkouts.remove(app, checkout) ) { // returned meanwhile
+            quarantined.remove(app);
+            return false;
+        }
+        final Thread thread = checkout.thread;
+        final String message = "application checked out for " + ( now - checkout.time ) +
+            "ms (over the jruby.runtime.checkout.deadline) by thread '" + thread.getName() + "'";
+        context.log(RackLogger.WARN, message + ", quarantining it :\n\t" +
+            getBacktrace(app, thread));
+        synchronized (checkout) { // might have been returned while logging
+            if ( ! checkout.returned ) interrupt(app, thread, message);
+        }
+        return true;
+    }
+
+    /**
+     * Tears down quarantined applications that have not been returned.
+     * @param factory the factory used to tear down applications
+     */
+    public void destroy(final RackApplicationFactory factory) {
+        for ( RackApplication app : quarantined.keySet() ) {
+            if ( quarantined.remove(app) == null ) continue;
+            try {
+                factory.finishedWithApplication(app);
+            }
+            catch (RuntimeException e) {
+                context.log(RackLogger.WARN, "failed to tear down quarantined application", e);
+            }
+        }
+        checkouts.clear();
+    }
+
+    /**
+     * @param app
+     * @param thread
+     * @return the (Ruby) backtrace of the thread running the application
+     */
+    static String getBacktrace(final RackApplication app, final Thread thread) {
+        final StringBuilder backtrace = new StringBuilder();
+        try {
+            final RubyThread rubyThread = getRubyThread(app, thread);
+            final ThreadContext context = rubyThread == null ? null : rubyThread.getContext();
+            if ( context != null ) {
+                // NOTE: reading another thread's (interpreter) frames is racy
+                // but good enough for diagnostics, the top frame comes last :
+                final BacktraceElement[] trace = context.createBacktrace2(0, false);
+                for ( int i = trace.length - 1; i >= 0; i-- ) {
+                    final BacktraceElement element = trace[i];
+                    if ( element == null || element.filename == null ||
+                         element.filename.length() == 0 ) continue;
+                    if ( backtrace.length() > 0 ) backtrace.append("\n\t");
+                    backtrace.append(element.filename).append(':').append(element.line + 1);
+                    if ( element.method != null ) {
+                        backtrace.append(":in `").append(element.method).append('\'');
+                    }
+                }
+            }
+        }
+        catch (RuntimeException e) { /* fallback to the Java trace */ }
+        if ( backtrace.length() == 0 ) { // not a Ruby thread (or no frames)
+            for ( StackTraceElement element : thread.getStackTrace() ) {
+                if ( backtrace.length() > 0 ) backtrace.append("\n\t");
+                backtrace.append(element);
+            }
+        }
+        return backtrace.toString();
+    }
+
+    /**
+     * Raises an <code>Interrupt</code> into the (Ruby) thread and interrupts
+     * the (Java) thread.
+     * @param app
+     * @param thread
+     * @param message
+     */
+    static void interrupt(final RackApplication app, final Thread thread, final String message) {
+        try {
+            final RubyThread rubyThread = getRubyThread(app, thread);
+            if ( rubyThread != null ) {
+                final Ruby runtime = rubyThread.getRuntime();
+                rubyThread.raise(new IRubyObject[] {
+                    runtime.getClass("Interrupt"), runtime.newString(message)
+                }, Block.NULL_BLOCK);
+            }
+        }
+        catch (RuntimeException e) { /* thread.interrupt() should do */ }
+        thread.interrupt();
+    }
+
+    private static RubyThread getRubyThread(final RackApplication app, final Thread thread) {
+        final Ruby runtime = app.getRuntime();
+        if ( runtime == null ) return null;
+        return runtime.getThreadService().getRubyThreadMap().get(thread);
+    }
+
+    private static class Checkout {
+
+        final Thread thread;
+        final long time = System.currentTimeMillis();
+        boolean returned; // guarded by this (once quarantined)
+
+        Checkout(Thread thread) {
+            this.thread = thread;
+        }
+
+    }
+
+}
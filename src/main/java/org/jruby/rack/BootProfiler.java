@@ -0,0 +1,324 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.servlet.ServletContext;
+
+import org.jruby.Ruby;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * Profiles runtime (application) boots, timings of the boot phases as well as
+ * the slowest requires are logged for each runtime booted and aggregated (for
+ * all runtimes booted by a factory) to be inspected using JMX.
+ * <p>
+ * Boot phases (nested phases are timed separately as well) :
+ * <ul>
+ * <li><code>runtime</code>: creating the Ruby runtime
+ * <li><code>initialize</code>: initializing the runtime (loading the handler)
+ * <li><code>boot</code>: loading the boot script (<code>jruby/rack/boot/*.rb</code>)
+ * <li><code>booter</code>: the booter's <code>boot!</code> (nested in <code>boot</code>)
+ * <li><code>bundler</code>: requiring <code>bundler/setup</code>
+ * <li><code>environment</code>: loading the Rails <code>config/environment</code>
+ * <li><code>rackup</code>: evaluating the rackup (<code>Rack::Builder</code>)
+ * </ul>
+ * <ul>
+ * <li><code>jruby.runtime.boot.profile</code>: Whether to profile runtime boots.
+ *  Default is false.
+ * <li><code>jruby.runtime.boot.profile.requires</code>: Number of the slowest
+ *  requires being reported. Default is 20.
+ * </ul>
+ *
+ * @see DefaultRackApplicationFactory
+ */
+public class BootProfiler implements BootProfilerMBean {
+
+    public static final String PROFILE = "jruby.runtime.boot.profile";
+
+    /** (Ruby) global the boot being profiled is accessible with */
+    static final String GLOBAL = "$jruby_rack_boot_profile";
+
+    private static final int LOGGED_REQUIRES = 5;
+
+    private final RackContext context;
+    private int requiresLimit = 20;
+
+    private final Timing boots = new Timing("boot");
+    // aggregated timings (guarded by this)
+    private final Map<String, Timing> phases = new LinkedHashMap<String, Timing>();
+    private final Map<String, Timing> requires = new HashMap<String, Timing>();
+
+    private ObjectName objectName;
+
+    public BootProfiler(RackContext context) {
+        this.context = context;
+    }
+
+    /**
+     * Configures a profiler from the context parameters.
+     * @param context
+     * @return the profiler or null if boot profiling is not enabled
+     */
+    public static BootProfiler configure(final RackContext context) {
+        final RackConfig config = context.getConfig();
+        final Boolean profile = config.getBooleanProperty(PROFILE);
+        if ( profile == null || ! profile.booleanValue() ) return null;
+        final BootProfiler profiler = new BootProfiler(context);
+        final Number requires = config.getNumberProperty(PROFILE + ".requires");
+        if ( requires != null ) profiler.setRequiresLimit( requires.intValue() );
+        return profiler;
+    }
+
+    public int getRequiresLimit() {
+        return requiresLimit;
+    }
+
+    public void setRequiresLimit(int requiresLimit) {
+        this.requiresLimit = requiresLimit;
+    }
+
+    /**
+     * Starts profiling a (runtime) boot.
+     * @return the boot
+     */
+    public Boot newBoot() {
+        return new Boot();
+    }
+
+    /**
+     * @param runtime
+     * @return the boot being profiled for the given runtime (or null)
+     */
+    public static Boot getBoot(final Ruby runtime) {
+        final IRubyObject boot = runtime.getGlobalVariables().get(GLOBAL);
+        if ( boot == null || boot.isNil() ) return null;
+        final Object profile = boot.toJava(Object.class);
+        return profile instanceof Boot ? (Boot) profile : null;
+    }
+
+    /**
+     * Registers the profiler with the platform MBean server.
+     */
+    public void register() {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        String name = "org.jruby.rack:type=BootProfiler,context=" + ObjectName.quote(getContextName(context));
+        try {
+            try {
+                objectName = new ObjectName(name);
+                server.registerMBean(this, objectName);
+            }
+            catch (InstanceAlreadyExistsException e) { // same context name
+                objectName = new ObjectName(name + ",id=" + System.identityHashCode(this));
+                server.registerMBean(this, objectName);
+            }
+        }
+        catch (Exception e) {
+            objectName = null;
+            context.log(RackLogger.WARN, "failed to register boot profiler MBean", e);
+        }
+    }
+
+    /**
+     * Unregisters the profiler (if registered).
+     */
+    public void unregister() {
+        if ( objectName == null ) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        }
+        catch (Exception e) {
+            context.log(RackLogger.DEBUG, "failed to unregister boot profiler MBean", e);
+        }
+        objectName = null;
+    }
+
+    /**
+     * @param context
+     * @return the (servlet) context name used to name MBeans
+     */
+    static String getContextName(final RackContext context) {
+        String name = null;
+        if ( context instanceof ServletContext ) {
+            name = ((ServletContext) context).getServletContextName();
+        }
+        return name == null ? "default" : name;
+    }
+
+    public synchronized int getBoots() {
+        return (int) boots.count;
+    }
+
+    public synchronized long getAverageBootTime() {
+        return boots.count == 0 ? 0 : millis(boots.total / boots.count);
+    }
+
+    public synchronized String[] getPhases() {
+        final String[] result = new String[phases.size()];
+        int i = 0;
+        for ( Timing timing : phases.values() ) result[i++] = timing.toString();
+        return result;
+    }
+
+    public synchronized String[] getSlowestRequires() {
+        final List<Timing> slowest = rank(requires.values(), requiresLimit);
+        final String[] result = new String[slowest.size()];
+        for ( int i = 0; i < result.length; i++ ) result[i] = slowest.get(i).toString();
+        return result;
+    }
+
+    public synchronized void reset() {
+        boots.count = boots.total = boots.max = 0;
+        phases.clear();
+        requires.clear();
+    }
+
+    private synchronized void aggregate(final Boot boot, final long took) {
+        boots.add(took);
+        for ( Map.Entry<String, Long> phase : boot.phases.entrySet() ) {
+            timing(phases, phase.getKey()).add(phase.getValue());
+        }
+        for ( Map.Entry<String, Long> require : boot.requires.entrySet() ) {
+            timing(requires, require.getKey()).add(require.getValue());
+        }
+    }
+
+    private static Timing timing(final Map<String, Timing> timings, final String name) {
+        Timing timing = timings.get(name);
+        if ( timing == null ) timings.put(name, timing = new Timing(name));
+        return timing;
+    }
+
+    private static List<Timing> rank(final Iterable<Timing> timings, final int limit) {
+        final List<Timing> ranked = new ArrayList<Timing>();
+        for ( Timing timing : timings ) ranked.add(timing);
+        Collections.sort(ranked, new Comparator<Timing>() {
+            public int compare(Timing t1, Timing t2) {
+                return t1.total < t2.total ? 1 : ( t1.total == t2.total ? 0 : -1 );
+            }
+        });
+        return limit >= 0 && ranked.size() > limit ? ranked.subList(0, limit) : ranked;
+    }
+
+    private static long millis(final long nanos) {
+        return nanos / 1000000;
+    }
+
+    /**
+     * A single (runtime) boot being profiled.
+     */
+    public class Boot {
+
+        private final long started = System.nanoTime();
+        private final Map<String, Long> phases = new LinkedHashMap<String, Long>();
+        private final Map<String, Long> requires = new HashMap<String, Long>();
+        private boolean finished;
+
+        /**
+         * @return the current time (in nanos) used to time phases and requires
+         */
+        public long now() {
+            return System.nanoTime();
+        }
+
+        /**
+         * Records a (finished) boot phase.
+         * @param name
+         * @param start the time (in nanos) the phase started
+         */
+        public synchronized void phase(final String name, final long start) {
+            final Long took = phases.get(name);
+            phases.put(name, ( took == null ? 0 : took ) + ( now() - start ));
+        }
+
+        /**
+         * Records a (loaded) require.
+         * @param feature
+         * @param start the time (in nanos) the require started
+         */
+        public synchronized void required(final String feature, final long start) {
+            final Long took = requires.get(feature);
+            requires.put(feature, ( took == null ? 0 : took ) + ( now() - start ));
+        }
+
+        /**
+         * Finishes the boot, the timings get logged and aggregated.
+         * @param runtime the booted runtime (require profiling is stopped)
+         */
+        public void finish(final Ruby runtime) {
+            final long took;
+            synchronized (this) {
+                if ( finished ) return;
+                finished = true;
+                took = now() - started;
+            }
+            if ( runtime != null ) {
+                runtime.getGlobalVariables().set(GLOBAL, runtime.getNil());
+            }
+            aggregate(this, took);
+            context.log(RackLogger.INFO, toString(took));
+        }
+
+        private synchronized String toString(final long took) {
+            final StringBuilder str = new StringBuilder();
+            str.append("runtime booted in ").append(millis(took)).append("ms (");
+            boolean first = true;
+            for ( Map.Entry<String, Long> phase : phases.entrySet() ) {
+                if ( ! first ) str.append(", ");
+                str.append(phase.getKey()).append(' ').append(millis(phase.getValue())).append("ms");
+                first = false;
+            }
+            str.append(')');
+            final List<Timing> timings = new ArrayList<Timing>(requires.size());
+            for ( Map.Entry<String, Long> require : requires.entrySet() ) {
+                final Timing timing = new Timing(require.getKey());
+                timing.add(require.getValue());
+                timings.add(timing);
+            }
+            first = true;
+            for ( Timing timing : rank(timings, LOGGED_REQUIRES) ) {
+                str.append( first ? " slowest requires: " : ", " );
+                str.append(timing.name).append(' ').append(millis(timing.total)).append("ms");
+                first = false;
+            }
+            return str.toString();
+        }
+
+    }
+
+    private static class Timing {
+
+        final String name;
+        long count, total, max; // nanos
+
+        Timing(String name) {
+            this.name = name;
+        }
+
+        void add(final long nanos) {
+            count++; total += nanos;
+            if ( nanos > max ) max = nanos;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + millis(total) + "ms total, " + count + " x " +
+                millis(total / Math.max(1, count)) + "ms avg (" + millis(max) + "ms max)";
+        }
+
+    }
+
+}
@@ -0,0 +1,39 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack;
+
+/**
+ * JMX view of the runtime boot profiler.
+ *
+ * @see BootProfiler
+ */
+public interface BootProfilerMBean {
+
+    /**
+     * @return the number of (profiled) runtime boots
+     */
+    int getBoots();
+
+    /**
+     * @return the average (total) boot time in milliseconds
+     */
+    long getAverageBootTime();
+
+    /**
+     * @return per boot phase timings (count, average and maximum)
+     */
+    String[] getPhases();
+
+    /**
+     * @return the slowest requires (aggregated across all runtimes)
+     */
+    String[] getSlowestRequires();
+
+    /**
+     * Clears all collected timings.
+     */
+    void reset();
+
+}
@@ -0,0 +1,208 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.ServletContext;
+
+import org.jruby.rack.servlet.ServletRackConfig;
+
+/**
+ * A factory that partitions requests among several (runtime pool) factories
+ * to keep routes isolated from each other e.g. a slow report endpoint holding
+ * all runtimes won't make latency sensitive API calls time out.
+ * <p>
+ * The decorated (default) factory handles all requests that do not match any
+ * of the configured bulkheads. Each bulkhead boots the same application using
+ * it's own factory (e.g. a pool with it's own min/max and acquire timeout) :
+ * <ul>
+ * <li><code>jruby.runtime.bulkheads</code>: Comma separated bulkhead names.
+ * <li><code>jruby.runtime.bulkhead.[name].paths</code>: Comma separated path
+ *  prefixes (relative to the application) routed to the given bulkhead.
+ * <li><code>jruby.runtime.bulkhead.[name].header</code>: A request header
+ *  (optionally with a value e.g. <code>X-Pool: reports</code>) routing
+ *  requests to the given bulkhead.
+ * <li><code>jruby.runtime.bulkhead.[name].remote</code>: Comma separated
+ *  remote address prefixes routed to the given bulkhead.
+ * <li><code>jruby.runtime.bulkhead.[name].min.runtimes</code>,
+ *  <code>jruby.runtime.bulkhead.[name].max.runtimes</code> and
+ *  <code>jruby.runtime.bulkhead.[name].acquire.timeout</code>: The bulkhead's
+ *  pool parameters, any other parameter might be overridden for a bulkhead
+ *  using the <code>jruby.runtime.bulkhead.[name].</code> prefix. Parameters
+ *  not overridden are the same as for the default factory.
+ * </ul>
+ * Requests are routed by the {@link DefaultRackDispatcher}, bulkheads are
+ * matched in the order they've been configured (first match wins).
+ *
+ * @see RackServletContextListener
+ */
+public class BulkheadRackApplicationFactory extends RackApplicationFactoryDecorator {
+
+    public static final String BULKHEADS = "jruby.runtime.bulkheads";
+
+    private final List<Bulkhead> bulkheads = new ArrayList<Bulkhead>();
+
+    public BulkheadRackApplicationFactory(RackApplicationFactory delegate) {
+        super(delegate);
+    }
+
+    /**
+     * @param config
+     * @return the configured bulkhead names or null if none
+     */
+    public static String[] getBulkheadNames(final RackConfig config) {
+        final List<String> names = RequestMatcher.split( config.getProperty(BULKHEADS) );
+        return names.isEmpty() ? null : names.toArray(new String[names.size()]);
+    }
+
+    /**
+     * Adds a bulkhead, the routing rules are read from the given context.
+     * @param name the bulkhead name
+     * @param factory the bulkhead's factory
+     * @param context the bulkhead's context (the factory is initialized with)
+     */
+    public void addBulkhead(final String name,
+        final RackApplicationFactory factory, final RackContext context) {
+        final RequestMatcher matcher = 
+            RequestMatcher.configure(context.getConfig(), prefix(name));
+        bulkheads.add( new Bulkhead(name, factory, context, matcher) );
+    }
+
+    /**
+     * @return the bulkhead names (in routing order)
+     */
+    public List<String> getBulkheads() {
+        final List<String> names = new ArrayList<String>(bulkheads.size());
+        for ( Bulkhead bulkhead : bulkheads ) names.add(bulkhead.name);
+        return names;
+    }
+
+    /**
+     * @param name
+     * @return the factory for the given bulkhead (null if no such bulkhead)
+     */
+    public RackApplicationFactory getBulkheadFactory(final String name) {
+        for ( Bulkhead bulkhead : bulkheads ) {
+            if ( bulkhead.name.equals(name) ) return bulkhead.factory;
+        }
+        return null;
+    }
+
+    /**
+     * Resolves the factory to be used for the given request.
+     * @param request
+     * @return the matching bulkhead's factory or the default (delegate) one
+     */
+    public RackApplicationFactory getApplicationFactory(final RackEnvironment request) {
+        for ( Bulkhead bulkhead : bulkheads ) {
+            if ( bulkhead.matcher.matches(request) ) return bulkhead.factory;
+        }
+        return getDelegate();
+    }
+
+    @Override
+    protected void doInit() throws Exception {
+        super.doInit(); // delegate.init(rackContext);
+        for ( Bulkhead bulkhead : bulkheads ) {
+            log(RackLogger.INFO, "initializing bulkhead '" + bulkhead.name + "' for " + bulkhead.matcher);
+            bulkhead.factory.init(bulkhead.context);
+        }
+    }
+
+    @Override
+    protected RackApplication getApplicationImpl() {
+        return getDelegate().getApplication();
+    }
+
+    public RackApplication newApplication() throws RackException {
+        return getDelegate().newApplication();
+    }
+
+    public void finishedWithApplication(final RackApplication app) {
+        getDelegate().finishedWithApplication(app);
+    }
+
+    @Override
+    public void destroy() {
+        for ( Bulkhead bulkhead : bulkheads ) {
+            try {
+                bulkhead.factory.destroy();
+            }
+            catch (RuntimeException e) {
+                log(RackLogger.WARN, "failed to destroy bulkhead '" + bulkhead.name + "'", e);
+            }
+        }
+        super.destroy();
+    }
+
+    private static String prefix(final String name) {
+        return "jruby.runtime.bulkhead." + name + ".";
+    }
+
+    private static class Bulkhead {
+
+        final String name;
+        final RackApplicationFactory factory;
+        final RackContext context;
+        final RequestMatcher matcher;
+
+        Bulkhead(String name, RackApplicationFactory factory, 
+            RackContext context, RequestMatcher matcher) {
+            this.name = name;
+            this.factory = factory;
+            this.context = context;
+            this.matcher = matcher;
+        }
+
+    }
+
+    /**
+     * A bulkhead's configuration, parameters prefixed with the bulkhead's
+     * name override the (default) context parameters.
+     */
+    public static class Config extends ServletRackConfig {
+
+        private final String prefix;
+
+        public Config(ServletContext context, String name) {
+            super(context);
+            this.prefix = prefix(name);
+        }
+
+        @Override
+        public String getProperty(String key) {
+            final String value = getOverride(key);
+            return value != null ? value : super.getProperty(key);
+        }
+
+        @Override
+        public String getProperty(String key, String defaultValue) {
+            final String value = getOverride(key);
+            return value != null ? value : super.getProperty(key, defaultValue);
+        }
+
+        private String getOverride(final String key) {
+            if ( key.startsWith(prefix) ) return null;
+            String value = null;
+            if ( "jruby.min.runtimes".equals(key) ) {
+                value = super.getProperty(prefix + "min.runtimes");
+            }
+            else if ( "jruby.max.runtimes".equals(key) ) {
+                value = super.getProperty(prefix + "max.runtimes");
+            }
+            else if ( "jruby.runtime.acquire.timeout".equals(key) ) {
+                value = super.getProperty(prefix + "acquire.timeout");
+            }
+            else if ( BULKHEADS.equals(key) ) {
+                return ""; // bulkheads are not nested
+            }
+            return value != null ? value : super.getProperty(prefix + key);
+        }
+
+    }
+
+}
@@ -0,0 +1,178 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jruby.Ruby;
+import org.jruby.ast.Node;
+import org.jruby.ast.executable.Script;
+import org.jruby.compiler.ASTInspector;
+import org.jruby.compiler.JITCompiler;
+import org.jruby.compiler.impl.StandardASMCompiler;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ClassCache;
+
+import org.jruby.rack.util.IOHelpers;
+
+/**
+ * Compiles (boot) scripts run by every runtime a factory boots, such as the
+ * rackup (wrapped into a <code>Rack::Builder</code>) and the boot scripts
+ * (<code>jruby/rack/boot/*.rb</code>), only once. Runtimes booted later run
+ * an instance of the compiled script class instead of parsing (and
+ * interpreting) the same script again.
+ * <p>
+ * Scripts that can not be compiled are executed (interpreted) as usual, the
+ * same happens if the runtimes are not compiling (e.g. <code>-X-C</code>).
+ * <ul>
+ * <li><code>jruby.runtime.boot.compile</code>: Whether boot scripts are
+ *  compiled once and re-used across runtimes. Default is false.
+ * </ul>
+ *
+ * @see DefaultRackApplicationFactory
+ */
+public class CompiledScriptCache {
+
+    public static final String COMPILE = "jruby.runtime.boot.compile";
+
+    private static final Object NOT_COMPILED = new Object();
+
+    private final RackContext context;
+    // script (source) -> compiled class (or NOT_COMPILED)
+    private final Map<String, Object> scripts = new ConcurrentHashMap<String, Object>();
+    private final Map<String, String> resources = new ConcurrentHashMap<String, String>();
+    private volatile boolean disabled;
+
+    public CompiledScriptCache(RackContext context) {
+        this.context = context;
+    }
+
+    /**
+     * Configures a cache from the context parameters.
+     * @param context
+     * @return the cache or null if not enabled
+     */
+    public static CompiledScriptCache configure(final RackContext context) {
+        final Boolean compile = context.getConfig().getBooleanProperty(COMPILE);
+        if ( ! Boolean.TRUE.equals(compile) ) return null;
+        return new CompiledScriptCache(context);
+    }
+
+    /**
+     * @return the number of (compiled) scripts
+     */
+    public int size() {
+        int size = 0;
+        for ( Object compiled : scripts.values() ) {
+            if ( compiled != NOT_COMPILED ) size++;
+        }
+        return size;
+    }
+
+    /**
+     * Forgets all compiled scripts (e.g. after the rackup got refreshed).
+     */
+    public void clear() {
+        scripts.clear();
+        resources.clear();
+    }
+
+    /**
+     * Executes the given script (compiled on first use) in the runtime.
+     * @param runtime
+     * @param script
+     * @param filename
+     * @return the result
+     * @see Ruby#executeScript(String, String)
+     */
+    public IRubyObject executeScript(final Ruby runtime, final String script, final String filename) {
+        final Script compiled = newScript(runtime, script, filename);
+        if ( compiled == null ) return runtime.executeScript(script, filename);
+        return runtime.runScript(compiled);
+    }
+
+    /**
+     * Loads a script from the class-path (compiled on first use) same as a
+     * <code>load 'path'</code> would, if the script is not found it is loaded
+     * as usual (from the <code>$LOAD_PATH</code>).
+     * @param runtime
+     * @param path e.g. "jruby/rack/boot/rack.rb"
+     */
+    public void loadScript(final Ruby runtime, final String path) {
+        String script = resources.get(path);
+        if ( script == null ) {
+            final InputStream stream = CompiledScriptCache.class.getResourceAsStream('/' + path);
+            if ( stream != null ) {
+                try {
+                    resources.put(path, script = IOHelpers.inputStreamToString(stream));
+                }
+                catch (IOException e) {
+                    context.log(RackLogger.DEBUG, "failed reading " + path, e);
+                }
+            }
+        }
+        final Script compiled = script == null ? null : newScript(runtime, script, path);
+        if ( compiled == null ) runtime.evalScriptlet("load '" + path + "'");
+        else runtime.loadScript(compiled);
+    }
+
+    private Script newScript(final Ruby runtime, final String script, final String filename) {
+        if ( disabled || ! runtime.getInstanceConfig().getCompileMode().shouldJIT() ) return null;
+        final String key = ( filename == null ? "" : filename ) + '\n' + script;
+        Object compiled = scripts.get(key);
+        if ( compiled == null ) {
+            compiled = compile(runtime, key, script, filename);
+            scripts.put(key, compiled);
+        }
+        if ( compiled == NOT_COMPILED ) return null;
+        try {
+            final Script instance = (Script) ((Class) compiled).newInstance();
+            instance.setFilename(filename);
+            return instance;
+        }
+        catch (Exception e) {
+            context.log(RackLogger.DEBUG, "failed instantiating compiled script " + filename, e);
+            scripts.put(key, NOT_COMPILED);
+            return null;
+        }
+    }
+
+    private Object compile(final Ruby runtime, final String key,
+        final String script, final String filename) {
+        try {
+            final Node node = runtime.parseFile(
+                new ByteArrayInputStream(script.getBytes("UTF-8")), filename, null
+            );
+            final ASTInspector inspector = new ASTInspector();
+            inspector.inspect(node);
+            final String className = "rubyjit/jruby_rack_" + JITCompiler.getHashForString(key);
+            final StandardASMCompiler compiler = new StandardASMCompiler(className,
+                filename == null ? "-" : filename);
+            runtime.getInstanceConfig().newCompiler().compileRoot(node, compiler, inspector);
+            // defined once (shared by all runtimes) :
+            final ClassLoader loader = runtime.getInstanceConfig().getLoader();
+            return new ClassCache.OneShotClassLoader(loader).defineClass(
+                className.replace('/', '.'), compiler.getClassByteArray()
+            );
+        }
+        catch (LinkageError e) { // JRuby (compiler) internals changed
+            disabled = true;
+            context.log(RackLogger.WARN, "compiling boot scripts not supported on this JRuby version", e);
+        }
+        catch (UnsupportedEncodingException e) { // UTF-8 should be fine
+            context.log(RackLogger.DEBUG, "could not compile " + filename, e);
+        }
+        catch (RuntimeException e) { // e.g. a SyntaxError or NotCompilableException
+            context.log(RackLogger.DEBUG, "could not compile " + filename + " (will be interpreted)", e);
+        }
+        return NOT_COMPILED;
+    }
+
+}
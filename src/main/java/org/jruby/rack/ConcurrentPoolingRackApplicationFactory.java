@@ -0,0 +1,221 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.jruby.rack.util.ConcurrentStack;
+
+/**
+ * A pooling application factory that does not synchronize on the pool.
+ * <p>
+ * Behaves the same way as {@link PoolingRackApplicationFactory} does (the
+ * <code>jruby.min.runtimes</code>, <code>jruby.max.runtimes</code> and
+ * <code>jruby.runtime.acquire.timeout</code> parameters apply) but applications
+ * are kept in a lock-free queue, returning an application back to the pool (as
+ * well as removing a given application) is a constant time operation and 
+ * permits are gained from a non-fair semaphore (which is a simple atomic 
+ * counter unless threads are waiting for a permit).
+ * <p>
+ * A lock-free stack is used instead of the queue when the pool order is set
+ * to lifo (<code>jruby.runtime.pool.order</code>).
+ * <p>
+ * Used when the <code>jruby.runtime.pool.concurrent</code> parameter is set.
+ *
+ * @see PoolingRackApplicationFactory
+ */
+public class ConcurrentPoolingRackApplicationFactory extends PoolingRackApplicationFactory {
+
+    private volatile Queue<RackApplication> pool = new ConcurrentLinkedQueue<RackApplication>();
+    // only used while waiting for the (initial) applications to initialize
+    private final Object poolSignal = new Object();
+
+    public ConcurrentPoolingRackApplicationFactory(RackApplicationFactory delegate) {
+        super(delegate);
+    }
+
+    /**
+     * Changes the pool order, only allowed while the pool is empty.
+     * @param lifo
+     */
+    @Override
+    public void setLifo(final boolean lifo) {
+        if ( lifo == isLifo() ) return;
+        if ( ! pool.isEmpty() ) {
+            throw new IllegalStateException("can not change order of a non-empty pool");
+        }
+        super.setLifo(lifo);
+        pool = lifo ? new ConcurrentStack<RackApplication>() :
+                      new ConcurrentLinkedQueue<RackApplication>();
+    }
+
+    /**
+     * @return the (unmodifiable) pool snapshot
+     */
+    @Override
+    public Collection<RackApplication> getApplicationPool() {
+        return Collections.unmodifiableCollection( getPooledApplications(pool) );
+    }
+
+    /**
+     * @see PoolingRackApplicationFactory#getApplicationImpl()
+     */
+    @Override
+    protected RackApplication getApplicationImpl()
+        throws RackInitializationException, AcquireTimeoutException {
+
+        final long deadline = getAcquireDeadline();
+        final boolean permit = acquireApplicationPermit(deadline);
+        RackApplication app = reclaimApplication();
+        if ( app != null ) return app; // fast path - thread's last app
+        app = pollApplication();
+        if ( app == null && permit ) {
+            final Integer initialSize = getInitialSize();
+            if ( initialSize != null && initialSize > initedApplications.get() ) {
+                // initialization threads are still running (and we have not
+                // been configured to wait till the pool is filled on #init())
+                app = waitForApplication();
+            }
+        }
+
+        if ( app != null ) return app;
+        return createApplicationOnDemand(permit, deadline);
+    }
+
+    /**
+     * @see RackApplicationFactory#finishedWithApplication(RackApplication)
+     */
+    @Override
+    public void finishedWithApplication(final RackApplication app) {
+        if (app == null) {
+            log(RackLogger.WARN, "ignoring null application");
+            return;
+        }
+        if ( checkInApplication(app) ) return; // quarantined (and replaced)
+        if ( recycleOnReturn(app) ) { // torn down (replacement in the pool)
+            releaseApplicationPermit(); return;
+        }
+        rememberApplication(app);
+        // return app to pool and signal it's usable to acquire :
+        if ( addApplicationToPool(app) ) {
+            releaseApplicationPermit();
+            signalApplicationAvailable();
+        }
+    }
+
+    @Override
+    protected Collection<RackApplication> drainApplicationPool() {
+        final List<RackApplication> apps = new ArrayList<RackApplication>();
+        RackApplication app;
+        while ( ( app = pollApplication() ) != null ) apps.add(app);
+        return apps;
+    }
+
+    @Override
+    protected Permits createApplicationPermits(final int maximumSize) {
+        if ( getPriorities() != null ) { // waiters get ordered by priority
+            return super.createApplicationPermits(maximumSize);
+        }
+        return new Permits.SemaphorePermits(maximumSize, false);
+    }
+
+    /** Called when a thread initialized an application. */
+    @Override
+    protected boolean putApplicationToPool(final RackApplication app) {
+        // a null app is "put" on initialization failures to notify waiters
+        if ( app != null ) {
+            if ( ! addApplicationToPool(app) ) return false;
+            log(RackLogger.INFO, "added application to pool, size now = " + getApplicationPoolSize());
+        }
+        initedApplications.incrementAndGet();
+        synchronized (poolSignal) {
+            poolSignal.notifyAll();
+        }
+        signalApplicationAvailable();
+        return true;
+    }
+
+    /** Wait till the pool has enough (initialized) applications. */
+    @Override
+    protected void waitTillPoolReady() {
+        final int waitFor = getInitialPoolSizeWait();
+        synchronized (poolSignal) {
+            // counted once (queued) in the pool, failed initializations as well :
+            while ( initedApplications.get() < waitFor ) {
+                if ( getInitError() != null ) return;
+                try {
+                    poolSignal.wait(5 * 1000);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    protected RackApplication pollApplicationFromPool() {
+        return pollApplication();
+    }
+
+    @Override
+    protected RackApplication removeIdleApplication(final long idleSince) {
+        final Queue<RackApplication> pool = this.pool;
+        while (true) {
+            // the least recently returned application (the stack's bottom) :
+            final RackApplication app = pool instanceof ConcurrentStack ?
+                ((ConcurrentStack<RackApplication>) pool).peekLast() : pool.peek();
+            if ( app == null ) return null;
+            if ( isApplicationPooled(app) ) {
+                if ( getIdleSince(app) > idleSince ) return null;
+                // might have been acquired meanwhile :
+                return removeApplicationFromPool(app) ? app : null;
+            }
+            // drop the entry of a claimed application :
+            if ( pool.remove(app) && claimPolledApplication(app) ) {
+                // returned meanwhile (thus not idle) - put it back :
+                return addApplicationToPool(app) ? null : app;
+            }
+        }
+    }
+
+    @Override
+    protected void queueApplication(final RackApplication app) {
+        pool.offer(app);
+    }
+
+    private RackApplication waitForApplication() {
+        RackApplication app;
+        synchronized (poolSignal) {
+            while ( ( app = pollApplication() ) == null ) {
+                if ( getInitError() != null ) break;
+                try {
+                    poolSignal.wait(5 * 1000);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        return app;
+    }
+
+    private RackApplication pollApplication() {
+        RackApplication app;
+        while ( ( app = pool.poll() ) != null ) {
+            // skip entries left behind by (meanwhile) claimed applications
+            if ( claimPolledApplication(app) ) return app;
+        }
+        return null;
+    }
+
+}
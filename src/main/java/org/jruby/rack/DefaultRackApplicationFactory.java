@@ -12,6 +12,8 @@ import org.jruby.RubyInstanceConfig;
 import org.jruby.exceptions.RaiseException;
 import org.jruby.javasupport.JavaUtil;
 import org.jruby.rack.servlet.ServletRackContext;
+import org.jruby.rack.servlet.ByteBufferPool;
+import org.jruby.rack.servlet.MultipartParser;
 import org.jruby.rack.servlet.RewindableInputStream;
 import org.jruby.rack.util.IOHelpers;
 import org.jruby.runtime.ThreadContext;
@@ -35,11 +37,42 @@ import java.util.Set;
  * @author nicksieger
  */
 public class DefaultRackApplicationFactory implements RackApplicationFactory {
+
+    /**
+     * Set to <code>shared</code> to evaluate the error application inside the
+     * (pooled) runtime of the application that failed, by default a separate
+     * runtime is booted (on the first error) for the error application.
+     */
+    public static final String ERROR_RUNTIME = "jruby.rack.error.runtime";
+
+    /** (Ruby) global the shared error application is kept in (per runtime) */
+    private static final String ERROR_APP_GLOBAL = "$jruby_rack_error_app";
+
+    /**
+     * Number of request body (memory) buffers pooled per buffer size, buffers
+     * are not pooled unless set (the pool is shared the same way as the other
+     * request buffer defaults are - by all contexts loading JRuby-Rack).
+     */
+    public static final String BUFFER_POOL = "jruby.rack.request.buffer.pool";
     
-    private String rackupScript, rackupLocation;
+    static final int DEFAULT_BUFFER_POOL = 0;
+
+    /** Directory request bodies (larger than the memory buffer) spill into. */
+    public static final String SPILL_DIRECTORY = "jruby.rack.request.spill.dir";
+
+    /** Whether spilled request bodies are read back (memory) mapped. */
+    public static final String SPILL_MAPPED = "jruby.rack.request.spill.mapped";
+
+    /** Whether (rewindable) request input is buffered only once rewound. */
+    public static final String INPUT_LAZY = "jruby.rack.input.lazy";
+
+    private volatile String rackupScript, rackupLocation;
     private ServletRackContext rackContext;
     private RubyInstanceConfig runtimeConfig;
     private RackApplication errorApplication;
+    private BootProfiler bootProfiler;
+    private LoadPathIndex loadPathIndex;
+    private CompiledScriptCache scriptCache;
 
     /**
      * Convenience helper for unwrapping a {@link RackApplicationFactoryDecorator}.
@@ -57,10 +90,65 @@ public class DefaultRackApplicationFactory implements RackApplicationFactory {
         return rackContext;
     }
     
+    /**
+     * @return the boot profiler (null unless boot profiling is enabled)
+     */
+    public BootProfiler getBootProfiler() {
+        return bootProfiler;
+    }
+    
+    /**
+     * @return the (shared) load path index (null unless enabled)
+     */
+    public LoadPathIndex getLoadPathIndex() {
+        return loadPathIndex;
+    }
+    
+    /**
+     * @return the (boot) script cache (null if disabled)
+     */
+    public CompiledScriptCache getScriptCache() {
+        return scriptCache;
+    }
+    
     public String getRackupScript() {
         return rackupScript;
     }
     
+    /**
+     * Re-reads the rackup script, applications created afterwards use the 
+     * refreshed script.
+     * <br/>
+     * NOTE: exception handling is left to the outer factory.
+     */
+    public void refreshRackupScript() {
+        setRackup( readRackup() );
+    }
+    
+    /**
+     * Reads the rackup script (without using it for applications created).
+     * <br/>
+     * NOTE: exception handling is left to the outer factory.
+     * @return the rackup script and it's location
+     * @see #newApplication(String[])
+     */
+    public String[] readRackup() {
+        return resolveRackup();
+    }
+    
+    /**
+     * Sets the rackup script applications created afterwards use (e.g. once 
+     * a new generation of runtimes takes over).
+     * @param rackup the rackup script and it's location
+     * @see #readRackup()
+     */
+    public void setRackup(final String[] rackup) {
+        this.rackupScript = rackup[0];
+        this.rackupLocation = rackup[1];
+        // the previous rackup (compiled) is no longer needed :
+        if ( scriptCache != null ) scriptCache.clear();
+    }
+    
     /**
      * Initialize this factory using the given context.
      * <br/>
@@ -72,10 +160,13 @@ public class DefaultRackApplicationFactory implements RackApplicationFactory {
         // thus does not wrap exceptions into RackExceptions here ...
         // same applies for #newApplication() and #getApplication()
         this.rackContext = (ServletRackContext) rackContext;
-        resolveRackupScript();
+        setRackup( resolveRackup() );
+        this.scriptCache = CompiledScriptCache.configure(rackContext);
         this.runtimeConfig = createRuntimeConfig();
         rackContext.log(RackLogger.INFO, runtimeConfig.getVersionString());
         configureDefaults();
+        this.bootProfiler = BootProfiler.configure(rackContext);
+        if ( bootProfiler != null ) bootProfiler.register();
     }
 
     /**
@@ -92,6 +183,24 @@ public class DefaultRackApplicationFactory implements RackApplicationFactory {
         });
     }
 
+    /**
+     * Creates a new application instance (without initializing it) using the
+     * given rackup instead of the current one (e.g. when booting a new 
+     * generation of runtimes).
+     * <br/>
+     * NOTE: exception handling is left to the outer factory.
+     * @param rackup the rackup script and it's location
+     * @return new application instance
+     * @see #readRackup()
+     */
+    public RackApplication newApplication(final String[] rackup) {
+        return createApplication(new ApplicationObjectFactory() {
+            public IRubyObject create(Ruby runtime) {
+                return createApplicationObject(runtime, rackup[0], rackup[1]);
+            }
+        });
+    }
+
     /**
      * Creates a new application and initializes it.
      * <br/>
@@ -145,6 +254,7 @@ public class DefaultRackApplicationFactory implements RackApplicationFactory {
                 }
             }
         }
+        if ( bootProfiler != null ) bootProfiler.unregister();
     }
 
     public IRubyObject createApplicationObject(final Ruby runtime) {
@@ -152,11 +262,37 @@ public class DefaultRackApplicationFactory implements RackApplicationFactory {
             rackContext.log(RackLogger.WARN, "no rackup script found - starting empty Rack application!");
             rackupScript = "";
         }
-        runtime.evalScriptlet("load 'jruby/rack/boot/rack.rb'");
-        return createRackServletWrapper(runtime, rackupScript, rackupLocation);
+        return createApplicationObject(runtime, rackupScript, rackupLocation);
+    }
+
+    /**
+     * Creates the application object using the given rackup script.
+     * @param runtime
+     * @param rackupScript
+     * @param rackupLocation
+     * @return the application object
+     */
+    protected IRubyObject createApplicationObject(final Ruby runtime, 
+        final String rackupScript, final String rackupLocation) {
+        long start = System.nanoTime();
+        loadBootScript(runtime, "jruby/rack/boot/rack.rb");
+        bootPhase(runtime, "boot", start); start = System.nanoTime();
+        final IRubyObject app = createRackServletWrapper(runtime, 
+            rackupScript == null ? "" : rackupScript, rackupLocation);
+        bootPhase(runtime, "rackup", start);
+        return app;
     }
 
     public IRubyObject createErrorApplicationObject(final Ruby runtime) {
+        final String[] errorApp = resolveErrorApplication();
+        loadBootScript(runtime, "jruby/rack/boot/rack.rb");
+        return createRackServletWrapper(runtime, errorApp[0], errorApp[1]);
+    }
+
+    /**
+     * @return the error application rackup script and it's location
+     */
+    private String[] resolveErrorApplication() {
         String errorApp = rackContext.getConfig().getProperty("jruby.rack.error.app");
         String errorAppPath = "<web.xml>";
         if (errorApp == null) {
@@ -180,8 +316,16 @@ public class DefaultRackApplicationFactory implements RackApplicationFactory {
             "use Rack::ShowStatus \n" +
             "run JRuby::Rack::ErrorApp.new";
         }
-        runtime.evalScriptlet("load 'jruby/rack/boot/rack.rb'");
-        return createRackServletWrapper(runtime, errorApp, errorAppPath);
+        return new String[] { errorApp, errorAppPath };
+    }
+
+    /**
+     * @param config
+     * @return whether the error application shares the application runtimes
+     * @see #ERROR_RUNTIME
+     */
+    public static boolean isErrorRuntimeShared(final RackConfig config) {
+        return "shared".equalsIgnoreCase( config.getProperty(ERROR_RUNTIME) );
     }
 
     public RackApplication newErrorApplication() {
@@ -189,6 +333,13 @@ public class DefaultRackApplicationFactory implements RackApplicationFactory {
         if ( error != null && ! error.booleanValue() ) { // jruby.rack.error = false
             return new DefaultErrorApplication(rackContext);
         }
+        if ( isErrorRuntimeShared(rackContext.getConfig()) ) {
+            return new SharedErrorApplication();
+        }
+        final String mode = rackContext.getConfig().getProperty(ERROR_RUNTIME);
+        if ( mode != null && mode.trim().length() > 0 ) {
+            rackContext.log(RackLogger.WARN, "unsupported " + ERROR_RUNTIME + " = '" + mode + "' (ignored)");
+        }
         try {
             RackApplication app = createErrorApplication(
                 new ApplicationObjectFactory() {
@@ -224,11 +375,23 @@ public class DefaultRackApplicationFactory implements RackApplicationFactory {
      * @return (Ruby) built Rack Servlet handler
      */
     protected IRubyObject createRackServletWrapper(Ruby runtime, String rackup, String filename) {
-        return runtime.executeScript(
-            "Rack::Handler::Servlet.new( " +
-                "Rack::Builder.new { (" + rackup + "\n) }.to_app " +
-            ")", filename
-        );
+        final String script = "Rack::Handler::Servlet.new( " +
+            "Rack::Builder.new { (" + rackup + "\n) }.to_app " +
+        ")";
+        if ( scriptCache == null ) return runtime.executeScript(script, filename);
+        return scriptCache.executeScript(runtime, script, filename);
+    }
+
+    /**
+     * Loads a boot script e.g. <code>load 'jruby/rack/boot/rack.rb'</code>
+     * (the script gets compiled once and re-used across runtimes if enabled).
+     * @param runtime
+     * @param path the boot script path
+     * @see CompiledScriptCache
+     */
+    protected void loadBootScript(Ruby runtime, String path) {
+        if ( scriptCache == null ) runtime.evalScriptlet("load '" + path + "'");
+        else scriptCache.loadScript(runtime, path);
     }
     
     static interface ApplicationObjectFactory {
@@ -246,6 +409,18 @@ public class DefaultRackApplicationFactory implements RackApplicationFactory {
             config.setCompatVersion(rackContext.getConfig().getCompatVersion());
         }
 
+        // runtimes share resolved requires (if enabled) :
+        loadPathIndex = LoadPathIndex.configure(rackContext);
+        if ( loadPathIndex != null ) config.setLoadServiceCreator(loadPathIndex);
+        else {
+            // precompiled (AOT) scripts preferred or ignored (if configured) :
+            final Boolean aot = PrecompiledLoadService.getAot(rackContext.getConfig());
+            if ( aot != null ) config.setLoadServiceCreator(PrecompiledLoadService.creator(aot));
+        }
+
+        // JIT compiled classes persisted and re-used across runtimes (if set) :
+        JitCodeCache.configure(rackContext, config);
+
         // Don't affect the container and sibling web apps when ENV changes are made inside the Ruby app
         // There are quite a such things made in a typical Bundler based app.
         config.setUpdateNativeENVEnabled(false);
@@ -275,11 +450,49 @@ public class DefaultRackApplicationFactory implements RackApplicationFactory {
     }
     
     public Ruby newRuntime() throws RaiseException {
+        final BootProfiler.Boot boot = bootProfiler == null ? null : bootProfiler.newBoot();
+        long start = System.nanoTime();
         Ruby runtime = Ruby.newInstance(runtimeConfig);
+        if ( boot != null ) {
+            boot.phase("runtime", start);
+            startBootProfile(runtime, boot);
+            start = System.nanoTime();
+        }
         initializeRuntime(runtime);
+        if ( boot != null ) boot.phase("initialize", start);
         return runtime;
     }
     
+    private static void startBootProfile(final Ruby runtime, final BootProfiler.Boot boot) {
+        final IRubyObject profile = JavaUtil.convertJavaToRuby(runtime, boot);
+        runtime.getGlobalVariables().set(BootProfiler.GLOBAL, profile);
+        // times (loaded) requires while the profile is set :
+        runtime.evalScriptlet("require 'jruby/rack/boot_profile'");
+    }
+    
+    /**
+     * Records a (finished) boot phase of the given runtime (if profiling).
+     * @param runtime
+     * @param phase the phase name
+     * @param start the time (in nanos) the phase started
+     * @see BootProfiler
+     */
+    protected void bootPhase(final Ruby runtime, final String phase, final long start) {
+        if ( bootProfiler == null ) return;
+        final BootProfiler.Boot boot = BootProfiler.getBoot(runtime);
+        if ( boot != null ) boot.phase(phase, start);
+    }
+    
+    /**
+     * Finishes profiling the boot of the given runtime (if profiling).
+     * @param runtime
+     */
+    protected void bootFinished(final Ruby runtime) {
+        if ( bootProfiler == null ) return;
+        final BootProfiler.Boot boot = BootProfiler.getBoot(runtime);
+        if ( boot != null ) boot.finish(runtime);
+    }
+    
     // NOTE: only visible due #jruby/rack/application_spec.rb on JRuby 1.7.x
     void initializeRuntime(Ruby runtime) {
         IRubyObject context = JavaUtil.convertJavaToRuby(runtime, rackContext);
@@ -332,6 +545,7 @@ public class DefaultRackApplicationFactory implements RackApplicationFactory {
                 captureMessage(e);
                 throw e;
             }
+            bootFinished(runtime);
         }
         
         @Override
@@ -347,6 +561,7 @@ public class DefaultRackApplicationFactory implements RackApplicationFactory {
             @Override
             public void init() {
                 setApplication(appFactory.create(runtime));
+                bootFinished(runtime);
             }
             @Override
             public void destroy() {
@@ -355,6 +570,54 @@ public class DefaultRackApplicationFactory implements RackApplicationFactory {
         };
     }
     
+    /**
+     * An error application evaluated (on first use) inside the runtime of the
+     * application that failed to handle the request, thus no separate runtime
+     * is booted. Falls back to the default (Java) error response when there's
+     * no such application (e.g. the application failed to initialize).
+     */
+    private class SharedErrorApplication extends DefaultErrorApplication {
+
+        SharedErrorApplication() {
+            super(rackContext);
+        }
+
+        @Override
+        public RackResponse call(final RackEnvironment env) {
+            final IRubyObject errorApp = getErrorApplicationObject(env);
+            if ( errorApp == null ) return super.call(env);
+            return new DefaultRackApplication(errorApp).call(env);
+        }
+
+        private IRubyObject getErrorApplicationObject(final RackEnvironment env) {
+            final Object app = env.getAttribute(RackEnvironment.APPLICATION);
+            if ( ! ( app instanceof RackApplication ) ) return null;
+            final Ruby runtime;
+            try {
+                runtime = ((RackApplication) app).getRuntime();
+            }
+            catch (RuntimeException e) { return null; } // no runtime e.g. an error app
+            if ( runtime == null ) return null;
+            synchronized (runtime) { // a shared runtime serves concurrent requests
+                IRubyObject errorApp = runtime.getGlobalVariables().get(ERROR_APP_GLOBAL);
+                if ( errorApp == null || errorApp.isNil() ) {
+                    try {
+                        final String[] script = resolveErrorApplication();
+                        runtime.evalScriptlet("require 'rack'");
+                        errorApp = createRackServletWrapper(runtime, script[0], script[1]);
+                    }
+                    catch (RaiseException e) {
+                        rackContext.log(RackLogger.WARN, "error application could not be initialized", e);
+                        errorApp = runtime.getFalse(); // do not retry - use the default
+                    }
+                    runtime.getGlobalVariables().set(ERROR_APP_GLOBAL, errorApp);
+                }
+                return errorApp.isTrue() ? errorApp : null;
+            }
+        }
+
+    }
+
     private void captureMessage(final RaiseException re) {
         try {
             IRubyObject rubyException = re.getException();
@@ -394,8 +657,11 @@ public class DefaultRackApplicationFactory implements RackApplicationFactory {
         return null;
     }
 
-    private String resolveRackupScript() throws RackInitializationException {
-        rackupLocation = "<web.xml>";
+    /**
+     * @return the rackup script and it's location
+     */
+    private String[] resolveRackup() throws RackInitializationException {
+        String rackupLocation = "<web.xml>";
 
         String rackup = rackContext.getConfig().getRackup();
         if (rackup == null) {
@@ -424,7 +690,7 @@ public class DefaultRackApplicationFactory implements RackApplicationFactory {
             }
         }
 
-        return this.rackupScript = rackup;
+        return new String[] { rackup, rackupLocation };
     }
     
     private void configureDefaults() {
@@ -438,6 +704,31 @@ public class DefaultRackApplicationFactory implements RackApplicationFactory {
         
         RewindableInputStream.setDefaultInitialBufferSize(iniSize);
         RewindableInputStream.setDefaultMaximumBufferSize(maxSize);
+        
+        Number pooled = config.getNumberProperty(BUFFER_POOL);
+        if (pooled == null) pooled = DEFAULT_BUFFER_POOL;
+        RewindableInputStream.setDefaultBufferPool( pooled.intValue() > 0 ?
+            new ByteBufferPool(iniSize, maxSize, pooled.intValue()) : null
+        );
+        
+        File spillDirectory = null;
+        final String spillPath = config.getProperty(SPILL_DIRECTORY);
+        if (spillPath != null && spillPath.trim().length() > 0) {
+            spillDirectory = new File(spillPath.trim());
+            if ( ! spillDirectory.isDirectory() && ! spillDirectory.mkdirs() ) {
+                rackContext.log(RackLogger.WARN, "request spill directory " + 
+                    spillDirectory + " can not be created (using default)");
+                spillDirectory = null;
+            }
+        }
+        RewindableInputStream.setDefaultSpillDirectory(spillDirectory);
+        RewindableInputStream.setDefaultSpillMapped(
+            Boolean.TRUE.equals(config.getBooleanProperty(SPILL_MAPPED))
+        );
+        RewindableInputStream.setDefaultLazy(
+            Boolean.TRUE.equals(config.getBooleanProperty(INPUT_LAZY))
+        );
+        MultipartParser.setDefault( MultipartParser.configure(rackContext) );
     }
     
     private static void setupJRubyManagement() {
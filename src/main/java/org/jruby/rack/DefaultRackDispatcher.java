@@ -8,6 +8,8 @@
 package org.jruby.rack;
 
 import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Map;
 
 import org.jruby.rack.servlet.ServletRackContext;
 
@@ -18,6 +20,9 @@ import org.jruby.rack.servlet.ServletRackContext;
  */
 public class DefaultRackDispatcher extends AbstractRackDispatcher {
 
+    /** (request) attribute keeping the factories applications were acquired from */
+    static final String APPLICATION_FACTORIES = "jruby.rack.application.factories";
+
     private Integer errorApplicationFailureStatusCode = 500;
     
     public DefaultRackDispatcher(RackContext context) {
@@ -37,6 +42,19 @@ public class DefaultRackDispatcher extends AbstractRackDispatcher {
         return getRackFactory().getApplication();
     }
 
+    @Override
+    protected RackApplication getApplication(final RackEnvironment request) 
+        throws RackException {
+        final RackApplicationFactory factory = getRackFactory(request);
+        final RackApplication app = factory.getApplication();
+        if ( factory != getRackFactory() ) { // a bulkhead
+            // remember the bulkhead, the (route) a rule matched might change
+            // while the request is processed (e.g. forwards or includes) :
+            getApplicationFactories(request, true).put(app, factory);
+        }
+        return app;
+    }
+
     @Override
     protected void afterException(
             final RackEnvironment request, 
@@ -68,6 +86,15 @@ public class DefaultRackDispatcher extends AbstractRackDispatcher {
     protected void afterProcess(RackApplication app) {
         getRackFactory().finishedWithApplication(app);
     }
+
+    @Override
+    protected void afterProcess(RackEnvironment request, RackApplication app) {
+        final Map<RackApplication, RackApplicationFactory> factories =
+            getApplicationFactories(request, false);
+        RackApplicationFactory factory = factories == null ? null : factories.remove(app);
+        if ( factory == null ) factory = getRackFactory(request);
+        factory.finishedWithApplication(app);
+    }
     
     @Override
     public void destroy() {
@@ -81,6 +108,33 @@ public class DefaultRackDispatcher extends AbstractRackDispatcher {
         throw new IllegalStateException("not a servlet rack context");
     }
     
+    /**
+     * @param request
+     * @return the factory to be used for the given request
+     * @see BulkheadRackApplicationFactory
+     */
+    protected RackApplicationFactory getRackFactory(final RackEnvironment request) {
+        final RackApplicationFactory factory = getRackFactory();
+        if ( factory instanceof BulkheadRackApplicationFactory ) {
+            return ((BulkheadRackApplicationFactory) factory).getApplicationFactory(request);
+        }
+        return factory;
+    }
+    
+    // applications (being processed) -> the (bulkhead) factory they came from
+    // NOTE: a map since dispatches might nest (e.g. a forward to another route)
+    @SuppressWarnings("unchecked")
+    private static Map<RackApplication, RackApplicationFactory> getApplicationFactories(
+        final RackEnvironment request, final boolean create) {
+        Map<RackApplication, RackApplicationFactory> factories = 
+            (Map<RackApplication, RackApplicationFactory>) request.getAttribute(APPLICATION_FACTORIES);
+        if ( factories == null && create ) {
+            factories = new IdentityHashMap<RackApplication, RackApplicationFactory>(4);
+            request.setAttribute(APPLICATION_FACTORIES, factories);
+        }
+        return factories;
+    }
+    
     private RackApplication getErrorApplication() {
         return getRackFactory().getErrorApplication();
     }
@@ -0,0 +1,146 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Elastic sizing of the application (runtime) pool, tears down (surplus) idle
+ * runtimes and boots spare runtimes ahead of demand. The pool size is still
+ * kept within the <code>jruby.min.runtimes</code> and
+ * <code>jruby.max.runtimes</code> bounds.
+ * <ul>
+ * <li><code>jruby.runtime.pool.idle.ttl</code>: Value (in seconds) after which
+ *  an idle runtime (sitting in the pool) gets torn down. Default is none.
+ * <li><code>jruby.runtime.pool.spare.min</code>: The low watermark, number of
+ *  idle runtimes to keep ready in the pool, new runtimes are booted (in the
+ *  background) if there's less idle runtimes available. Default is none.
+ * <li><code>jruby.runtime.pool.spare.max</code>: The high watermark, maximum
+ *  number of idle runtimes in the pool, surplus runtimes are torn down without
+ *  waiting for their idle time to live to expire. Default is none.
+ * </ul>
+ * The pool is maintained (in the background) every
+ * <code>jruby.runtime.pool.maintain.interval</code>.
+ *
+ * @see PoolingRackApplicationFactory#maintainPool()
+ */
+public class ElasticPoolSizing {
+
+    private final PoolingRackApplicationFactory pool;
+
+    private Float idleTimeToLive; // in seconds
+    private Integer minimumSpareSize, maximumSpareSize;
+    // since when applications are idle (only tracked if the pool is elastic)
+    private final Map<RackApplication, Long> idleTimes =
+        new ConcurrentHashMap<RackApplication, Long>();
+
+    public ElasticPoolSizing(PoolingRackApplicationFactory pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @return <code>jruby.runtime.pool.idle.ttl</code> (in seconds)
+     */
+    public Number getIdleTimeToLive() {
+        return idleTimeToLive;
+    }
+
+    public void setIdleTimeToLive(Number idleTimeToLive) {
+        this.idleTimeToLive = idleTimeToLive == null ?
+            null : idleTimeToLive.floatValue();
+    }
+
+    /**
+     * @return <code>jruby.runtime.pool.spare.min</code>
+     */
+    public Integer getMinimumSpareSize() {
+        return minimumSpareSize;
+    }
+
+    public void setMinimumSpareSize(Integer minimumSpareSize) {
+        this.minimumSpareSize = minimumSpareSize;
+    }
+
+    /**
+     * @return <code>jruby.runtime.pool.spare.max</code>
+     */
+    public Integer getMaximumSpareSize() {
+        return maximumSpareSize;
+    }
+
+    public void setMaximumSpareSize(Integer maximumSpareSize) {
+        if (maximumSpareSize != null && minimumSpareSize != null && minimumSpareSize > maximumSpareSize) {
+            maximumSpareSize = minimumSpareSize;
+        }
+        this.maximumSpareSize = maximumSpareSize;
+    }
+
+    /**
+     * @return whether idle runtimes are torn down and spares booted up-front
+     */
+    public boolean isElastic() {
+        return idleTimeToLive != null ||
+            minimumSpareSize != null || maximumSpareSize != null;
+    }
+
+    /**
+     * Track whether an application is idle (sitting in the pool).
+     * Only tracked if the pool is elastic.
+     * @param app
+     * @param idle
+     */
+    public void setIdle(final RackApplication app, final boolean idle) {
+        if ( app == null || ! isElastic() ) return;
+        if ( idle ) idleTimes.put(app, System.currentTimeMillis());
+        else idleTimes.remove(app);
+    }
+
+    /**
+     * @param app
+     * @return since when an application has been idle (0 if unknown)
+     */
+    public long getIdleSince(final RackApplication app) {
+        final Long since = app == null ? null : idleTimes.get(app);
+        return since == null ? 0 : since.longValue();
+    }
+
+    /**
+     * Tears down runtimes idle for longer than the idle time to live (as well
+     * as surplus runtimes above the maximum spare size) and boots new runtimes
+     * if there's less than the minimum spare size of idle runtimes available.
+     * The pool is never shrunk below <code>jruby.min.runtimes</code> and never
+     * grown beyond <code>jruby.max.runtimes</code>.
+     */
+    public void maintain() {
+        final Integer initialSize = pool.getInitialSize();
+        final int minimum = initialSize == null ? 0 : initialSize.intValue();
+        final int minSpare = minimumSpareSize == null ? 0 : minimumSpareSize.intValue();
+        final long now = System.currentTimeMillis();
+        // shrink - tear down idle (and surplus) applications :
+        while ( pool.createdApplications.get() > minimum ) {
+            final int idle = pool.getApplicationPoolSize();
+            final long idleSince;
+            if ( maximumSpareSize != null && idle > maximumSpareSize ) {
+                idleSince = now; // surplus regardless of idle time
+            }
+            else if ( idleTimeToLive != null && idle > minSpare ) {
+                idleSince = now - (long) (idleTimeToLive * 1000);
+            }
+            else break;
+
+            final RackApplication app = pool.removeIdleApplication(idleSince);
+            if ( app == null ) break;
+            pool.getContext().log(RackLogger.INFO, "tearing down idle application, pool size now = " + pool.getApplicationPoolSize());
+            pool.tearDownApplication(app);
+        }
+        // grow - boot spare applications :
+        int spares = minSpare - pool.getApplicationPoolSize();
+        while ( spares-- > 0 ) {
+            if ( ! pool.bootSpareApplication() ) break;
+        }
+    }
+
+}
@@ -0,0 +1,273 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jruby.RubyInstanceConfig;
+import org.jruby.compiler.JITCompiler;
+import org.jruby.internal.runtime.methods.CallConfiguration;
+import org.jruby.runtime.Constants;
+import org.jruby.util.ClassCache;
+
+/**
+ * A (JIT) class cache persisting the bytecode of JIT compiled Ruby methods
+ * in a directory. JIT classes are named after a digest of the method source
+ * thus runtimes (and later deploys with unchanged code) re-use a previously
+ * generated class instead of compiling the method again.
+ * <p>
+ * Classes are stored per JRuby version (as bytecode is not compatible across
+ * versions) along with the source digest and a checksum, entries that do not
+ * verify are discarded (and re-generated). The directory is safe to be shared
+ * among applications.
+ * <ul>
+ * <li><code>jruby.runtime.jit.cache</code>: Directory (path) JIT compiled
+ *  classes are stored in and loaded from. Should be outside of the (exploded)
+ *  web application to survive re-deploys. Default is none (no persistence).
+ * </ul>
+ *
+ * @see DefaultRackApplicationFactory
+ */
+public class JitCodeCache<T> extends ClassCache<T> {
+
+    public static final String DIRECTORY = "jruby.runtime.jit.cache";
+
+    private static final String JRUBY_VERSION = Constants.VERSION + '-' + Constants.REVISION;
+    private static final int MAGIC = 0x4A495401; // "JIT" + format version
+
+    // the JIT compiler compiles a method (again) unless it's generator has
+    // bytecode, thus generators get seeded (with the call configuration)
+    private static final Field GENERATOR_BYTECODE, GENERATOR_CALL_CONFIG;
+    private static final byte[] NO_BYTECODE = new byte[0];
+
+    static {
+        Field bytecode = null, callConfig = null;
+        try {
+            bytecode = JITCompiler.JITClassGenerator.class.getDeclaredField("bytecode");
+            bytecode.setAccessible(true);
+            callConfig = JITCompiler.JITClassGenerator.class.getDeclaredField("jitCallConfig");
+            callConfig.setAccessible(true);
+        }
+        catch (NoSuchFieldException e) { bytecode = callConfig = null; }
+        catch (SecurityException e) { bytecode = callConfig = null; }
+        GENERATOR_BYTECODE = bytecode; GENERATOR_CALL_CONFIG = callConfig;
+    }
+
+    private final RackContext context;
+    private final File directory;
+    // call configurations of the classes (loaded or generated) by class name
+    private final Map<String, CallConfiguration> callConfigs =
+        new ConcurrentHashMap<String, CallConfiguration>();
+
+    public JitCodeCache(RackContext context, ClassLoader loader, int max, File directory) {
+        super(loader, max);
+        this.context = context;
+        this.directory = directory;
+    }
+
+    /**
+     * Configures the (runtime) class cache from the context parameters.
+     * @param context
+     * @param config the configuration to set the cache on
+     * @return the cache or null if not configured
+     */
+    public static JitCodeCache configure(final RackContext context, final RubyInstanceConfig config) {
+        final String path = context.getConfig().getProperty(DIRECTORY);
+        if ( path == null || path.trim().length() == 0 ) return null;
+        if ( GENERATOR_BYTECODE == null ) {
+            context.log(RackLogger.WARN, "JIT cache not supported with JRuby " + JRUBY_VERSION);
+            return null;
+        }
+        final File directory = new File(path.trim(), "jruby-" + JRUBY_VERSION);
+        if ( ! directory.isDirectory() && ! directory.mkdirs() ) {
+            context.log(RackLogger.WARN, "JIT cache directory " + directory + " can not be created");
+            return null;
+        }
+        @SuppressWarnings("unchecked")
+        final JitCodeCache cache = new JitCodeCache(context, config.getLoader(), config.getJitMax(), directory);
+        config.setClassCache(cache);
+        context.log(RackLogger.INFO, "using JIT cache directory " + directory);
+        return cache;
+    }
+
+    /**
+     * @return the (versioned) directory classes are stored in
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns the (cached, loaded or generated) class for a JIT compiled
+     * method, seeding the method's generator unless it generated the class.
+     */
+    @Override
+    public Class<T> cacheClassByKey(final Object key, final ClassGenerator generator)
+        throws ClassNotFoundException {
+        if ( ! ( generator instanceof JITCompiler.JITClassGenerator ) ) {
+            return super.cacheClassByKey(key, generator);
+        }
+        final JITCompiler.JITClassGenerator jitGenerator = (JITCompiler.JITClassGenerator) generator;
+        // the digest JIT classes are named after :
+        final String digest = JITCompiler.getHashForString(key.toString());
+        final Class<T> klass = super.cacheClassByKey(key, new CachingClassGenerator(this, jitGenerator, digest));
+        if ( klass != null ) seedGenerator(jitGenerator, klass.getName());
+        return klass;
+    }
+
+    /**
+     * Loads the (named) class from the directory if present (and valid),
+     * otherwise the class gets generated and stored.
+     */
+    @Override
+    protected Class<T> defineClass(final ClassGenerator generator) {
+        if ( ! ( generator instanceof CachingClassGenerator ) ) {
+            return super.defineClass(generator);
+        }
+        final CachingClassGenerator caching = (CachingClassGenerator) generator;
+        final File file = caching.file;
+        if ( file.isFile() ) {
+            try {
+                final Class<T> klass = loadClass(caching, file);
+                if ( klass != null ) return klass;
+                context.log(RackLogger.WARN, "discarding stale (or corrupt) cached JIT class " + file);
+                file.delete();
+            }
+            catch (IOException e) {
+                context.log(RackLogger.DEBUG, "failed loading cached JIT class " + file, e);
+            }
+            catch (LinkageError e) { // likely corrupt - re-generate
+                context.log(RackLogger.WARN, "failed loading cached JIT class " + file + " : " + e);
+                file.delete();
+            }
+        }
+        return super.defineClass(caching);
+    }
+
+    private void seedGenerator(final JITCompiler.JITClassGenerator generator, final String name) {
+        try {
+            if ( GENERATOR_BYTECODE.get(generator) != null ) return; // generated
+            final CallConfiguration callConfig = callConfigs.get(name);
+            if ( callConfig == null ) return; // (not seeded) compiled again
+            GENERATOR_CALL_CONFIG.set(generator, callConfig);
+            GENERATOR_BYTECODE.set(generator, NO_BYTECODE);
+        }
+        catch (IllegalAccessException e) {
+            context.log(RackLogger.DEBUG, "failed seeding JIT generator for " + name, e);
+        }
+    }
+
+    /**
+     * @return the loaded class or null if the file did not verify
+     */
+    @SuppressWarnings("unchecked")
+    private Class<T> loadClass(final CachingClassGenerator generator, final File file)
+        throws IOException {
+        final String name = generator.name();
+        final CallConfiguration callConfig;
+        final byte[] bytecode;
+        final DataInputStream input = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(file)) );
+        try {
+            if ( input.readInt() != MAGIC ) return null;
+            if ( ! JRUBY_VERSION.equals( input.readUTF() ) ) return null;
+            if ( ! generator.digest.equals( input.readUTF() ) ) return null;
+            callConfig = CallConfiguration.valueOf( input.readUTF() );
+            final String checksum = input.readUTF();
+            final int length = input.readInt();
+            if ( length <= 0 || length > file.length() ) return null;
+            bytecode = new byte[length];
+            input.readFully(bytecode);
+            if ( ! checksum.equals( JITCompiler.getHashForBytes(bytecode) ) ) return null;
+        }
+        catch (EOFException e) { return null; } // truncated
+        catch (IllegalArgumentException e) { return null; } // unknown call config
+        finally {
+            input.close();
+        }
+        final Class<T> klass = (Class<T>) new OneShotClassLoader(getClassLoader()).defineClass(name, bytecode);
+        callConfigs.put(name, callConfig);
+        return klass;
+    }
+
+    private void storeClass(final CachingClassGenerator generator,
+        final CallConfiguration callConfig, final byte[] bytecode) {
+        final File file = generator.file;
+        // written aside and renamed - other runtimes (JVMs) might be reading
+        final File temp = new File(file.getPath() + '.' + Thread.currentThread().getId() + ".tmp");
+        try {
+            file.getParentFile().mkdirs();
+            final DataOutputStream output = new DataOutputStream(new FileOutputStream(temp));
+            try {
+                output.writeInt(MAGIC);
+                output.writeUTF(JRUBY_VERSION);
+                output.writeUTF(generator.digest);
+                output.writeUTF(callConfig.name());
+                output.writeUTF(JITCompiler.getHashForBytes(bytecode));
+                output.writeInt(bytecode.length);
+                output.write(bytecode);
+            }
+            finally {
+                output.close();
+            }
+            if ( ! temp.renameTo(file) ) temp.delete();
+        }
+        catch (IOException e) {
+            temp.delete();
+            context.log(RackLogger.DEBUG, "failed storing JIT class " + file, e);
+        }
+    }
+
+    /**
+     * Generates (using the JIT generator) and stores the class bytecode.
+     */
+    private static class CachingClassGenerator implements ClassGenerator {
+
+        final JitCodeCache<?> cache;
+        final JITCompiler.JITClassGenerator generator;
+        final String digest;
+        final File file;
+        private byte[] bytecode;
+
+        CachingClassGenerator(JitCodeCache<?> cache, JITCompiler.JITClassGenerator generator, String digest) {
+            this.cache = cache;
+            this.generator = generator;
+            this.digest = digest;
+            final String path = generator.name().replace('.', File.separatorChar) + ".jit";
+            this.file = new File(cache.directory, path);
+        }
+
+        public void generate() {
+            generator.generate();
+        }
+
+        public byte[] bytecode() {
+            if ( bytecode == null ) {
+                bytecode = generator.bytecode();
+                // NOTE: the method has been compiled thus this does not compile :
+                final CallConfiguration callConfig = generator.callConfig();
+                cache.callConfigs.put(name(), callConfig);
+                cache.storeClass(this, callConfig, bytecode);
+            }
+            return bytecode;
+        }
+
+        public String name() {
+            return generator.name();
+        }
+
+    }
+
+}
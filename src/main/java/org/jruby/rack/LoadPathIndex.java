@@ -0,0 +1,262 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.jruby.RubyInstanceConfig;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.runtime.load.LoadService;
+import org.jruby.runtime.load.LoadServiceResource;
+import org.jruby.util.ByteList;
+
+/**
+ * An index of resolved <code>require</code>s shared by all runtimes booted
+ * by a factory. Runtimes record the <code>$LOAD_PATH</code> entry a feature
+ * has been found in, runtimes booted later resolve the feature by looking at
+ * the recorded entry only instead of probing the whole load path (which is
+ * expensive especially with gems inside a packed .war).
+ * <p>
+ * A recorded entry is only used if all load path entries before it are the
+ * same as they were when recorded, otherwise (or if the feature is no longer
+ * found there) the load path is searched as usual. Features not found on the
+ * load path (e.g. loaded from the class-path) are recorded as well, these skip
+ * the load path search as long as the whole load path is the same.
+ * <ul>
+ * <li><code>jruby.runtime.load.index</code>: Whether to share resolved
+ *  requires among runtimes. Default is false.
+ * </ul>
+ *
+ * @see DefaultRackApplicationFactory
+ */
+public class LoadPathIndex implements RubyInstanceConfig.LoadServiceCreator {
+
+    private static final int PATH = 0, JAR = 1, CLASSPATH = 2, MISS = -1;
+
+    private final RackContext context;
+    private final Map<String, Hit> hits = new ConcurrentHashMap<String, Hit>();
+    private volatile ByteList[] lastLoadPath = new ByteList[0];
+    private volatile boolean disabled;
+    private Boolean aot;
+
+    public LoadPathIndex(RackContext context) {
+        this.context = context;
+    }
+
+    /**
+     * Configures an index from the context parameters.
+     * @param context
+     * @return the index or null if not enabled
+     */
+    public static LoadPathIndex configure(final RackContext context) {
+        final Boolean index = context.getConfig().getBooleanProperty("jruby.runtime.load.index");
+        if ( index == null || ! index.booleanValue() ) return null;
+        final LoadPathIndex loadPathIndex = new LoadPathIndex(context);
+        loadPathIndex.setAot( PrecompiledLoadService.getAot(context.getConfig()) );
+        return loadPathIndex;
+    }
+
+    /**
+     * @return whether precompiled scripts are loaded
+     * @see PrecompiledLoadService
+     */
+    public Boolean getAot() {
+        return aot;
+    }
+
+    public void setAot(Boolean aot) {
+        this.aot = aot;
+    }
+
+    /**
+     * @return the number of indexed features
+     */
+    public int size() {
+        return hits.size();
+    }
+
+    public void clear() {
+        hits.clear();
+    }
+
+    public LoadService create(final Ruby runtime) {
+        return new IndexedLoadService(runtime);
+    }
+
+    private static String key(final String baseName, final LoadService.SuffixType suffixType) {
+        return suffixType.ordinal() + baseName;
+    }
+
+    /**
+     * Captures the current load path (re-using the last captured one if it's
+     * still the same, to keep the index compact).
+     */
+    private ByteList[] captureLoadPath(final RubyArray loadPath) {
+        final ByteList[] last = lastLoadPath;
+        if ( last.length == loadPath.size() && 
+             matches(loadPath, last, last.length - 1) ) return last;
+        final ByteList[] captured = new ByteList[loadPath.size()];
+        for ( int i = 0; i < captured.length; i++ ) {
+            captured[i] = loadPath.eltInternal(i).convertToString().getByteList().dup();
+        }
+        return lastLoadPath = captured;
+    }
+
+    private static boolean matches(final RubyArray loadPath,
+        final ByteList[] recorded, final int position) {
+        if ( position >= recorded.length || position >= loadPath.size() ) return false;
+        for ( int i = 0; i <= position; i++ ) {
+            final IRubyObject entry = loadPath.eltInternal(i);
+            if ( ! entry.convertToString().getByteList().equal(recorded[i]) ) return false;
+        }
+        return true;
+    }
+
+    private static class Hit {
+
+        final int kind;
+        final String entry, name; // the load path entry and the feature file
+        final int position; // of the entry in the (recorded) load path
+        final ByteList[] loadPath;
+
+        Hit(int kind, String entry, String name, int position, ByteList[] loadPath) {
+            this.kind = kind;
+            this.entry = entry;
+            this.name = name;
+            this.position = position;
+            this.loadPath = loadPath;
+        }
+
+    }
+
+    /**
+     * Records the load path entry requires are resolved from (and resolves
+     * from recorded entries).
+     */
+    private class IndexedLoadService extends PrecompiledLoadService {
+
+        // the first resource found (while searching the load path)
+        private final ThreadLocal<Hit[]> found = new ThreadLocal<Hit[]>();
+
+        IndexedLoadService(Ruby runtime) {
+            super(runtime, aot);
+        }
+
+        @Override
+        protected LoadServiceResource tryResourceFromLoadPathOrURL(final SearchState state,
+            final String baseName, final SuffixType suffixType) {
+            if ( disabled || ! isIndexable(baseName) ) {
+                return super.tryResourceFromLoadPathOrURL(state, baseName, suffixType);
+            }
+            try {
+                final String key = key(baseName, suffixType);
+                final Hit hit = hits.get(key);
+                if ( hit != null && hit.kind == MISS ) {
+                    if ( hit.loadPath.length == loadPath.size() &&
+                         matches(loadPath, hit.loadPath, hit.position) ) return null;
+                }
+                else if ( hit != null && matches(loadPath, hit.loadPath, hit.position) ) {
+                    final LoadServiceResource resource = tryHit(hit);
+                    if ( resource != null ) {
+                        state.loadName = resolveLoadName(resource, hit.name);
+                        return resource;
+                    }
+                }
+                final Hit[] first = new Hit[1];
+                found.set(first);
+                final LoadServiceResource resource =
+                    super.tryResourceFromLoadPathOrURL(state, baseName, suffixType);
+                final Hit resolved = resolve(first[0], baseName, suffixType);
+                if ( resource != null && resolved != null ) {
+                    final int position = indexOf(resolved.entry);
+                    if ( position >= 0 ) {
+                        hits.put(key, new Hit(resolved.kind, resolved.entry, resolved.name,
+                            position, captureLoadPath(loadPath)));
+                    }
+                }
+                else if ( resource == null ) { // not on the load path
+                    final int position = loadPath.size() - 1;
+                    hits.put(key, new Hit(MISS, null, null,
+                        position, captureLoadPath(loadPath)));
+                }
+                return resource;
+            }
+            catch (LinkageError e) { // LoadService internals changed
+                disabled = true;
+                context.log(RackLogger.WARN, "load path index not supported on this JRuby version", e);
+                return super.tryResourceFromLoadPathOrURL(state, baseName, suffixType);
+            }
+            finally {
+                found.remove();
+            }
+        }
+
+        private LoadServiceResource tryHit(final Hit hit) {
+            switch ( hit.kind ) {
+                case JAR : return super.tryResourceFromJarURLWithLoadPath(hit.name, hit.entry);
+                case CLASSPATH : return super.findFileInClasspath(hit.entry + '/' + hit.name);
+                default : return super.tryResourceFromLoadPath(hit.name, hit.entry);
+            }
+        }
+
+        @Override
+        protected LoadServiceResource tryResourceFromLoadPath(String name, String entry) {
+            final LoadServiceResource resource = super.tryResourceFromLoadPath(name, entry);
+            if ( resource != null ) found(PATH, entry, name);
+            return resource;
+        }
+
+        @Override
+        protected LoadServiceResource tryResourceFromJarURLWithLoadPath(String name, String entry) {
+            final LoadServiceResource resource = super.tryResourceFromJarURLWithLoadPath(name, entry);
+            if ( resource != null ) found(JAR, entry, name);
+            return resource;
+        }
+
+        @Override
+        protected LoadServiceResource findFileInClasspath(final String path) {
+            final LoadServiceResource resource = super.findFileInClasspath(path);
+            if ( resource != null ) found(CLASSPATH, null, path); // entry + '/' + name
+            return resource;
+        }
+
+        private void found(final int kind, final String entry, final String name) {
+            final Hit[] first = found.get(); // null unless searching the load path
+            // only the first resource found counts (the load path order wins)
+            if ( first != null && first[0] == null ) first[0] = new Hit(kind, entry, name, -1, null);
+        }
+
+        private Hit resolve(final Hit hit, final String baseName, final SuffixType suffixType) {
+            if ( hit == null || hit.kind != CLASSPATH ) return hit;
+            for ( String suffix : suffixType.getSuffixes() ) {
+                final String name = baseName + suffix;
+                if ( hit.name.endsWith('/' + name) ) {
+                    final String entry = hit.name.substring(0, hit.name.length() - name.length() - 1);
+                    return new Hit(CLASSPATH, entry, name, -1, null);
+                }
+            }
+            return null;
+        }
+
+        private int indexOf(final String entry) {
+            for ( int i = 0; i < loadPath.size(); i++ ) {
+                if ( entry.equals( loadPath.eltInternal(i).convertToString().asJavaString() ) ) return i;
+            }
+            return -1;
+        }
+
+        private boolean isIndexable(final String baseName) {
+            // relative features only (searched on the load path) :
+            return ! ( baseName.startsWith("./") || baseName.startsWith("../") ||
+                       baseName.startsWith("~/") || new File(baseName).isAbsolute() );
+        }
+
+    }
+
+}
@@ -0,0 +1,75 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Permits limiting the number of runtimes (or requests) handed out.
+ *
+ * @see RequestPriorities#newPermits(int)
+ */
+public interface Permits {
+
+    /**
+     * Acquires a permit only if one is available (without waiting).
+     * @return true if acquired
+     */
+    boolean tryAcquire();
+
+    /**
+     * Acquires a permit waiting at most the given time for it.
+     * @param timeout
+     * @param unit
+     * @return true if acquired, false if the timeout elapsed
+     * @throws InterruptedException
+     */
+    boolean tryAcquire(long timeout, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * Releases a permit (previously acquired).
+     */
+    void release();
+
+    /**
+     * @return the number of permits currently available
+     */
+    int availablePermits();
+
+    /**
+     * Permits backed by a (plain) semaphore.
+     */
+    public static class SemaphorePermits implements Permits {
+
+        private final Semaphore semaphore;
+
+        public SemaphorePermits(int permits, boolean fair) {
+            this( new Semaphore(permits, fair) );
+        }
+
+        public SemaphorePermits(Semaphore semaphore) {
+            this.semaphore = semaphore;
+        }
+
+        public boolean tryAcquire() {
+            return semaphore.tryAcquire();
+        }
+
+        public boolean tryAcquire(long timeout, TimeUnit unit) throws InterruptedException {
+            return semaphore.tryAcquire(timeout, unit);
+        }
+
+        public void release() {
+            semaphore.release();
+        }
+
+        public int availablePermits() {
+            return semaphore.availablePermits();
+        }
+
+    }
+
+}
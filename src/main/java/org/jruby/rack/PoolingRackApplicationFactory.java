@@ -6,11 +6,18 @@
  */
 package org.jruby.rack;
 
+import java.io.File;
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -23,20 +30,62 @@ import java.util.concurrent.atomic.AtomicInteger;
  * <li><code>jruby.min.runtimes</code>: 
  *  Initial number of runtimes to create and put in the pool. Default is none.
  * <li><code>jruby.max.runtimes</code>: 
- *  Maximum size of the pool. Default is unlimited, in which case new requests 
- *  for an application object will create one if none are available.
+ *  Maximum size of the pool. Default is unlimited. If no runtime is available
+ *  new runtimes are booted in the background (while below the maximum) and 
+ *  requests wait on the pool for a runtime to be booted (or returned).
  * <li><code>jruby.runtime.acquire.timeout</code>: Value (in seconds) 
  *  indicating when a thread will timeout waiting for an application instance 
  *  when no runtimes are available in the pool. Default is 10.0 (seconds), an 
  *  {@link AcquireTimeoutException} is thrown if such a condition occurs.
  * <li><code>jruby.runtime.init.threads</code>: 
- *  Number of threads to use at startup to fill the pool. Default is 4.
+ *  Number of threads to use at startup to fill the pool (as well as the 
+ *  maximum number of runtimes booted concurrently later on). Default is 4.
+ *  All runtimes are booted using these (background) threads, see
+ *  {@link ApplicationBooter}.
  * <li><code>jruby.runtime.init.wait</code>: 
  *  Whether to wait for initialization to complete before the factory is usable.
  *  In case it's a integer value it waits for until given number of application
  *  instances are in the pool. Default is true (waits till at least min runtimes
  *  are initialized).
+ * <li><code>jruby.runtime.pool.order</code>: 
+ *  Order in which (idle) runtimes are handed out from the pool, either 
+ *  <code>fifo</code> (round robin) or <code>lifo</code> (most recently used
+ *  first - keeps a few runtimes "hot" under moderate load while the rest of 
+ *  the pool stays idle and is thus first to be torn down if the pool is 
+ *  elastic). Default is fifo.
+ * <li><code>jruby.runtime.pool.affinity</code>: 
+ *  Whether a (container) thread first tries to reclaim the runtime it used 
+ *  last, before acquiring one from the (shared) pool. Default is false.
+ *  Reclaiming does not lock (nor scan) the pool, it claims the runtime (an
+ *  atomic pool state flip) and leaves it's pool entry to be skipped lazily.
  * </ul>
+ * <p>
+ * Runtimes are torn down in parallel (within a deadline) when the pool gets
+ * destroyed, see {@link ApplicationDestroyer}.
+ * <p>
+ * When request priorities are configured, a runtime being returned (or booted)
+ * is handed to the highest priority waiter first, see {@link RequestPriorities}.
+ * <p>
+ * The pool might be configured to be elastic, in which case a background 
+ * maintainer tears down (surplus) idle runtimes and boots spare runtimes ahead
+ * of demand, see {@link ElasticPoolSizing} :
+ * <ul>
+ * <li><code>jruby.runtime.pool.maintain.interval</code>: How often (in seconds)
+ *  the maintainer checks the pool. Default is 5.0 (seconds).
+ * </ul>
+ * <p>
+ * Runtimes might also get recycled (after a number of requests, an age or heap
+ * growth), see {@link ApplicationRecycler}.
+ * <p>
+ * Runtimes booted into the pool are warmed up (before going into service) if
+ * warm-up requests are configured, see {@link ApplicationWarmUp}.
+ * <p>
+ * Runtimes not returned within the <code>jruby.runtime.checkout.deadline</code>
+ * get quarantined and replaced (in the background) to keep the pool capacity,
+ * see {@link ApplicationWatchdog}.
+ * <p>
+ * A new generation of runtimes might be swapped in without a restart (e.g. to
+ * deploy new application code), see {@link ApplicationGenerations}.
  *
  * @author nicksieger
  */
@@ -48,11 +97,43 @@ public class PoolingRackApplicationFactory extends RackApplicationFactoryDecorat
     protected final Queue<RackApplication> applicationPool = new LinkedList<RackApplication>();
     private Integer initialSize, maximumSize;
     
-    private final AtomicInteger initedApplications = new AtomicInteger(0);
-    private final AtomicInteger createdApplications = new AtomicInteger(0);
+    // which applications are available (sitting idle) in the pool :
+    private final ApplicationPoolStates poolStates = new ApplicationPoolStates(this);
+    
+    protected final AtomicInteger initedApplications = new AtomicInteger(0);
+    protected final AtomicInteger createdApplications = new AtomicInteger(0);
     
     private float acquireTimeout = ACQUIRE_DEFAULT; // in seconds
-    private Semaphore permits;
+    private Permits permits;
+    private boolean lifo; // most recently used application first
+    private RequestPriorities priorities;
+    // (weak) per-thread slot with the last application used (if enabled)
+    private volatile ThreadLocal<Reference<RackApplication>> affinity;
+    
+    private static final float MAINTAIN_INTERVAL_DEFAULT = 5.0f;
+    
+    private final ElasticPoolSizing sizing = new ElasticPoolSizing(this);
+    private float maintainInterval = MAINTAIN_INTERVAL_DEFAULT; // in seconds
+    private ScheduledExecutorService maintainer; // background tasks
+    private volatile boolean destroyed;
+    
+    private final ApplicationBooter booter = new ApplicationBooter();
+    
+    private final ApplicationDestroyer destroyer = new ApplicationDestroyer(this);
+    
+    // requests (holding a permit) waiting on an empty pool and boots for them
+    private final AtomicInteger awaitingApplications = new AtomicInteger(0);
+    private final AtomicInteger bootingApplications = new AtomicInteger(0);
+    private final Object bootSignal = new Object();
+    // (guarded by the boot signal) requests waiting ordered by priority
+    private RequestPriorities.Waiters awaitingWaiters;
+    
+    private final ApplicationRecycler recycler = new ApplicationRecycler(this);
+    
+    private volatile ApplicationWarmUp warmUp;
+    private volatile ApplicationWatchdog watchdog;
+    
+    private final ApplicationGenerations generations = new ApplicationGenerations(this);
 
     public PoolingRackApplicationFactory(RackApplicationFactory delegate) {
         super(delegate);
@@ -62,9 +143,50 @@ public class PoolingRackApplicationFactory extends RackApplicationFactoryDecorat
      * @return the (unmodifiable) pool snapshot
      */
     public Collection<RackApplication> getApplicationPool() {
-        return Collections.unmodifiableCollection(applicationPool);
+        synchronized (applicationPool) {
+            return Collections.unmodifiableCollection( getPooledApplications(applicationPool) );
+        }
+    }
+    
+    /**
+     * @param entries pool entries
+     * @return the (available) applications, skipping entries left behind
+     */
+    protected List<RackApplication> getPooledApplications(final Collection<RackApplication> entries) {
+        final List<RackApplication> apps = new ArrayList<RackApplication>(entries.size());
+        for ( final RackApplication app : entries ) {
+            if ( isApplicationPooled(app) ) apps.add(app);
+        }
+        return apps;
     }
 
+    /**
+     * @return true if the pool hands out the most recently used applications
+     * first (<code>jruby.runtime.pool.order</code> is lifo)
+     */
+    public boolean isLifo() {
+        return lifo;
+    }
+
+    public void setLifo(boolean lifo) {
+        this.lifo = lifo;
+    }
+    
+    /**
+     * @return true if threads reclaim their last used application first 
+     * (<code>jruby.runtime.pool.affinity</code>)
+     */
+    public boolean isAffinity() {
+        return affinity != null;
+    }
+
+    public void setAffinity(boolean affinity) {
+        if ( ! affinity ) this.affinity = null;
+        else if ( this.affinity == null ) {
+            this.affinity = new ThreadLocal<Reference<RackApplication>>();
+        }
+    }
+    
     /**
      * @return <code>jruby.min.runtimes</code>
      */
@@ -105,6 +227,173 @@ public class PoolingRackApplicationFactory extends RackApplicationFactoryDecorat
             ACQUIRE_DEFAULT : acquireTimeout.floatValue();
     }
     
+    /**
+     * @return <code>jruby.runtime.init.threads</code>
+     */
+    public int getInitThreads() {
+        return booter.getThreads();
+    }
+
+    public void setInitThreads(Integer initThreads) {
+        booter.setThreads(initThreads);
+    }
+    
+    /**
+     * @return <code>jruby.runtime.destroy.threads</code>
+     */
+    public Integer getDestroyThreads() {
+        return destroyer.getThreads();
+    }
+
+    public void setDestroyThreads(Integer destroyThreads) {
+        destroyer.setThreads(destroyThreads);
+    }
+
+    /**
+     * @return <code>jruby.runtime.destroy.timeout</code> (in seconds)
+     */
+    public Number getDestroyTimeout() {
+        return destroyer.getTimeout();
+    }
+
+    public void setDestroyTimeout(Number destroyTimeout) {
+        destroyer.setTimeout(destroyTimeout);
+    }
+    
+    /**
+     * @return <code>jruby.runtime.pool.idle.ttl</code> (in seconds)
+     */
+    public Number getIdleTimeToLive() {
+        return sizing.getIdleTimeToLive();
+    }
+
+    public void setIdleTimeToLive(Number idleTimeToLive) {
+        sizing.setIdleTimeToLive(idleTimeToLive);
+    }
+
+    /**
+     * @return <code>jruby.runtime.pool.spare.min</code>
+     */
+    public Integer getMinimumSpareSize() {
+        return sizing.getMinimumSpareSize();
+    }
+
+    public void setMinimumSpareSize(Integer minimumSpareSize) {
+        sizing.setMinimumSpareSize(minimumSpareSize);
+    }
+
+    /**
+     * @return <code>jruby.runtime.pool.spare.max</code>
+     */
+    public Integer getMaximumSpareSize() {
+        return sizing.getMaximumSpareSize();
+    }
+
+    public void setMaximumSpareSize(Integer maximumSpareSize) {
+        sizing.setMaximumSpareSize(maximumSpareSize);
+    }
+    
+    public ElasticPoolSizing getSizing() {
+        return sizing;
+    }
+    
+    /**
+     * @return <code>jruby.runtime.recycle.requests</code>
+     */
+    public Integer getMaximumRequests() {
+        return recycler.getMaximumRequests();
+    }
+
+    public void setMaximumRequests(Integer maximumRequests) {
+        recycler.setMaximumRequests(maximumRequests);
+    }
+
+    /**
+     * @return <code>jruby.runtime.recycle.age</code> (in seconds)
+     */
+    public Number getMaximumAge() {
+        return recycler.getMaximumAge();
+    }
+
+    public void setMaximumAge(Number maximumAge) {
+        recycler.setMaximumAge(maximumAge);
+    }
+
+    /**
+     * @return <code>jruby.runtime.recycle.memory.bytes</code>
+     */
+    public Long getMaximumMemoryGrowth() {
+        return recycler.getMaximumMemoryGrowth();
+    }
+
+    public void setMaximumMemoryGrowth(Long maximumMemoryGrowth) {
+        recycler.setMaximumMemoryGrowth(maximumMemoryGrowth);
+    }
+    
+    public ApplicationRecycler getRecycler() {
+        return recycler;
+    }
+    
+    public ApplicationWarmUp getWarmUp() {
+        return warmUp;
+    }
+
+    public void setWarmUp(ApplicationWarmUp warmUp) {
+        this.warmUp = warmUp;
+    }
+    
+    public ApplicationWatchdog getWatchdog() {
+        return watchdog;
+    }
+
+    public void setWatchdog(ApplicationWatchdog watchdog) {
+        this.watchdog = watchdog;
+    }
+    
+    public ApplicationGenerations getGenerations() {
+        return generations;
+    }
+    
+    /**
+     * @return the current generation (incremented on each successful swap)
+     * @see #swapGeneration()
+     */
+    public int getGeneration() {
+        return generations.getGeneration();
+    }
+    
+    /**
+     * @return <code>jruby.runtime.generation.ready</code>
+     */
+    public Integer getGenerationReadySize() {
+        return generations.getReadySize();
+    }
+
+    public void setGenerationReadySize(Integer generationReadySize) {
+        generations.setReadySize(generationReadySize);
+    }
+    
+    /**
+     * @return <code>jruby.runtime.generation.trigger</code> (resolved file)
+     */
+    public File getGenerationTrigger() {
+        return generations.getTrigger();
+    }
+    
+    /**
+     * @return whether runtimes get recycled
+     */
+    public boolean isRecycling() {
+        return recycler.isRecycling();
+    }
+    
+    /**
+     * @return whether idle runtimes are torn down and spares booted up-front
+     */
+    public boolean isElastic() {
+        return sizing.isElastic();
+    }
+    
     @Override
     protected void doInit() throws Exception {
         super.doInit(); // delegate.init(rackContext);
@@ -118,6 +407,40 @@ public class PoolingRackApplicationFactory extends RackApplicationFactoryDecorat
 
         setInitialSize( config.getInitialRuntimes() );
         setMaximumSize( config.getMaximumRuntimes() );
+        
+        final String order = config.getProperty("jruby.runtime.pool.order");
+        if ( order != null ) setLifo( "lifo".equalsIgnoreCase( order.trim() ) );
+        final String affinity = config.getProperty("jruby.runtime.pool.affinity");
+        if ( affinity != null ) setAffinity( Boolean.valueOf( affinity.trim() ) );
+        
+        Number initThreads = config.getNumberProperty("jruby.runtime.init.threads");
+        if (initThreads == null) { // backwards compatibility with 1.0.x :
+            initThreads = config.getNumberProperty("jruby.runtime.initializer.threads");
+        }
+        setInitThreads( toInteger(initThreads) );
+        setDestroyThreads( toInteger( config.getNumberProperty("jruby.runtime.destroy.threads") ) );
+        setDestroyTimeout( config.getNumberProperty("jruby.runtime.destroy.timeout") );
+        
+        setIdleTimeToLive( config.getNumberProperty("jruby.runtime.pool.idle.ttl") );
+        setMinimumSpareSize( toInteger( config.getNumberProperty("jruby.runtime.pool.spare.min") ) );
+        setMaximumSpareSize( toInteger( config.getNumberProperty("jruby.runtime.pool.spare.max") ) );
+        Number interval = config.getNumberProperty("jruby.runtime.pool.maintain.interval");
+        if ( interval != null ) maintainInterval = interval.floatValue();
+        
+        setMaximumRequests( toInteger( config.getNumberProperty("jruby.runtime.recycle.requests") ) );
+        setMaximumAge( config.getNumberProperty("jruby.runtime.recycle.age") );
+        Number memory = config.getNumberProperty("jruby.runtime.recycle.memory.bytes");
+        setMaximumMemoryGrowth( memory == null ? null : memory.longValue() );
+        
+        setWarmUp( ApplicationWarmUp.configure( getContext() ) );
+        setWatchdog( ApplicationWatchdog.configure( getContext() ) );
+        setGenerationReadySize( toInteger( config.getNumberProperty("jruby.runtime.generation.ready") ) );
+        final String trigger = config.getProperty("jruby.runtime.generation.trigger");
+        if ( trigger != null && trigger.trim().length() > 0 ) {
+            generations.setTrigger( ApplicationWarmUp.resolveFile(getContext(), trigger.trim()) );
+        }
+        priorities = RequestPriorities.configure( getContext() );
+        awaitingWaiters = priorities == null ? null : priorities.newWaiters();
 
         log( RackLogger.INFO, "using "+ // using 4:8 runtime pool
                 ( initialSize == null ? "" : initialSize ) + ":" + 
@@ -125,9 +448,44 @@ public class PoolingRackApplicationFactory extends RackApplicationFactoryDecorat
                 " runtime pool with acquire timeout of " + 
                 acquireTimeout + " seconds" );
 
+        if ( isElastic() ) {
+            log( RackLogger.INFO, "elastic runtime pool with " + 
+                ( getMinimumSpareSize() == null ? "" : getMinimumSpareSize() ) + ":" + 
+                ( getMaximumSpareSize() == null ? "" : getMaximumSpareSize() ) +
+                " spare runtimes and idle runtime ttl of " + 
+                ( getIdleTimeToLive() == null ? "-" : getIdleTimeToLive() ) + " seconds" );
+        }
+        
+        if ( isRecycling() ) {
+            log( RackLogger.INFO, "recycling runtimes after " + 
+                ( getMaximumRequests() == null ? "-" : getMaximumRequests() ) + " requests, " +
+                ( getMaximumAge() == null ? "-" : getMaximumAge() ) + " seconds or " +
+                ( getMaximumMemoryGrowth() == null ? "-" : getMaximumMemoryGrowth() ) + " bytes of heap growth" );
+        }
+        
         fillInitialPool();
         RuntimeException error = getInitError();
         if ( error != null ) throw error; // an init thread failed
+        
+        if ( isElastic() ) startMaintainer();
+        if ( watchdog != null ) startWatchdog();
+        if ( generations.getTrigger() != null ) startGenerationWatch();
+        generations.register();
+        recycler.start();
+    }
+
+    /**
+     * Returns an application instance from the pool (tracking it's checkout
+     * if a deadline is set).
+     * @see #getApplicationImpl()
+     */
+    @Override
+    public RackApplication getApplication() throws RackException {
+        final RackApplication app = super.getApplication();
+        destroyer.checkOut();
+        final ApplicationWatchdog watchdog = this.watchdog;
+        if ( watchdog != null ) watchdog.checkOut(app);
+        return app;
     }
 
     /**
@@ -141,60 +499,273 @@ public class PoolingRackApplicationFactory extends RackApplicationFactoryDecorat
 
     /**
      * Returns an application instance from the pool.
-     * If no instances in pool attempts to wait a specified timeout of seconds.
-     * Creates a new instance on demand if the pool is not limited with an
-     * upper maximum (or the upper bound has not been reached yet).
+     * If no instances in pool attempts to wait a specified timeout of seconds
+     * (the timeout applies to the whole acquisition, permit included) while
+     * new instances get booted in the background (if the upper bound has not
+     * been reached yet).
      * @see RackApplicationFactory#getApplication() 
      */
     @Override
     protected RackApplication getApplicationImpl() 
         throws RackInitializationException, AcquireTimeoutException {
         
-        RackApplication app = null;
-        final boolean permit = acquireApplicationPermit();
+        final long deadline = getAcquireDeadline();
+        final boolean permit = acquireApplicationPermit(deadline);
+        RackApplication app = reclaimApplication();
+        if ( app != null ) return app; // fast path - thread's last app
         // if a permit is gained we can retrieve an app from the pool
         synchronized (applicationPool) {
-            if ( ! applicationPool.isEmpty() ) {
-                app = applicationPool.remove();
-            }
-            else if ( permit && ( initialSize != null && 
+            app = takeApplicationFromPool();
+            if ( app == null && permit && ( initialSize != null && 
                     initialSize > initedApplications.get() ) ) {
                 // pool is empty but we still gained a permit for an app !
                 // could only happen if the initialization threads are still 
                 // running (and we've been configured to not wait till all 
                 // 'initial' applications are put to the pool on #init())
-                while (true) { // thus we'll wait for another pool put ...
+                do { // thus we'll wait for another pool put ...
                     waitForApplication();
-                    if ( ! applicationPool.isEmpty() ) break;
+                    app = takeApplicationFromPool();
                 }
-                app = applicationPool.remove();
+                while ( app == null && initialSize > initedApplications.get() );
             }
         }
         
         if ( app != null ) return app;
-        // NOTE: for apps that take a long time to boot simply set values
-        // initial == maximum to avoid creating an application on demand
-        if ( ! permit || ( maximumSize == null || maximumSize > createdApplications.get() ) ) {
-            log(RackLogger.INFO, "pool was empty - getting new application instance");
-            // we'll try to put it "back" to pool from finishedWithApplication(app)
-            return createApplication(true);
+        return createApplicationOnDemand(permit, deadline);
+    }
+    
+    /**
+     * @return the next application (depending on the pool order) or null if 
+     * none is available, entries of claimed applications are dropped
+     */
+    private RackApplication takeApplicationFromPool() {
+        final LinkedList<RackApplication> pool = (LinkedList<RackApplication>) applicationPool;
+        while ( ! pool.isEmpty() ) {
+            // applications are always added at the tail (head is the oldest one)
+            final RackApplication app = lifo ? pool.removeLast() : pool.removeFirst();
+            if ( claimPolledApplication(app) ) return app;
+        }
+        return null;
+    }
+    
+    /**
+     * Reclaims the application last used by the current thread (if affinity 
+     * is enabled and the application is still sitting idle in the pool).
+     * The application is claimed without locking the pool (it's entry is left
+     * in the pool and skipped once polled).
+     * @return the reclaimed application or null
+     */
+    protected RackApplication reclaimApplication() {
+        final ThreadLocal<Reference<RackApplication>> affinity = this.affinity;
+        if ( affinity == null ) return null;
+        final Reference<RackApplication> last = affinity.get();
+        final RackApplication app = last == null ? null : last.get();
+        if ( app != null && removeApplicationFromPool(app) ) return app;
+        return null;
+    }
+    
+    /**
+     * Remember the application (being returned) as the current thread's last.
+     * @param app
+     */
+    protected void rememberApplication(final RackApplication app) {
+        final ThreadLocal<Reference<RackApplication>> affinity = this.affinity;
+        if ( affinity == null ) return;
+        final Reference<RackApplication> last = affinity.get();
+        if ( last == null || last.get() != app ) {
+            affinity.set( new WeakReference<RackApplication>(app) );
+        }
+    }
+    
+    /**
+     * Called when there's no application available in the pool.
+     * Waits (at most the acquire timeout) for an application to become 
+     * available while new applications are booted in the background (the 
+     * upper bound permitting, if any).
+     * @param permit whether an application permit has been acquired
+     * @param deadline the acquire deadline (in millis)
+     * @return a new (initialized) or a pooled application
+     * @see #getAcquireDeadline()
+     */
+    protected RackApplication createApplicationOnDemand(final boolean permit, final long deadline)
+        throws RackInitializationException, AcquireTimeoutException {
+        try {
+            return awaitApplication(deadline);
+        }
+        catch (RuntimeException e) {
+            if ( permit ) releaseApplicationPermit();
+            throw e;
         }
-        
-        // NOTE: getting here means something is wrong (app == null) :
-        throw new IllegalStateException("retrieved a null from the pool, " + 
-                "please check the log for previous initialization errors");
     }
+    
+    /**
+     * Waits for an application to be returned (or put) to the pool, growing
+     * the pool (in the background) for the requests waiting.
+     * @param deadline the acquire deadline (in millis)
+     * @return an application taken from the pool
+     * @throws AcquireTimeoutException if none is available till the deadline
+     */
+    private RackApplication awaitApplication(final long deadline) 
+        throws AcquireTimeoutException {
+        awaitingApplications.incrementAndGet();
+        try {
+            synchronized (bootSignal) {
+                final RequestPriorities.Waiters waiters = awaitingWaiters;
+                final RequestPriorities.Waiter waiter = waiters == null ? null : waiters.add();
+                try {
+                    long remaining;
+                    while (true) {
+                        // with priorities only the waiter next in line polls :
+                        if ( waiter == null || waiters.peek() == waiter ) {
+                            final RackApplication app = pollApplicationFromPool();
+                            if ( app != null ) {
+                                if ( waiter != null ) waiters.poll();
+                                return app;
+                            }
+                        }
+                        growApplicationPool(); // (again) in case a boot failed
+                        remaining = deadline - System.currentTimeMillis();
+                        if ( remaining <= 0 ) break;
+                        bootSignal.wait(remaining);
+                    }
+                }
+                finally {
+                    if ( waiter != null ) {
+                        waiters.remove(waiter); // unless served
+                        // next in line needs to (re-)check the pool :
+                        if ( ! waiters.isEmpty() ) bootSignal.notifyAll();
+                    }
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AcquireTimeoutException("could not acquire application", e);
+        }
+        finally {
+            awaitingApplications.decrementAndGet();
+        }
+        final String message = "could not acquire application" +
+                " within " + acquireTimeout + " seconds";
+        log(RackLogger.INFO, message + " (" + bootingApplications.get() + " applications booting)");
+        throw new AcquireTimeoutException(message);
+    }
+    
+    /**
+     * Boots new applications (in the background) for requests waiting on an
+     * empty pool, at most <code>jruby.runtime.init.threads</code> applications
+     * are booted concurrently and the pool maximum is never exceeded.
+     */
+    private void growApplicationPool() {
+        while ( ! destroyed ) {
+            final int booting = bootingApplications.get();
+            // pool pressure - waiting requests not yet served by a boot :
+            if ( booting >= awaitingApplications.get() || booting >= booter.getThreads() ) return;
+            final RackApplication app;
+            synchronized (this) { // createApplication is synchronized as well
+                if ( maximumSize != null && createdApplications.get() >= maximumSize ) return;
+                if ( ! bootingApplications.compareAndSet(booting, booting + 1) ) continue;
+                try {
+                    app = createApplication(false);
+                }
+                catch (RuntimeException e) {
+                    bootingApplications.decrementAndGet();
+                    createdApplications.decrementAndGet();
+                    throw e;
+                }
+            }
+            log(RackLogger.INFO, "pool was empty - booting new application instance (in background)");
+            final boolean booted = bootInBackground(new Runnable() {
 
+                public void run() {
+                    try {
+                        if ( initApplication(app) && ! putApplicationToPool(app) ) {
+                            tearDownApplication(app);
+                        }
+                    }
+                    finally {
+                        bootingApplications.decrementAndGet();
+                        signalApplicationAvailable();
+                    }
+                }
+
+            });
+            if ( ! booted ) { // destroyed meanwhile
+                bootingApplications.decrementAndGet();
+                tearDownApplication(app);
+                return;
+            }
+        }
+    }
+    
     /**
+     * Runs a boot task using the (bounded) boot threads.
+     * @param task
+     * @return false if the pool has been destroyed (the task did not run)
+     * @see ApplicationBooter#boot(Runnable)
+     */
+    protected boolean bootInBackground(final Runnable task) {
+        return booter.boot(task);
+    }
+    
+    /**
+     * Waits (at most the given time) for an application to be returned (or
+     * put) to the pool.
+     * @param timeout (in millis)
+     * @throws InterruptedException
+     */
+    void awaitApplicationReturned(final long timeout) throws InterruptedException {
+        awaitingApplications.incrementAndGet();
+        try {
+            synchronized (bootSignal) {
+                bootSignal.wait(timeout);
+            }
+        }
+        finally {
+            awaitingApplications.decrementAndGet();
+        }
+    }
+    
+    /**
+     * Wakes up requests waiting for an application (if any).
+     */
+    protected void signalApplicationAvailable() {
+        if ( awaitingApplications.get() == 0 ) return;
+        synchronized (bootSignal) {
+            bootSignal.notifyAll();
+        }
+    }
+    
+    /**
+     * @return the next application removed from the pool (null if empty)
+     */
+    protected RackApplication pollApplicationFromPool() {
+        synchronized (applicationPool) {
+            return takeApplicationFromPool();
+        }
+    }
+
+    /**
+     * @return the time (in millis) till which an application acquired now 
+     * needs to be handed out (based on the acquire timeout)
+     */
+    protected long getAcquireDeadline() {
+        return System.currentTimeMillis() + (long) (acquireTimeout * 1000);
+    }
+    
+    /**
+     * @param deadline the acquire deadline (in millis)
      * @return true if a permit is acquired, false if no permit necessary
      * @throws TimeoutException if a permit can not be acquired
+     * @see #getAcquireDeadline()
      */
-    protected boolean acquireApplicationPermit() throws AcquireTimeoutException {
+    protected boolean acquireApplicationPermit(final long deadline) 
+        throws AcquireTimeoutException {
         // NOTE: permits are only used if a pool maximum is specified !
         if (permits != null) {
             boolean acquired = false;
             try {
-                final long timeout = (long) (acquireTimeout * 1000);
+                final long timeout = deadline - System.currentTimeMillis();
                 acquired = permits.tryAcquire(timeout, TimeUnit.MILLISECONDS);
                 // if timeout <= 0 to zero, the method will not wait ...
             }
@@ -214,6 +785,36 @@ public class PoolingRackApplicationFactory extends RackApplicationFactoryDecorat
         return false; // no maximum limit - no permit needed
     }
     
+    /**
+     * Releases an application permit (if permits are used).
+     * @see #acquireApplicationPermit(long)
+     */
+    protected void releaseApplicationPermit() {
+        if (permits != null) {
+            permits.release();
+        }
+    }
+    
+    /**
+     * Creates the permits used to limit the number of applications handed out
+     * from the pool (only used when a pool maximum is specified).
+     * @param maximumSize
+     * @return (fair) semaphore backed permits or priority aware permits if request
+     * priorities are configured
+     */
+    protected Permits createApplicationPermits(final int maximumSize) {
+        if ( priorities != null ) return priorities.newPermits(maximumSize);
+        return new Permits.SemaphorePermits(maximumSize, true);
+    }
+    
+    /**
+     * @return the request priorities (null if not configured)
+     * @see RequestPriorities
+     */
+    public RequestPriorities getPriorities() {
+        return priorities;
+    }
+    
     /**
      * @see RackApplicationFactory#finishedWithApplication(RackApplication) 
      */
@@ -224,36 +825,54 @@ public class PoolingRackApplicationFactory extends RackApplicationFactoryDecorat
             log(RackLogger.WARN, "ignoring null application");
             return;
         }
+        if ( checkInApplication(app) ) return; // quarantined (and replaced)
+        if ( recycleOnReturn(app) ) { // torn down (replacement in the pool)
+            releaseApplicationPermit(); return;
+        }
+        rememberApplication(app);
         synchronized (applicationPool) {
-            if (maximumSize != null && applicationPool.size() >= maximumSize) {
-                return;
-            }
-            if (applicationPool.contains(app)) { 
-                return;
-            }
             // return app to pool and signal it's usable to acquire :
-            applicationPool.add(app);
-            if (permits != null) {
-                permits.release();
-            }
+            if ( ! addApplicationToPool(app) ) return; // full (or pooled)
+            releaseApplicationPermit();
         }
+        signalApplicationAvailable();
     }
 
     /**
+     * Tears down all pooled applications in parallel and waits (at most till 
+     * the <code>jruby.runtime.destroy.timeout</code> deadline) for applications
+     * still in use to be returned, these get torn down as well.
+     * @see ApplicationDestroyer
      * @see RackApplicationFactory#destroy() 
      */
     @Override
     public void destroy() {
-        synchronized (applicationPool) {
-            for (RackApplication app : applicationPool) {
-                getDelegate().finishedWithApplication(app);
-                // DefaultRackAppFactory: app.destroy();
-            }
-            applicationPool.clear();
+        destroyer.start(); // before marking as destroyed
+        stopMaintainer();
+        final ApplicationWatchdog watchdog = this.watchdog;
+        if ( watchdog != null ) watchdog.destroy( getDelegate() );
+        generations.unregister();
+        
+        for ( final RackApplication app : drainApplicationPool() ) {
+            destroyer.tearDown(app);
         }
+        destroyer.await();
         super.destroy(); // delegate.destroy();
     }
     
+    /**
+     * Removes all (idle) applications from the pool.
+     * @return the removed applications
+     */
+    protected Collection<RackApplication> drainApplicationPool() {
+        synchronized (applicationPool) {
+            final List<RackApplication> apps = new ArrayList<RackApplication>(applicationPool.size());
+            RackApplication app;
+            while ( ( app = takeApplicationFromPool() ) != null ) apps.add(app);
+            return apps;
+        }
+    }
+    
     /**
      * Fills the initial pool with initialized application instances.
      * 
@@ -261,7 +880,7 @@ public class PoolingRackApplicationFactory extends RackApplicationFactoryDecorat
      * leakage when the web application is undeployed from the server.
      */
     public void fillInitialPool() throws RackInitializationException {
-        permits = maximumSize != null ? new Semaphore(maximumSize, true) : null;
+        permits = maximumSize != null ? createApplicationPermits(maximumSize) : null;
         if (initialSize != null) { // otherwise pool filled on demand
             Queue<RackApplication> apps = createApplications();
             launchInitializerThreads(apps);
@@ -283,11 +902,9 @@ public class PoolingRackApplicationFactory extends RackApplicationFactoryDecorat
      * @param apps the (initial) instances (for the pool) to be initialized
      */
     protected void launchInitialization(final Queue<RackApplication> apps) {
-        Integer initThreads = getConfig().getNumInitializerThreads();
-        if ( initThreads == null ) initThreads = 4; // quad-core baby
-        
-        for (int i = 0; i < initThreads; i++) {
-            new Thread(new Runnable() {
+        final int workers = Math.min(booter.getThreads(), apps.size());
+        for (int i = 0; i < workers; i++) {
+            bootInBackground(new Runnable() {
 
                 public void run() {
                     while (true) {
@@ -296,15 +913,18 @@ public class PoolingRackApplicationFactory extends RackApplicationFactoryDecorat
                             if ( apps.isEmpty() ) break;
                             app = apps.remove();
                         }
+                        if ( destroyed ) { // factory got destroyed meanwhile
+                            tearDownApplication(app); continue;
+                        }
                         if ( ! initAndPutApplicationToPool(app) ) break;
                     }
                 }
                 
-            }, "JRuby-Rack-App-Init-" + i).start();
+            });
         }
     }
     
-    private boolean initAndPutApplicationToPool(final RackApplication app) {
+    protected boolean initAndPutApplicationToPool(final RackApplication app) {
         try {
             app.init();
         }
@@ -322,6 +942,7 @@ public class PoolingRackApplicationFactory extends RackApplicationFactoryDecorat
             // we're put a null to make sure we get notified :
             return putApplicationToPool(null);
         }
+        warmUpApplication(app);
         return putApplicationToPool(app);
     }
     
@@ -333,25 +954,51 @@ public class PoolingRackApplicationFactory extends RackApplicationFactoryDecorat
         return apps;
     }
     
-    private synchronized RackApplication createApplication(final boolean init) 
+    protected synchronized RackApplication createApplication(final boolean init) 
         throws RackInitializationException {
         createdApplications.incrementAndGet();
         if ( init ) initedApplications.incrementAndGet();
-        return init ? getDelegate().getApplication() : getDelegate().newApplication();
+        final RackApplication app = init ? 
+            getDelegate().getApplication() : getDelegate().newApplication();
+        generations.track(app);
+        recycler.track(app);
+        return app;
+    }
+    
+    /**
+     * Creates (without initializing) an application of a new generation 
+     * unless the pool maximum has been reached.
+     * @param generation
+     * @return the created application or null if the pool is full
+     */
+    synchronized RackApplication createApplication(final ApplicationGenerations.Generation generation) {
+        if ( isPoolFull() ) return null;
+        createdApplications.incrementAndGet();
+        final RackApplication app;
+        try {
+            app = generation.newApplication( getDelegate() );
+        }
+        catch (RuntimeException e) {
+            createdApplications.decrementAndGet(); throw e;
+        }
+        generations.track(app, generation);
+        recycler.track(app);
+        return app;
     }
     
     /** Called when a thread initialized an application. */
-    private boolean putApplicationToPool(final RackApplication app) {
+    protected boolean putApplicationToPool(final RackApplication app) {
         synchronized (applicationPool) {
-            if (maximumSize != null && applicationPool.size() >= maximumSize) {
-                return false;
+            // a null app is "put" on initialization failures to notify waiters
+            if ( app != null ) {
+                if ( ! addApplicationToPool(app) ) return false;
+                log(RackLogger.INFO, "added application to pool, size now = " + getApplicationPoolSize());
             }
-            applicationPool.add(app);
-            log(RackLogger.INFO, "added application to pool, size now = " + applicationPool.size());
             initedApplications.incrementAndGet();
             // in case we're waiting from waitForNextAvailable() :
             applicationPool.notifyAll();
         }
+        signalApplicationAvailable();
         return true;
     }
     
@@ -360,7 +1007,9 @@ public class PoolingRackApplicationFactory extends RackApplicationFactoryDecorat
         final int waitFor = getInitialPoolSizeWait();
         while (true) {
             synchronized (applicationPool) {
-                if ( applicationPool.size() >= waitFor ) break;
+                if ( getApplicationPoolSize() >= waitFor ) break;
+                // failed initializations count as well (as they're done) :
+                if ( initedApplications.get() >= waitFor ) break;
                 waitForApplication();
             }
         }
@@ -379,11 +1028,377 @@ public class PoolingRackApplicationFactory extends RackApplicationFactoryDecorat
         }
     }
     
+    /**
+     * @return the number of (idle) applications in the pool
+     */
+    protected int getApplicationPoolSize() {
+        return poolStates.size();
+    }
+    
+    /**
+     * Removes the (longest) idle application from the pool.
+     * @param idleSince only remove the application if it's been idle (sitting 
+     * in the pool) since the given time (in milliseconds)
+     * @return the removed application or null
+     */
+    protected RackApplication removeIdleApplication(final long idleSince) {
+        synchronized (applicationPool) {
+            RackApplication app;
+            while ( ( app = applicationPool.peek() ) != null && ! isApplicationPooled(app) ) {
+                applicationPool.remove(); // drop an entry of a claimed application
+                claimPolledApplication(app);
+            }
+            if ( app == null || getIdleSince(app) > idleSince ) return null;
+            applicationPool.remove();
+            return claimPolledApplication(app) ? app : null;
+        }
+    }
+    
+    /**
+     * Track whether an application is idle (sitting in the pool).
+     * @param app
+     * @param idle
+     * @see ElasticPoolSizing#setIdle(RackApplication, boolean)
+     */
+    protected void setIdle(final RackApplication app, final boolean idle) {
+        sizing.setIdle(app, idle);
+    }
+    
+    /**
+     * @param app
+     * @return since when an application has been idle (0 if unknown)
+     */
+    protected long getIdleSince(final RackApplication app) {
+        return sizing.getIdleSince(app);
+    }
+    
+    /**
+     * Maintains an elastic pool, this is performed periodically (in the 
+     * background) but might be called directly as well.
+     * @see ElasticPoolSizing#maintain()
+     */
+    public void maintainPool() {
+        sizing.maintain();
+    }
+    
+    /**
+     * @return true if no more applications might be created (as the pool
+     * maximum has been reached)
+     */
+    boolean isPoolFull() {
+        return maximumSize != null && createdApplications.get() >= maximumSize;
+    }
+    
+    boolean bootSpareApplication() {
+        final RackApplication app = bootApplication(true);
+        if ( app == null ) return false;
+        if ( ! putApplicationToPool(app) ) {
+            tearDownApplication(app);
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Creates and initializes a new application (outside of the pool).
+     * @param limited whether to respect the pool maximum
+     * @return the initialized application or null (if not created or failed)
+     */
+    RackApplication bootApplication(final boolean limited) {
+        final RackApplication app;
+        synchronized (this) { // createApplication is synchronized as well
+            if ( limited && maximumSize != null && 
+                 createdApplications.get() >= maximumSize ) {
+                return null;
+            }
+            app = createApplication(false);
+        }
+        return initApplication(app) ? app : null;
+    }
+    
+    /**
+     * Initializes (and warms up) a created application (outside of the pool).
+     * @param app
+     * @return false if initialization failed (the application is torn down)
+     */
+    boolean initApplication(final RackApplication app) {
+        try {
+            app.init();
+        }
+        catch (RuntimeException e) {
+            // NOTE: not an initialization error (setInitError) - pool is usable
+            log(RackLogger.WARN, "unable to initialize application (in background)", e);
+            tearDownApplication(app);
+            return false;
+        }
+        warmUpApplication(app);
+        if ( destroyed ) { // factory got destroyed meanwhile
+            tearDownApplication(app);
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Tears down an application (that is no longer in the pool).
+     * @param app 
+     */
+    protected void tearDownApplication(final RackApplication app) {
+        createdApplications.decrementAndGet();
+        forgetApplication(app);
+        getDelegate().finishedWithApplication(app);
+    }
+    
+    private synchronized ScheduledExecutorService getMaintainer() {
+        if ( maintainer == null && ! destroyed ) {
+            // a generation swap (triggered) runs aside periodic maintenance :
+            final int threads = generations.getTrigger() != null ? 2 : 1;
+            maintainer = Executors.newScheduledThreadPool(threads, new ThreadFactory() {
+
+                private final AtomicInteger index = new AtomicInteger(0);
+
+                public Thread newThread(Runnable task) {
+                    final int i = index.getAndIncrement();
+                    final Thread thread = new Thread(task, "JRuby-Rack-Pool-Maintainer" + ( i > 0 ? "-" + i : "" ));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+
+            });
+        }
+        return maintainer;
+    }
+    
+    private void startMaintainer() {
+        final ScheduledExecutorService maintainer = getMaintainer();
+        if ( maintainer == null ) return;
+        final long interval = (long) (maintainInterval * 1000);
+        maintainer.scheduleWithFixedDelay(new Runnable() {
+            
+            public void run() {
+                try {
+                    maintainPool();
+                }
+                catch (RuntimeException e) {
+                    log(RackLogger.WARN, "pool maintenance failed", e);
+                }
+            }
+            
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+    
+    private void startWatchdog() {
+        final ScheduledExecutorService maintainer = getMaintainer();
+        if ( maintainer == null ) return;
+        final long interval = watchdog.getCheckInterval();
+        maintainer.scheduleWithFixedDelay(new Runnable() {
+            
+            public void run() {
+                try {
+                    replaceWedgedApplications();
+                }
+                catch (RuntimeException e) {
+                    log(RackLogger.WARN, "checking for wedged applications failed", e);
+                }
+            }
+            
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Quarantines applications checked out for longer than the deadline and
+     * boots their replacements, this is performed periodically (in the 
+     * background) if a <code>jruby.runtime.checkout.deadline</code> is set.
+     * @return the number of applications quarantined
+     */
+    public int replaceWedgedApplications() {
+        final ApplicationWatchdog watchdog = this.watchdog;
+        if ( watchdog == null ) return 0;
+        final List<RackApplication> wedged = watchdog.quarantineWedged();
+        for ( final RackApplication app : wedged ) {
+            // no longer accounted as part of the pool :
+            destroyer.abandon();
+            createdApplications.decrementAndGet();
+            forgetApplication(app);
+            // the replacement takes over the wedged application's permit :
+            final RackApplication replacement = bootApplication(true);
+            if ( replacement != null && ! putApplicationToPool(replacement) ) {
+                tearDownApplication(replacement);
+            }
+            releaseApplicationPermit();
+        }
+        return wedged.size();
+    }
+    
+    /**
+     * Called when an application is being returned.
+     * @param app
+     * @return true if the application has been quarantined (thus replaced) 
+     * or the pool is being destroyed and the application got torn down
+     * @see ApplicationWatchdog
+     */
+    protected boolean checkInApplication(final RackApplication app) {
+        final ApplicationWatchdog watchdog = this.watchdog;
+        if ( watchdog != null && watchdog.checkIn(app) ) {
+            log(RackLogger.INFO, "quarantined application returned, tearing it down");
+            getDelegate().finishedWithApplication(app);
+            return true;
+        }
+        return destroyer.checkIn(app); // torn down if being destroyed
+    }
+    
+    /**
+     * @return true once the pool is being (or got) destroyed
+     */
+    boolean isDestroyed() {
+        return destroyed;
+    }
+    
+    /**
+     * Stops the background pool maintenance (and runtime recycling).
+     */
+    protected synchronized void stopMaintainer() {
+        destroyed = true;
+        if ( maintainer != null ) {
+            maintainer.shutdownNow();
+            maintainer = null;
+        }
+        booter.shutdown(); // booting applications get torn down
+    }
+    
+    /**
+     * Warms up an initialized application (before it's put into the pool).
+     * @param app
+     * @see ApplicationWarmUp
+     */
+    protected void warmUpApplication(final RackApplication app) {
+        final ApplicationWarmUp warmUp = this.warmUp;
+        if ( warmUp != null ) warmUp.warmUp(app);
+    }
+    
+    /**
+     * Removes (claims) the given application from the pool.
+     * This is a constant time operation that does not lock the pool, the 
+     * application's entry is left in the pool and skipped once polled.
+     * @param app
+     * @return true if the application was removed (was idle in the pool)
+     */
+    protected boolean removeApplicationFromPool(final RackApplication app) {
+        return poolStates.claim(app);
+    }
+    
+    /**
+     * Adds (returns) an application to the pool unless the pool is full.
+     * An application claimed while it's entry is still in the pool is not
+     * queued again, the entry is re-used.
+     * NOTE: the caller needs to hold the (non-concurrent) pool's lock !
+     * Applications of a previous generation are not added (are retired).
+     * @param app
+     * @return false if the pool is full or the application is already pooled
+     * @see #queueApplication(RackApplication)
+     */
+    protected boolean addApplicationToPool(final RackApplication app) {
+        if ( generations.isRetired(app) ) return false;
+        return poolStates.add(app);
+    }
+    
+    /**
+     * Appends an (available) application entry to the pool (queue).
+     * @param app
+     */
+    protected void queueApplication(final RackApplication app) {
+        applicationPool.add(app);
+    }
+    
+    /**
+     * Claims an application whose entry has just been removed from the pool.
+     * @param app
+     * @return true if claimed, false if the entry was left behind by an 
+     * application claimed (or torn down) meanwhile
+     */
+    protected boolean claimPolledApplication(final RackApplication app) {
+        return poolStates.claimPolled(app);
+    }
+    
+    /**
+     * @param app
+     * @return true if the application is sitting (idle) in the pool
+     */
+    protected boolean isApplicationPooled(final RackApplication app) {
+        return poolStates.isAvailable(app);
+    }
+    
+    /**
+     * Called when an application is being returned, applications of a 
+     * previous generation are torn down right away.
+     * @param app the returned application
+     * @return true if the application has been torn down (instead of being 
+     * returned to the pool) as it's replacement is already in place
+     * @see ApplicationRecycler#recycleOnReturn(RackApplication)
+     */
+    protected boolean recycleOnReturn(final RackApplication app) {
+        if ( isRetired(app) ) { // belongs to a previous generation
+            log(RackLogger.INFO, "application of a previous generation returned, tearing it down");
+            tearDownApplication(app); return true;
+        }
+        return recycler.recycleOnReturn(app);
+    }
+    
+    /**
+     * Boots a new generation of applications and swaps it into the pool.
+     * @return true if the new generation took over
+     * @see ApplicationGenerations#swapGeneration()
+     */
+    public boolean swapGeneration() {
+        return generations.swapGeneration();
+    }
+    
+    /**
+     * @param app
+     * @return true if the application belongs to a previous generation
+     */
+    protected boolean isRetired(final RackApplication app) {
+        return generations.isRetired(app);
+    }
+    
+    private void startGenerationWatch() {
+        final ScheduledExecutorService maintainer = getMaintainer();
+        if ( maintainer == null ) return;
+        final long interval = (long) (maintainInterval * 1000);
+        maintainer.scheduleWithFixedDelay(new Runnable() {
+            
+            public void run() {
+                if ( ! generations.isTriggered() ) return;
+                log(RackLogger.INFO, "generation trigger touched: " + generations.getTrigger());
+                // swapping takes a while - runs aside (periodic) pool maintenance :
+                maintainer.execute(new Runnable() {
+                    public void run() { generations.swapGeneration(); }
+                });
+            }
+            
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Stop tracking (statistics and generation) for the given application.
+     * @param app 
+     */
+    protected void forgetApplication(final RackApplication app) {
+        if ( app == null ) return;
+        recycler.forget(app);
+        generations.forget(app);
+        poolStates.forget(app); // an entry left in the pool gets skipped
+    }
+    
+    private static Integer toInteger(final Number number) {
+        return number == null ? null : number.intValue();
+    }
+    
     /**
      * How many (initial) application instances to wait for becoming available 
      * in the pool (less or equal than zero means not to wait at all).
      */
-    private int getInitialPoolSizeWait() {
+    protected int getInitialPoolSizeWait() {
         Number waitNum = getConfig().getNumberProperty("jruby.runtime.init.wait");
         if ( waitNum != null ) {
             int wait = waitNum.intValue();
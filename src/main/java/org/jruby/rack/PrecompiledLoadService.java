@@ -0,0 +1,94 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack;
+
+import java.io.File;
+
+import org.jruby.Ruby;
+import org.jruby.RubyInstanceConfig;
+import org.jruby.runtime.load.LoadService;
+import org.jruby.runtime.load.LoadServiceResource;
+
+/**
+ * A load service aware of Ruby scripts compiled ahead of time (at deploy time)
+ * into JVM bytecode, these are <code>.class</code> files next to the
+ * <code>.rb</code> sources (see <code>jruby/rack/aot.rb</code> for the build
+ * step). A <code>require</code> prefers a precompiled script, thus runtimes
+ * do not need to parse (and interpret) the sources on boot.
+ * <ul>
+ * <li><code>jruby.rack.aot</code>: Whether runtimes should load precompiled
+ *  scripts. If true a precompiled script is loaded unless it's source (on the
+ *  file system) has been modified since it has been compiled, if false
+ *  precompiled scripts are ignored (their sources are loaded). Default is
+ *  unset: precompiled scripts are loaded whenever present (as JRuby does).
+ * </ul>
+ *
+ * @see DefaultRackApplicationFactory
+ */
+public class PrecompiledLoadService extends LoadService {
+
+    public static final String AOT = "jruby.rack.aot";
+
+    private static final String CLASS = ".class", SOURCE = ".rb";
+
+    private final Boolean aot;
+
+    public PrecompiledLoadService(Ruby runtime, Boolean aot) {
+        super(runtime);
+        this.aot = aot;
+    }
+
+    /**
+     * @param config
+     * @return <code>jruby.rack.aot</code> (null if not set)
+     */
+    public static Boolean getAot(final RackConfig config) {
+        return config.getBooleanProperty(AOT);
+    }
+
+    /**
+     * @param aot
+     * @return a creator for (runtime) load services
+     */
+    public static RubyInstanceConfig.LoadServiceCreator creator(final Boolean aot) {
+        return new RubyInstanceConfig.LoadServiceCreator() {
+            public LoadService create(Ruby runtime) {
+                return new PrecompiledLoadService(runtime, aot);
+            }
+        };
+    }
+
+    /**
+     * @return whether precompiled scripts are loaded (null for the default)
+     */
+    public Boolean getAot() {
+        return aot;
+    }
+
+    @Override
+    protected LoadServiceResource tryResourceFromLoadPath(String name, String entry) {
+        final LoadServiceResource resource = super.tryResourceFromLoadPath(name, entry);
+        if ( resource == null || aot == null || ! name.endsWith(CLASS) ) return resource;
+        // returning null continues with the source (in the same entry) :
+        final File compiled = resource.getPath();
+        if ( compiled == null ) return resource;
+        final String path = compiled.getPath();
+        final File source = new File(path.substring(0, path.length() - CLASS.length()) + SOURCE);
+        if ( ! source.isFile() ) return resource; // compiled only (no source)
+        if ( ! aot ) return null;
+        // a source modified since compiled (e.g. patched in place) wins :
+        return source.lastModified() > compiled.lastModified() ? null : resource;
+    }
+
+    @Override
+    protected LoadServiceResource tryResourceFromJarURLWithLoadPath(String name, String entry) {
+        final LoadServiceResource resource = super.tryResourceFromJarURLWithLoadPath(name, entry);
+        if ( resource == null || aot == null || aot || ! name.endsWith(CLASS) ) return resource;
+        // packed sources can not change - only ignore precompiled ones if asked to :
+        final String source = name.substring(0, name.length() - CLASS.length()) + SOURCE;
+        return super.tryResourceFromJarURLWithLoadPath(source, entry) == null ? resource : null;
+    }
+
+}
@@ -18,6 +18,7 @@ import java.util.Enumeration;
  */
 public interface RackEnvironment {
     final String EXCEPTION = "jruby.rack.exception";
+    final String APPLICATION = "jruby.rack.application";
     final String DYNAMIC_REQS_ONLY = "jruby.rack.dynamic.requests.only";
 
     RackContext getContext();
@@ -7,7 +7,6 @@
 
 package org.jruby.rack;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
@@ -54,9 +53,19 @@ public class RackInput extends RubyObject {
         return getClass(runtime, "RackInput", runtime.getObject(), ALLOCATOR, RackInput.class);
     }
 
+    private static final int NEWLINE = '\n';
+    // size of chunks (bytes) read at once from the input :
+    private static final int BUFFER_SIZE = 8192;
+    // maximum (initial) capacity allocated upfront based on the content length
+    private static final int MAX_INITIAL_CAPACITY = 64 * BUFFER_SIZE;
+
     private boolean rewindable;
     private InputStream input;
     private int length;
+
+    // bytes read ahead (but not yet consumed) by gets :
+    private byte[] buffer;
+    private int bufferPos, bufferEnd;
     
     public RackInput(Ruby runtime, RubyClass klass) {
         super(runtime, klass);
@@ -75,6 +84,7 @@ public class RackInput extends RubyObject {
         if (obj instanceof InputStream) {
             setInput( (InputStream) obj );
         }
+        this.bufferPos = this.bufferEnd = 0;
         this.length = 0;
         return getRuntime().getNil();
     }
@@ -85,14 +95,11 @@ public class RackInput extends RubyObject {
     @JRubyMethod()
     public IRubyObject gets(ThreadContext context) {
         try {
-            final int NEWLINE = 10;
-            byte[] bytes = readUntil(NEWLINE, 0);
-            if (bytes != null) {
-                return getRuntime().newString(new ByteList(bytes));
-            } else {
-                return getRuntime().getNil();
-            }
-        } catch (IOException io) {
+            final ByteList line = readLine();
+            if ( line == null ) return getRuntime().getNil();
+            return RubyString.newStringNoCopy(getRuntime(), line);
+        }
+        catch (IOException io) {
             throw getRuntime().newIOErrorFromException(io);
         }
     }
@@ -120,19 +127,23 @@ public class RackInput extends RubyObject {
         }
 
         try {
-            byte[] bytes = readUntil(Integer.MAX_VALUE, count);
-            if (bytes != null) {
-                if (string != null) {
-                    string.clear();
-                    string.cat(bytes);
-                    return string;
-                }
-                return getRuntime().newString(new ByteList(bytes));
-            } else {
+            final ByteList bytes;
+            if (string != null) {
+                string.modify19(); // bytes are read directly into the buffer
+                bytes = string.getByteList();
+                bytes.setRealSize(0);
+            }
+            else {
+                bytes = new ByteList(getInitialCapacity(count));
+            }
+            if (readInto(bytes, count) != -1) {
+                return string != null ? string : RubyString.newStringNoCopy(getRuntime(), bytes);
+            }
+            else {
                 if (count > 0) {
                     return getRuntime().getNil();
                 } else {
-                    return RubyString.newEmptyString(getRuntime());
+                    return string != null ? string : RubyString.newEmptyString(getRuntime());
                 }
             }
         } catch (IOException io) {
@@ -164,7 +175,10 @@ public class RackInput extends RubyObject {
         if (input != null) {
             try { // inputStream.rewind if inputStream.respond_to?(:rewind)
                 final Method rewind = getRewindMethod(input);
-                if (rewind != null) rewind.invoke(input, (Object[]) null);
+                if (rewind != null) {
+                    rewind.invoke(input, (Object[]) null);
+                    bufferPos = bufferEnd = 0; // discard what gets read ahead
+                }
             } 
             catch (IllegalArgumentException e) {
                 throw getRuntime().newArgumentError(e.getMessage());
@@ -190,6 +204,16 @@ public class RackInput extends RubyObject {
         return getRuntime().newFixnum(length);
     }
 
+    /**
+     * The (Java) input stream, rewindable unless configured otherwise.
+     * NOTE: content buffered by {@link #gets(ThreadContext)} is not seen when
+     * reading the stream directly (unless rewound).
+     * @return the input stream
+     */
+    public InputStream getInputStream() {
+        return input;
+    }
+
     /**
      * Close the input. Exposed only to the Java side because the Rack spec says
      * that application code must not call close, so we don't expose a close method to Ruby.
@@ -219,23 +243,74 @@ public class RackInput extends RubyObject {
         return null;
     }
     
-    private byte[] readUntil(final int match, final int count) throws IOException {
-        ByteArrayOutputStream bs = null;
-        int b; long i = 0;
-        do {
-            b = input.read();
-            if ( b == -1 ) break; // EOF
-            
-            if (bs == null) {
-                bs = new ByteArrayOutputStream( count == 0 ? 128 : count );
+    /**
+     * Reads a line (including the new-line) scanning chunks of the input.
+     * @return the line or null on EOF
+     */
+    private ByteList readLine() throws IOException {
+        ByteList line = null;
+        while ( bufferPos < bufferEnd || fillBuffer() ) {
+            int end = bufferPos;
+            while ( end < bufferEnd && buffer[end] != NEWLINE ) end++;
+            final boolean newline = end < bufferEnd;
+            if ( newline ) end++;
+
+            final int len = end - bufferPos;
+            if ( line == null ) {
+                line = new ByteList( newline ? len : len + BUFFER_SIZE );
             }
-            bs.write(b);
-            
-            if ( ++i == count ) break; // read count bytes
-            
-        } while ( b != match );
+            line.append(buffer, bufferPos, len);
+            bufferPos = end;
+
+            if ( newline ) break;
+        }
+        return line;
+    }
+
+    private boolean fillBuffer() throws IOException {
+        if ( buffer == null ) buffer = new byte[BUFFER_SIZE];
+        bufferPos = bufferEnd = 0;
+        final int read = input.read(buffer, 0, buffer.length);
+        if ( read == -1 ) return false; // EOF
+        bufferEnd = read;
+        return true;
+    }
+
+    /**
+     * Reads (in bulk) directly into the given bytes.
+     * @param bytes
+     * @param count the number of bytes to read, 0 to read all
+     * @return the number of bytes read or -1 on EOF
+     */
+    private int readInto(final ByteList bytes, final int count) throws IOException {
+        int total = 0;
+        if ( bufferPos < bufferEnd ) { // what gets read ahead goes first
+            total = bufferEnd - bufferPos;
+            if ( count > 0 && count < total ) total = count;
+            bytes.append(buffer, bufferPos, total);
+            bufferPos += total;
+        }
+        while ( count == 0 || total < count ) {
+            // grow (about) twice the size, never beyond the requested count :
+            int len = Math.max(BUFFER_SIZE, bytes.length());
+            if ( count > 0 ) len = Math.min(len, count - total);
+            bytes.ensure(bytes.length() + len);
+
+            final int offset = bytes.begin() + bytes.length();
+            final int read = input.read(bytes.getUnsafeBytes(), offset, len);
+            if ( read == -1 ) { // EOF
+                if ( total == 0 ) return -1; else break;
+            }
+            bytes.setRealSize(bytes.length() + read);
+            total += read;
+        }
+        return total;
+    }
 
-        return bs == null ? null : bs.toByteArray();
+    private int getInitialCapacity(final int count) {
+        // the content length is only a hint (might be missing or wrong)
+        int capacity = length > 0 ? Math.min(length, MAX_INITIAL_CAPACITY) : BUFFER_SIZE;
+        return count > 0 ? Math.min(count, capacity) : capacity;
     }
     
 }
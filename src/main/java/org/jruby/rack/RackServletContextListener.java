@@ -42,7 +42,8 @@ public class RackServletContextListener implements ServletContextListener {
     public void contextInitialized(final ServletContextEvent event) {
         final ServletContext context = event.getServletContext();
         final ServletRackConfig config = new ServletRackConfig(context);
-        final RackApplicationFactory factory = newApplicationFactory(config);
+        final RackApplicationFactory factory = 
+            newBulkheadFactory(config, newApplicationFactory(config));
         context.setAttribute(RackApplicationFactory.FACTORY, factory);
         final ServletRackContext rackContext = new DefaultServletRackContext(config);
         context.setAttribute(RackApplicationFactory.RACK_CONTEXT, rackContext);
@@ -69,6 +70,10 @@ public class RackServletContextListener implements ServletContextListener {
         if (factory != null) return factory; // only != null while testing
 
         final RackApplicationFactory factory = new DefaultRackApplicationFactory();
+        if ( SharedPoolingRackApplicationFactory.isConfigured(config) ) {
+            // shared (threadsafe) runtimes with a concurrency limit each :
+            return new SharedPoolingRackApplicationFactory(factory);
+        }
         final Integer maxRuntimes = config.getMaximumRuntimes();
         // for backwards compatibility when runtime mix/max values not specified
         // we assume a single shared (threadsafe) runtime to be used :
@@ -76,12 +81,51 @@ public class RackServletContextListener implements ServletContextListener {
             return new SharedRackApplicationFactory(factory);
         } 
         else {
-            return config.isSerialInitialization() ?
-                new SerialPoolingRackApplicationFactory(factory) :
+            if ( config.isSerialInitialization() ) {
+                return new SerialPoolingRackApplicationFactory(factory);
+            }
+            return isConcurrentPool(config) ?
+                new ConcurrentPoolingRackApplicationFactory(factory) :
                     new PoolingRackApplicationFactory(factory) ;
         }
     }
     
+    /**
+     * Wraps the given factory if bulkheads are configured, the bulkhead 
+     * factories are created using {@link #newApplicationFactory(RackConfig)}.
+     * @param config
+     * @param factory the default factory
+     * @return the given factory or a bulkhead factory wrapping it
+     * @see BulkheadRackApplicationFactory
+     */
+    protected RackApplicationFactory newBulkheadFactory(
+        final ServletRackConfig config, final RackApplicationFactory factory) {
+        if ( this.factory != null ) return factory; // only != null while testing
+        
+        final String[] names = BulkheadRackApplicationFactory.getBulkheadNames(config);
+        if ( names == null ) return factory;
+        
+        final BulkheadRackApplicationFactory bulkheads = 
+            new BulkheadRackApplicationFactory(factory);
+        for ( final String name : names ) {
+            final ServletRackConfig bulkheadConfig = 
+                new BulkheadRackApplicationFactory.Config(config.getServletContext(), name);
+            bulkheads.addBulkhead(name, newApplicationFactory(bulkheadConfig), 
+                new DefaultServletRackContext(bulkheadConfig));
+        }
+        return bulkheads;
+    }
+    
+    /**
+     * @param config
+     * @return whether the (lock-free) concurrent runtime pool should be used
+     * @see ConcurrentPoolingRackApplicationFactory
+     */
+    protected static boolean isConcurrentPool(final RackConfig config) {
+        Boolean concurrent = config.getBooleanProperty("jruby.runtime.pool.concurrent");
+        return concurrent != null && concurrent.booleanValue();
+    }
+    
     protected void handleInitializationException(
             final Exception e,
             final RackApplicationFactory factory,
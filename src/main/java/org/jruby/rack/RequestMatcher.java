@@ -0,0 +1,123 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Matches requests using (configurable) rules, a request matches if any of
+ * the rules match. Rules are read using a parameter prefix :
+ * <ul>
+ * <li><code>[prefix]paths</code>: Comma separated path prefixes (relative to
+ *  the application) e.g. <code>/api, /status/</code>
+ * <li><code>[prefix]header</code>: A request header that needs to be present,
+ *  optionally with a (case insensitive) value e.g. <code>X-Pool: reports</code>
+ * <li><code>[prefix]remote</code>: Comma separated remote address prefixes
+ *  e.g. <code>127.0.0.1, 10.0.</code>
+ * </ul>
+ *
+ * @see BulkheadRackApplicationFactory
+ * @see RequestPriorities
+ */
+public class RequestMatcher {
+
+    private final List<String> paths = new ArrayList<String>();
+    private final List<String> remotes = new ArrayList<String>();
+    private String headerName, headerValue;
+
+    /**
+     * @param config
+     * @param prefix the parameter prefix (should end with a '.')
+     * @return a matcher (might not have any rules configured)
+     */
+    public static RequestMatcher configure(final RackConfig config, final String prefix) {
+        final RequestMatcher matcher = new RequestMatcher();
+        matcher.paths.addAll( split( config.getProperty(prefix + "paths") ) );
+        matcher.remotes.addAll( split( config.getProperty(prefix + "remote") ) );
+        final String header = config.getProperty(prefix + "header");
+        if ( header != null && header.trim().length() > 0 ) {
+            final int colon = header.indexOf(':');
+            if ( colon == -1 ) matcher.headerName = header.trim();
+            else {
+                matcher.headerName = header.substring(0, colon).trim();
+                matcher.headerValue = header.substring(colon + 1).trim();
+            }
+        }
+        return matcher;
+    }
+
+    public List<String> getPaths() {
+        return Collections.unmodifiableList(paths);
+    }
+
+    public List<String> getRemotes() {
+        return Collections.unmodifiableList(remotes);
+    }
+
+    public String getHeaderName() {
+        return headerName;
+    }
+
+    public String getHeaderValue() {
+        return headerValue;
+    }
+
+    /**
+     * @return whether there are no rules (thus nothing ever matches)
+     */
+    public boolean isEmpty() {
+        return paths.isEmpty() && remotes.isEmpty() && headerName == null;
+    }
+
+    public boolean matches(final RackEnvironment request) {
+        if ( headerName != null ) {
+            final String value = request.getHeader(headerName);
+            if ( value != null && ( headerValue == null ||
+                 headerValue.equalsIgnoreCase(value.trim()) ) ) {
+                return true;
+            }
+        }
+        if ( ! paths.isEmpty() ) {
+            String path = request.getPathInfo();
+            if ( path == null ) path = request.getRequestURI();
+            if ( path != null ) {
+                for ( final String prefix : paths ) {
+                    if ( path.startsWith(prefix) && ( path.length() == prefix.length() ||
+                         prefix.endsWith("/") || path.charAt(prefix.length()) == '/' ) ) {
+                        return true;
+                    }
+                }
+            }
+        }
+        if ( ! remotes.isEmpty() ) {
+            final String address = request.getRemoteAddr();
+            if ( address != null ) {
+                for ( final String prefix : remotes ) {
+                    if ( address.startsWith(prefix) ) return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "paths " + paths + ( headerName == null ? "" : " header " + headerName ) +
+            ( remotes.isEmpty() ? "" : " remote " + remotes );
+    }
+
+    static List<String> split(final String value) {
+        if ( value == null ) return Collections.emptyList();
+        final List<String> list = new ArrayList<String>();
+        for ( String part : value.split(",") ) {
+            part = part.trim();
+            if ( part.length() > 0 ) list.add(part);
+        }
+        return list;
+    }
+
+}
@@ -0,0 +1,324 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Request priority classes, used to hand out runtimes (permits) to the
+ * highest priority waiter first when the pool is saturated.
+ * <ul>
+ * <li><code>jruby.runtime.priorities</code>: Comma separated priority class
+ *  names, highest priority first (e.g. <code>health, checkout, default,
+ *  crawler</code>). Requests not matching any class are treated as the class
+ *  named <code>default</code> (if there's none they get the lowest priority).
+ * <li><code>jruby.runtime.priority.[name].paths</code>,
+ *  <code>jruby.runtime.priority.[name].header</code> and
+ *  <code>jruby.runtime.priority.[name].remote</code>: The class' rules, see
+ *  {@link RequestMatcher}.
+ * <li><code>jruby.runtime.priority.fairness</code>: Starvation protection,
+ *  every n-th permit (runtime) handed to a waiter goes to the longest waiting
+ *  request regardless of it's priority. Default is 10, 0 disables.
+ * </ul>
+ * Requests are classified by the dispatcher, the priority is kept as the
+ * current (thread's) priority while the request is being processed.
+ */
+public class RequestPriorities {
+
+    public static final String PRIORITIES = "jruby.runtime.priorities";
+
+    private static final ThreadLocal<Integer> currentPriority = new ThreadLocal<Integer>();
+
+    private final List<String> names;
+    private final List<RequestMatcher> matchers;
+    private final int defaultPriority;
+    private int fairness = 10;
+
+    RequestPriorities(List<String> names, List<RequestMatcher> matchers) {
+        this.names = names;
+        this.matchers = matchers;
+        final int index = names.indexOf("default");
+        this.defaultPriority = index == -1 ? names.size() : index;
+    }
+
+    /**
+     * @param context
+     * @return the configured priorities or null if none
+     */
+    public static RequestPriorities configure(final RackContext context) {
+        final RackConfig config = context.getConfig();
+        final List<String> names = RequestMatcher.split( config.getProperty(PRIORITIES) );
+        if ( names.isEmpty() ) return null;
+
+        final List<RequestMatcher> matchers = new ArrayList<RequestMatcher>(names.size());
+        for ( String name : names ) {
+            matchers.add( RequestMatcher.configure(config, "jruby.runtime.priority." + name + ".") );
+        }
+        final RequestPriorities priorities = new RequestPriorities(names, matchers);
+        final Number fairness = config.getNumberProperty("jruby.runtime.priority.fairness");
+        if ( fairness != null ) priorities.setFairness( fairness.intValue() );
+        return priorities;
+    }
+
+    public List<String> getNames() {
+        return Collections.unmodifiableList(names);
+    }
+
+    /**
+     * @return the number of priority levels
+     */
+    public int getLevels() {
+        return defaultPriority == names.size() ? names.size() + 1 : names.size();
+    }
+
+    public int getDefaultPriority() {
+        return defaultPriority;
+    }
+
+    public int getFairness() {
+        return fairness;
+    }
+
+    public void setFairness(int fairness) {
+        this.fairness = fairness;
+    }
+
+    /**
+     * @param request
+     * @return the priority (lower value means higher priority) for the request
+     */
+    public int classify(final RackEnvironment request) {
+        for ( int i = 0; i < matchers.size(); i++ ) {
+            if ( matchers.get(i).matches(request) ) return i;
+        }
+        return defaultPriority;
+    }
+
+    /**
+     * Classifies the request and sets it's priority as the current one.
+     * @param request
+     */
+    public void enter(final RackEnvironment request) {
+        currentPriority.set( classify(request) );
+    }
+
+    /**
+     * Clears the current priority.
+     */
+    public void exit() {
+        currentPriority.remove();
+    }
+
+    /**
+     * @return the priority of the request being processed by the current
+     * thread (null if none)
+     */
+    public static Integer getCurrentPriority() {
+        return currentPriority.get();
+    }
+
+    /**
+     * @param permits
+     * @return (priority aware) permits
+     */
+    public Permits newPermits(final int permits) {
+        return new PriorityPermits(permits, newWaiters());
+    }
+
+    /**
+     * @return a new (empty) queue of waiters served by priority
+     */
+    Waiters newWaiters() {
+        return new Waiters(getLevels(), defaultPriority, fairness);
+    }
+
+    /**
+     * Permits handed out to the highest priority waiter first.
+     */
+    static class PriorityPermits implements Permits {
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Waiters waiters;
+        private int available;
+
+        PriorityPermits(int permits, Waiters waiters) {
+            this.available = permits;
+            this.waiters = waiters;
+        }
+
+        public int availablePermits() {
+            lock.lock();
+            try {
+                return available;
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        public boolean tryAcquire() {
+            lock.lock();
+            try {
+                if ( available > 0 && waiters.isEmpty() ) {
+                    available--; return true;
+                }
+                return false;
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        public boolean tryAcquire(long timeout, TimeUnit unit) throws InterruptedException {
+            long nanos = unit.toNanos(timeout);
+            lock.lockInterruptibly();
+            try {
+                if ( available > 0 && waiters.isEmpty() ) {
+                    available--; return true;
+                }
+                if ( nanos <= 0 ) return false;
+
+                final Waiter waiter = waiters.add();
+                waiter.condition = lock.newCondition();
+                try {
+                    while ( ! waiter.granted && nanos > 0 ) {
+                        nanos = waiter.condition.awaitNanos(nanos);
+                    }
+                }
+                catch (InterruptedException e) {
+                    if ( waiter.granted ) releaseLocked(); // pass it on
+                    else waiters.remove(waiter);
+                    throw e;
+                }
+                if ( waiter.granted ) return true;
+                waiters.remove(waiter); // timed out
+                return false;
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        public void release() {
+            lock.lock();
+            try {
+                releaseLocked();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        private void releaseLocked() {
+            final Waiter waiter = waiters.poll();
+            if ( waiter == null ) available++;
+            else {
+                waiter.granted = true;
+                waiter.condition.signal();
+            }
+        }
+
+    }
+
+    /**
+     * Waiters queued by priority, the highest priority waiter is served first
+     * (except for every n-th hand-off which goes to the longest waiting one).
+     * <p>
+     * NOTE: not thread-safe, guarded by the lock of the caller.
+     */
+    static class Waiters {
+
+        private final List<LinkedList<Waiter>> queues;
+        private final int defaultPriority, fairness;
+        private int size;
+        private long sequence, handoffs;
+
+        Waiters(int levels, int defaultPriority, int fairness) {
+            this.defaultPriority = defaultPriority;
+            this.fairness = fairness;
+            this.queues = new ArrayList<LinkedList<Waiter>>(levels);
+            for ( int i = 0; i < levels; i++ ) queues.add( new LinkedList<Waiter>() );
+        }
+
+        /**
+         * @return a new waiter (queued with the current thread's priority)
+         */
+        Waiter add() {
+            final Integer priority = getCurrentPriority();
+            int level = priority == null ? defaultPriority : priority.intValue();
+            if ( level < 0 || level >= queues.size() ) level = queues.size() - 1;
+            final Waiter waiter = new Waiter(level, sequence++);
+            queues.get(level).add(waiter); size++;
+            return waiter;
+        }
+
+        boolean remove(final Waiter waiter) {
+            if ( queues.get(waiter.level).remove(waiter) ) {
+                size--; return true;
+            }
+            return false;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        /**
+         * @return the waiter to be served next (or null if none)
+         */
+        Waiter peek() {
+            if ( size == 0 ) return null;
+            if ( fairness > 0 && ( handoffs + 1 ) % fairness == 0 ) {
+                // starvation protection - the longest waiting request :
+                LinkedList<Waiter> oldest = null;
+                for ( LinkedList<Waiter> queue : queues ) {
+                    if ( queue.isEmpty() ) continue;
+                    if ( oldest == null || queue.getFirst().sequence < oldest.getFirst().sequence ) {
+                        oldest = queue;
+                    }
+                }
+                return oldest.getFirst();
+            }
+            for ( LinkedList<Waiter> queue : queues ) {
+                if ( ! queue.isEmpty() ) return queue.getFirst();
+            }
+            return null; // never happens
+        }
+
+        /**
+         * Removes (hands off to) the waiter to be served next.
+         * @return the waiter or null if none
+         */
+        Waiter poll() {
+            final Waiter waiter = peek();
+            if ( waiter != null ) {
+                remove(waiter); handoffs++;
+            }
+            return waiter;
+        }
+
+    }
+
+    static class Waiter {
+
+        final int level;
+        final long sequence;
+        Condition condition; // only used by permits
+        boolean granted;
+
+        Waiter(int level, long sequence) {
+            this.level = level;
+            this.sequence = sequence;
+        }
+
+    }
+
+}
@@ -27,8 +27,7 @@ public class SerialPoolingRackApplicationFactory extends PoolingRackApplicationF
             final RackApplication app = apps.remove();
             try {
                 app.init();
-                applicationPool.add(app);
-                log(RackLogger.INFO, "added application to pool, size now = " + applicationPool.size());
+                putApplicationToPool(app);
             }
             catch (RackInitializationException e) {
                 log(RackLogger.ERROR, "unable to initialize application", e);
@@ -36,6 +35,23 @@ public class SerialPoolingRackApplicationFactory extends PoolingRackApplicationF
         }
     }
     
+    /**
+     * Creates a new (initialized) instance in the foreground (no background
+     * booting) unless the pool maximum has been reached.
+     */
+    @Override
+    protected RackApplication createApplicationOnDemand(final boolean permit, final long deadline)
+        throws RackInitializationException {
+        final Integer maximumSize = getMaximumSize();
+        if ( ! permit || maximumSize == null || maximumSize > createdApplications.get() ) {
+            log(RackLogger.INFO, "pool was empty - getting new application instance");
+            return createApplication(true);
+        }
+        releaseApplicationPermit();
+        throw new IllegalStateException("retrieved a null from the pool, " + 
+                "please check the log for previous initialization errors");
+    }
+    
     @Override
     protected void waitTillPoolReady() {
         return; // waiting makes no sense here as we're initializing serialy
@@ -0,0 +1,271 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A hybrid of the shared and the pooling factory, each (shared) application
+ * serves several requests concurrently but only up to a limit, requests past
+ * the limit spill onto additional applications (runtimes) or queue up. Thus
+ * the number of runtimes x the number of threads per runtime might be tuned
+ * for throughput (less contention) and memory (less requests in flight).
+ * <p>
+ * Just as with the shared factory the application is assumed to be thread-safe.
+ * <ul>
+ * <li><code>jruby.runtime.shared.concurrency</code>: Maximum number of requests
+ *  a single (shared) runtime handles concurrently, setting this parameter
+ *  enables the factory.
+ * <li><code>jruby.min.runtimes</code>: Number of (shared) runtimes to boot
+ *  initially. Default is 1.
+ * <li><code>jruby.max.runtimes</code>: Maximum number of (shared) runtimes,
+ *  when all runtimes are busy a new runtime is booted (in the background)
+ *  unless the maximum is reached. Defaults to the initial number of runtimes
+ *  (requests over the limit queue up).
+ * <li><code>jruby.runtime.acquire.timeout</code>: Value (in seconds) a request
+ *  waits in the queue for a runtime. Default is 10.0 (seconds), an
+ *  {@link AcquireTimeoutException} is thrown when the time elapses.
+ * </ul>
+ *
+ * @see SharedRackApplicationFactory
+ * @see PoolingRackApplicationFactory
+ */
+public class SharedPoolingRackApplicationFactory extends RackApplicationFactoryDecorator {
+
+    public static final String CONCURRENCY = "jruby.runtime.shared.concurrency";
+
+    private static final float ACQUIRE_DEFAULT = 10.0f;
+
+    private final List<Shared> applications = new CopyOnWriteArrayList<Shared>();
+    private final Map<RackApplication, Shared> shared = new ConcurrentHashMap<RackApplication, Shared>();
+    // (overall) free request slots across all applications :
+    private final Semaphore capacity = new Semaphore(0, true);
+    private final AtomicBoolean booting = new AtomicBoolean(false);
+    private volatile boolean destroyed;
+
+    private int concurrency = 1;
+    private int initialSize = 1, maximumSize = 1;
+    private float acquireTimeout = ACQUIRE_DEFAULT; // in seconds
+
+    public SharedPoolingRackApplicationFactory(RackApplicationFactory delegate) {
+        super(delegate);
+    }
+
+    /**
+     * @param config
+     * @return whether the factory has been configured (should be used)
+     */
+    public static boolean isConfigured(final RackConfig config) {
+        return config.getNumberProperty(CONCURRENCY) != null;
+    }
+
+    /**
+     * @return <code>jruby.runtime.shared.concurrency</code>
+     */
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    public void setConcurrency(int concurrency) {
+        this.concurrency = Math.max(1, concurrency);
+    }
+
+    public int getInitialSize() {
+        return initialSize;
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    public Number getAcquireTimeout() {
+        return acquireTimeout;
+    }
+
+    /**
+     * @return the (shared) applications
+     */
+    public Collection<RackApplication> getApplications() {
+        return shared.keySet();
+    }
+
+    /**
+     * @param app
+     * @return the number of requests being served by the given application
+     */
+    public int getActiveRequests(final RackApplication app) {
+        final Shared entry = shared.get(app);
+        return entry == null ? 0 : concurrency - entry.permits.availablePermits();
+    }
+
+    @Override
+    protected void doInit() throws Exception {
+        super.doInit(); // delegate.init(rackContext);
+        final RackConfig config = getConfig();
+        final Number concurrency = config.getNumberProperty(CONCURRENCY);
+        if ( concurrency != null ) setConcurrency( concurrency.intValue() );
+        final Integer initial = config.getInitialRuntimes();
+        if ( initial != null && initial > 0 ) initialSize = initial;
+        final Integer maximum = config.getMaximumRuntimes();
+        maximumSize = maximum != null ? Math.max(maximum, initialSize) : initialSize;
+        final Number timeout = config.getNumberProperty("jruby.runtime.acquire.timeout");
+        if ( timeout != null ) acquireTimeout = timeout.floatValue();
+
+        log(RackLogger.INFO, "using " + initialSize + ":" + maximumSize +
+            " shared (threadsafe!) runtimes with " + this.concurrency + " concurrent requests each");
+        for ( int i = 0; i < initialSize; i++ ) {
+            addApplication( getDelegate().getApplication() );
+        }
+    }
+
+    /**
+     * Returns a (shared) application with a free request slot, the least busy
+     * application is preferred. When all applications are busy a new one is
+     * booted (in the background) and the request waits for a free slot.
+     * @see RackApplicationFactory#getApplication()
+     */
+    @Override
+    protected RackApplication getApplicationImpl() throws AcquireTimeoutException {
+        final long deadline = System.currentTimeMillis() + (long) (acquireTimeout * 1000);
+        if ( destroyed ) throw new RackException("shared applications have been destroyed");
+        if ( ! capacity.tryAcquire() ) {
+            if ( applications.size() < maximumSize ) bootApplication();
+            acquireCapacity(deadline);
+        }
+        // got a slot - thus one of the applications has a free permit
+        // (unless the factory got destroyed meanwhile) :
+        while ( true ) {
+            if ( destroyed ) {
+                throw new RackException("shared applications have been destroyed");
+            }
+            Shared least = null; int available = 0;
+            for ( final Shared entry : applications ) {
+                final int free = entry.permits.availablePermits();
+                if ( free > available ) { least = entry; available = free; }
+            }
+            if ( least != null && least.permits.tryAcquire() ) return least.application;
+            if ( System.currentTimeMillis() >= deadline ) {
+                capacity.release(); // slot not used
+                throw acquireTimeout(null);
+            }
+            Thread.yield(); // raced with another thread - retry
+        }
+    }
+
+    private void acquireCapacity(final long deadline) throws AcquireTimeoutException {
+        boolean acquired;
+        try {
+            final long timeout = deadline - System.currentTimeMillis();
+            acquired = capacity.tryAcquire(Math.max(0, timeout), TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AcquireTimeoutException("could not acquire shared application", e);
+        }
+        if ( ! acquired ) throw acquireTimeout(" (try increasing the concurrency or max runtimes)");
+    }
+
+    private AcquireTimeoutException acquireTimeout(final String hint) {
+        final String message = "could not acquire shared application" +
+            " within " + acquireTimeout + " seconds";
+        log(RackLogger.INFO, hint == null ? message : message + hint);
+        return new AcquireTimeoutException(message);
+    }
+
+    /**
+     * Boots a new application (in the background) unless one is already
+     * being booted or the maximum has been reached.
+     */
+    private void bootApplication() {
+        if ( ! booting.compareAndSet(false, true) ) return;
+        if ( applications.size() >= maximumSize || destroyed ) {
+            booting.set(false); return;
+        }
+        new Thread(new Runnable() {
+
+            public void run() {
+                try {
+                    log(RackLogger.INFO, "all shared applications busy - booting another one");
+                    final RackApplication app = getDelegate().getApplication();
+                    if ( destroyed ) getDelegate().finishedWithApplication(app);
+                    else addApplication(app);
+                }
+                catch (RuntimeException e) {
+                    log(RackLogger.WARN, "unable to initialize (another) shared application", e);
+                }
+                finally {
+                    booting.set(false);
+                }
+            }
+
+        }, "JRuby-Rack-App-Shared-Init-" + applications.size()).start();
+    }
+
+    private void addApplication(final RackApplication app) {
+        final Shared entry = new Shared(app, concurrency);
+        shared.put(app, entry);
+        applications.add(entry);
+        capacity.release(concurrency);
+    }
+
+    /**
+     * Same as {@link #getApplication()} since we're sharing.
+     * @see RackApplicationFactory#newApplication()
+     */
+    public RackApplication newApplication() {
+        return getApplication();
+    }
+
+    /**
+     * Frees the request slot taken on the shared application.
+     * @see RackApplicationFactory#finishedWithApplication(RackApplication)
+     */
+    public void finishedWithApplication(final RackApplication app) {
+        final Shared entry = app == null ? null : shared.get(app);
+        if ( entry == null ) {
+            log(RackLogger.WARN, "ignoring unknown application: " + app);
+            return;
+        }
+        entry.permits.release();
+        capacity.release();
+    }
+
+    @Override
+    public void destroy() {
+        destroyed = true;
+        for ( final Shared entry : applications ) {
+            try {
+                getDelegate().finishedWithApplication(entry.application);
+            }
+            catch (RuntimeException e) {
+                log(RackLogger.WARN, "failed to destroy shared application", e);
+            }
+        }
+        applications.clear();
+        shared.clear();
+        capacity.drainPermits(); // slots of the destroyed applications
+        super.destroy(); // delegate.destroy();
+    }
+
+    private static class Shared {
+
+        final RackApplication application;
+        final Semaphore permits; // request slots
+
+        Shared(RackApplication application, int concurrency) {
+            this.application = application;
+            this.permits = new Semaphore(concurrency, false);
+        }
+
+    }
+
+}
@@ -19,7 +19,7 @@ import org.jruby.runtime.builtin.IRubyObject;
 public class MerbRackApplicationFactory extends DefaultRackApplicationFactory {
     @Override
     public IRubyObject createApplicationObject(Ruby runtime) {
-        runtime.evalScriptlet("load 'jruby/rack/boot/merb.rb'");
+        loadBootScript(runtime, "jruby/rack/boot/merb.rb");
         return createRackServletWrapper(runtime, "run JRuby::Rack::MerbFactory.new");
     }
 }
@@ -18,8 +18,18 @@ import org.jruby.runtime.builtin.IRubyObject;
 public class RailsRackApplicationFactory extends DefaultRackApplicationFactory {
     @Override
     public IRubyObject createApplicationObject(Ruby runtime) {
-        runtime.evalScriptlet("load 'jruby/rack/boot/rails.rb'");
+        return createApplicationObject(runtime, null, null);
+    }
+    
+    @Override // the rackup is not used - the Rails application is booted
+    protected IRubyObject createApplicationObject(Ruby runtime, String rackupScript, String rackupLocation) {
+        long start = System.nanoTime();
+        loadBootScript(runtime, "jruby/rack/boot/rails.rb");
+        bootPhase(runtime, "boot", start); start = System.nanoTime();
         runtime.evalScriptlet("JRuby::Rack::RailsBooter.load_environment");
-        return createRackServletWrapper(runtime, "run JRuby::Rack::RailsBooter.to_app");
+        bootPhase(runtime, "environment", start); start = System.nanoTime();
+        final IRubyObject app = createRackServletWrapper(runtime, "run JRuby::Rack::RailsBooter.to_app");
+        bootPhase(runtime, "rackup", start);
+        return app;
     }
 }
@@ -7,7 +7,9 @@
 
 package org.jruby.rack.rails;
 
+import org.jruby.rack.ConcurrentPoolingRackApplicationFactory;
 import org.jruby.rack.SerialPoolingRackApplicationFactory;
+import org.jruby.rack.SharedPoolingRackApplicationFactory;
 import org.jruby.rack.SharedRackApplicationFactory;
 import org.jruby.rack.PoolingRackApplicationFactory;
 import org.jruby.rack.RackApplicationFactory;
@@ -23,14 +25,20 @@ public class RailsServletContextListener extends RackServletContextListener {
     @Override
     protected RackApplicationFactory newApplicationFactory(RackConfig config) {
         final RackApplicationFactory factory = new RailsRackApplicationFactory();
+        if ( SharedPoolingRackApplicationFactory.isConfigured(config) ) {
+            return new SharedPoolingRackApplicationFactory(factory);
+        }
         final Integer maxRuntimes = config.getMaximumRuntimes();
         // TODO maybe after Rails 4 is out switch to shared by default as well !
         if ( maxRuntimes != null && maxRuntimes.intValue() == 1 ) {
             return new SharedRackApplicationFactory(factory);
         } 
         else {
-            return config.isSerialInitialization() ?
-                new SerialPoolingRackApplicationFactory(factory) :
+            if ( config.isSerialInitialization() ) {
+                return new SerialPoolingRackApplicationFactory(factory);
+            }
+            return isConcurrentPool(config) ?
+                new ConcurrentPoolingRackApplicationFactory(factory) :
                     new PoolingRackApplicationFactory(factory) ;
         }
     }
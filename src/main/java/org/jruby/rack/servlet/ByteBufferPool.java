@@ -0,0 +1,115 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack.servlet;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of (heap) byte buffers used for buffering request bodies.
+ * Buffers come in size classes, doubling from the minimum size up to the
+ * maximum size, each class keeps at most the given number of buffers.
+ * Buffers of other sizes are allocated (and released) as usual.
+ *
+ * @see RewindableInputStream
+ */
+public class ByteBufferPool {
+
+    private final int[] sizes; // the size classes
+    private final Queue<ByteBuffer>[] buffers;
+    private final AtomicInteger[] counts;
+    private final int maxPooled;
+
+    /**
+     * @param minSize the smallest (buffer) size class
+     * @param maxSize the largest (buffer) size class
+     * @param maxPooled maximum number of buffers kept per size class
+     */
+    @SuppressWarnings("unchecked")
+    public ByteBufferPool(final int minSize, final int maxSize, final int maxPooled) {
+        if ( minSize <= 0 || maxSize < minSize ) {
+            throw new IllegalArgumentException("invalid buffer sizes: " + minSize + ", " + maxSize);
+        }
+        int count = 1;
+        for ( long size = minSize; size < maxSize; size <<= 1 ) count++;
+
+        this.sizes = new int[count];
+        this.buffers = new Queue[count];
+        this.counts = new AtomicInteger[count];
+        for ( int i = 0; i < count; i++ ) {
+            sizes[i] = (int) Math.min((long) minSize << i, maxSize);
+            buffers[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+            counts[i] = new AtomicInteger();
+        }
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * @param size
+     * @return the (smallest) size class capacity fitting size bytes or size
+     * if the size is larger than the largest size class
+     */
+    public int getCapacity(final int size) {
+        final int i = indexOf(size);
+        return i < 0 ? size : sizes[i];
+    }
+
+    /**
+     * Acquire a (cleared) buffer, pooled if the capacity matches a size class.
+     * @param capacity
+     * @return a buffer with the given capacity
+     */
+    public ByteBuffer acquire(final int capacity) {
+        final int i = indexOf(capacity);
+        if ( i >= 0 && sizes[i] == capacity ) {
+            final ByteBuffer buffer = buffers[i].poll();
+            if ( buffer != null ) {
+                counts[i].decrementAndGet();
+                buffer.clear();
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Return a (previously acquired) buffer back to the pool, the buffer
+     * must not be used afterwards.
+     * @param buffer
+     */
+    public void release(final ByteBuffer buffer) {
+        final int capacity = buffer.capacity();
+        final int i = indexOf(capacity);
+        if ( i < 0 || sizes[i] != capacity ) return; // not pooled
+        if ( counts[i].incrementAndGet() > maxPooled ) {
+            counts[i].decrementAndGet(); // pool is full
+            return;
+        }
+        buffers[i].offer(buffer);
+    }
+
+    /**
+     * @return the number of buffers currently pooled
+     */
+    public int size() {
+        int size = 0;
+        for ( int i = 0; i < counts.length; i++ ) size += counts[i].get();
+        return size;
+    }
+
+    public int getMaximumPooled() {
+        return maxPooled;
+    }
+
+    private int indexOf(final int size) {
+        for ( int i = 0; i < sizes.length; i++ ) {
+            if ( size <= sizes[i] ) return i;
+        }
+        return -1;
+    }
+
+}
@@ -0,0 +1,465 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jruby.rack.RackConfig;
+import org.jruby.rack.RackContext;
+
+/**
+ * A streaming <code>multipart/form-data</code> (request body) parser.
+ * File parts are written straight into temporary files (while being read),
+ * other parts (fields) are decoded into bytes. The parsed parts are mapped
+ * into Rack (form) parameters by <code>Rack::Handler::Servlet</code>, thus
+ * Rack won't need to parse the (multipart) body again.
+ * <ul>
+ * <li><code>jruby.rack.request.multipart</code>: Whether multipart request
+ *  bodies get parsed by this parser instead of Rack. Default is false.
+ * <li><code>jruby.rack.request.multipart.parts</code>: Maximum number of parts
+ *  in a request body. Default is none (no limit).
+ * <li><code>jruby.rack.request.multipart.part.maximum.bytes</code>: Maximum
+ *  size of a single part. Default is none (no limit).
+ * </ul>
+ *
+ * @see RewindableInputStream#getDefaultSpillDirectory()
+ */
+public class MultipartParser {
+
+    public static final String ENABLED = "jruby.rack.request.multipart";
+    public static final String MAX_PARTS = "jruby.rack.request.multipart.parts";
+    public static final String MAX_PART_SIZE = "jruby.rack.request.multipart.part.maximum.bytes";
+
+    public static final String TMP_FILE_PREFIX = "RackMultipart";
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_HEAD_SIZE = 16 * 1024;
+
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] HEAD_END = { '\r', '\n', '\r', '\n' };
+
+    private final int maxParts;
+    private final long maxPartSize;
+    private File directory;
+
+    /**
+     * @param maxParts maximum number of parts (0 for no limit)
+     * @param maxPartSize maximum size of a part (0 for no limit)
+     */
+    public MultipartParser(int maxParts, long maxPartSize) {
+        this.maxParts = maxParts;
+        this.maxPartSize = maxPartSize;
+    }
+
+    /**
+     * Configures a parser from the context parameters.
+     * @param context
+     * @return the parser or null if not enabled
+     */
+    public static MultipartParser configure(final RackContext context) {
+        final RackConfig config = context.getConfig();
+        if ( ! Boolean.TRUE.equals(config.getBooleanProperty(ENABLED)) ) return null;
+        final Number maxParts = config.getNumberProperty(MAX_PARTS);
+        final Number maxPartSize = config.getNumberProperty(MAX_PART_SIZE);
+        return new MultipartParser(
+            maxParts == null ? 0 : maxParts.intValue(),
+            maxPartSize == null ? 0 : maxPartSize.longValue()
+        );
+    }
+
+    private static MultipartParser defaultParser;
+
+    /**
+     * @return the (configured) parser used for request bodies or null if
+     * multipart bodies are left for Rack to parse
+     */
+    public static MultipartParser getDefault() {
+        return defaultParser;
+    }
+
+    /**
+     * Set the parser used for all (multipart) request bodies.
+     * @param parser the parser or null to disable parsing
+     */
+    public static void setDefault(MultipartParser parser) {
+        MultipartParser.defaultParser = parser;
+    }
+
+    public int getMaximumParts() {
+        return maxParts;
+    }
+
+    public long getMaximumPartSize() {
+        return maxPartSize;
+    }
+
+    /**
+     * @return the directory files are created in
+     */
+    public File getDirectory() {
+        return directory != null ? directory : RewindableInputStream.getDefaultSpillDirectory();
+    }
+
+    public void setDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @param contentType
+     * @return the boundary from a (multipart) content type or null
+     */
+    public static String getBoundary(final String contentType) {
+        if ( contentType == null ) return null;
+        if ( ! contentType.regionMatches(true, 0, "multipart/", 0, 10) ) return null;
+        final int index = contentType.toLowerCase().indexOf("boundary=");
+        if ( index == -1 ) return null;
+        String boundary = contentType.substring(index + 9).trim();
+        if ( boundary.startsWith("\"") ) {
+            final int end = boundary.indexOf('"', 1);
+            boundary = end == -1 ? boundary.substring(1) : boundary.substring(1, end);
+        }
+        else {
+            final int end = indexOfAny(boundary, ";,");
+            if ( end != -1 ) boundary = boundary.substring(0, end).trim();
+        }
+        return boundary.length() == 0 ? null : boundary;
+    }
+
+    /**
+     * Parse a multipart body.
+     * @param input the (request) body
+     * @param contentType the (multipart) content type including the boundary
+     * @return the parsed parts, files with a blank file name are skipped
+     * @throws IOException if the body is malformed or a limit is exceeded
+     */
+    public List<Part> parse(final InputStream input, final String contentType)
+        throws IOException {
+        final String boundary = getBoundary(contentType);
+        if ( boundary == null ) throw new IOException("missing multipart boundary");
+        final byte[] delimiter = ("\r\n--" + boundary).getBytes("ISO-8859-1");
+
+        final Reader reader = new Reader(input);
+        final List<Part> parts = new ArrayList<Part>();
+        boolean done = false;
+        try {
+            // the preamble (if any) is followed by the first delimiter, we
+            // prepend a CRLF since the body might start with the delimiter :
+            reader.unread(CRLF);
+            if ( ! reader.skipUntil(delimiter) ) throw new EOFException("bad content body");
+            int count = 0;
+            while ( ! reader.isNext('-', '-') ) { // closing delimiter
+                reader.skipUntil(CRLF); // (transport) padding after delimiter
+                if ( maxParts > 0 && ++count > maxParts ) {
+                    throw new LimitExceededException("too many parts (limit " + maxParts + ")");
+                }
+                final Part part = readHead(reader);
+                if ( part.filename != null && part.filename.length() == 0 ) {
+                    reader.readUntil(delimiter, null, 0); // no file selected
+                }
+                else if ( part.filename != null ) {
+                    readFile(reader, delimiter, part);
+                    parts.add(part);
+                }
+                else {
+                    final ByteArrayOutputStream value = new ByteArrayOutputStream();
+                    part.size = reader.readUntil(delimiter, new Sink() {
+                        public void write(byte[] bytes, int offset, int length) {
+                            value.write(bytes, offset, length);
+                        }
+                    }, maxPartSize);
+                    part.value = value.toByteArray();
+                    parts.add(part);
+                }
+            }
+            done = true;
+        }
+        finally {
+            if ( ! done ) { for ( Part part : parts ) part.delete(); }
+        }
+        return parts;
+    }
+
+    private Part readHead(final Reader reader) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        if ( reader.isNext('\r', '\n') ) reader.skip(2); // no headers
+        else {
+            reader.readUntil(HEAD_END, new Sink() {
+                public void write(byte[] data, int offset, int length) {
+                    bytes.write(data, offset, length);
+                }
+            }, MAX_HEAD_SIZE);
+        }
+        final Part part = new Part();
+        part.head = bytes.toString("UTF-8") + "\r\n";
+        for ( String line : part.head.split("\r\n") ) {
+            final int colon = line.indexOf(':');
+            if ( colon == -1 ) continue;
+            final String name = line.substring(0, colon).trim();
+            final String value = line.substring(colon + 1).trim();
+            if ( "Content-Disposition".equalsIgnoreCase(name) ) {
+                part.name = getParameter(value, "name");
+                String filename = getParameter(value, "filename");
+                if ( filename != null ) {
+                    // IE sends the full (Windows) path, keep only the name :
+                    filename = filename.substring(lastIndexOfAny(filename, "/\\") + 1);
+                }
+                part.filename = filename;
+            }
+            else if ( "Content-Type".equalsIgnoreCase(name) ) {
+                part.contentType = value;
+            }
+        }
+        if ( part.name == null ) part.name = part.filename;
+        return part;
+    }
+
+    private void readFile(final Reader reader, final byte[] delimiter, final Part part)
+        throws IOException {
+        part.file = File.createTempFile(TMP_FILE_PREFIX, "", getDirectory());
+        final FileOutputStream output = new FileOutputStream(part.file);
+        try {
+            final FileChannel channel = output.getChannel();
+            part.size = reader.readUntil(delimiter, new Sink() {
+                public void write(byte[] bytes, int offset, int length) throws IOException {
+                    final ByteBuffer data = ByteBuffer.wrap(bytes, offset, length);
+                    while ( data.hasRemaining() ) channel.write(data);
+                }
+            }, maxPartSize);
+        }
+        catch (IOException e) {
+            output.close(); part.delete();
+            throw e;
+        }
+        output.close();
+    }
+
+    // parameter value e.g. name="foo" from a header (value)
+    static String getParameter(final String header, final String name) {
+        int i = 0; final int len = header.length();
+        while ( i < len ) {
+            i = header.indexOf(';', i);
+            if ( i == -1 ) return null;
+            i++;
+            while ( i < len && header.charAt(i) == ' ' ) i++;
+            final int eq = header.indexOf('=', i);
+            if ( eq == -1 ) return null;
+            final String key = header.substring(i, eq).trim();
+            i = eq + 1;
+            final StringBuilder value = new StringBuilder();
+            if ( i < len && header.charAt(i) == '"' ) {
+                for ( i++; i < len && header.charAt(i) != '"'; i++ ) {
+                    char c = header.charAt(i);
+                    if ( c == '\\' && i + 1 < len ) {
+                        final char next = header.charAt(i + 1);
+                        if ( next == '"' || next == '\\' ) c = header.charAt(++i);
+                    }
+                    value.append(c);
+                }
+                i++; // closing '"'
+            }
+            else {
+                for ( ; i < len && header.charAt(i) != ';'; i++ ) value.append(header.charAt(i));
+            }
+            if ( name.equalsIgnoreCase(key) ) return value.toString();
+        }
+        return null;
+    }
+
+    private static int indexOfAny(final String str, final String chars) {
+        for ( int i = 0; i < str.length(); i++ ) {
+            if ( chars.indexOf(str.charAt(i)) != -1 ) return i;
+        }
+        return -1;
+    }
+
+    private static int lastIndexOfAny(final String str, final String chars) {
+        for ( int i = str.length() - 1; i >= 0; i-- ) {
+            if ( chars.indexOf(str.charAt(i)) != -1 ) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * A parsed part, either a file (with a file name) or a field.
+     */
+    public static class Part {
+
+        String name, filename, contentType, head;
+        byte[] value; File file;
+        long size;
+
+        /**
+         * @return the (field) name
+         */
+        public String getName() { return name; }
+
+        /**
+         * @return the file name (null if not a file)
+         */
+        public String getFilename() { return filename; }
+
+        public String getContentType() { return contentType; }
+
+        /**
+         * @return the (raw) part head (headers)
+         */
+        public String getHead() { return head; }
+
+        public boolean isFile() { return file != null; }
+
+        /**
+         * @return the (temporary) file the part content has been written to
+         */
+        public File getFile() { return file; }
+
+        /**
+         * @return the (field) value bytes (null for files)
+         */
+        public byte[] getValue() { return value; }
+
+        public long getSize() { return size; }
+
+        /**
+         * Deletes the (temporary) file.
+         */
+        public void delete() {
+            if ( file != null ) file.delete();
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "[name=" + name + ( isFile() ?
+                ", filename=" + filename + ", file=" + file : "" ) + ", size=" + size + "]";
+        }
+
+    }
+
+    /**
+     * Thrown if a (configured) limit is exceeded.
+     */
+    public static class LimitExceededException extends IOException {
+
+        public LimitExceededException(String message) {
+            super(message);
+        }
+
+    }
+
+    private static interface Sink {
+        void write(byte[] bytes, int offset, int length) throws IOException;
+    }
+
+    /**
+     * Buffered (stream) reading with delimiter scanning.
+     */
+    private static class Reader {
+
+        private final InputStream input;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int pos, end;
+        private boolean eof;
+
+        Reader(InputStream input) {
+            this.input = input;
+        }
+
+        void unread(final byte[] bytes) {
+            System.arraycopy(bytes, 0, buffer, end, bytes.length);
+            end += bytes.length;
+        }
+
+        boolean isNext(final char c1, final char c2) throws IOException {
+            if ( ! fill(2) ) throw new EOFException("bad content body");
+            return buffer[pos] == c1 && buffer[pos + 1] == c2;
+        }
+
+        void skip(final int count) throws IOException {
+            if ( ! fill(count) ) throw new EOFException("bad content body");
+            pos += count;
+        }
+
+        boolean skipUntil(final byte[] delimiter) throws IOException {
+            try {
+                readUntil(delimiter, null, 0);
+                return true;
+            }
+            catch (EOFException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Reads until the delimiter, content before the delimiter is written
+         * into the sink and the delimiter is skipped.
+         * @return the content length (before the delimiter)
+         */
+        long readUntil(final byte[] delimiter, final Sink sink, final long max)
+            throws IOException {
+            final int len = delimiter.length;
+            final int last = len - 1;
+            // (Boyer-Moore-)Horspool bad character shifts :
+            final int[] shift = new int[256];
+            for ( int i = 0; i < 256; i++ ) shift[i] = len;
+            for ( int i = 0; i < last; i++ ) shift[delimiter[i] & 0xFF] = last - i;
+
+            long size = 0;
+            while ( true ) {
+                int i = pos;
+                while ( i + last < end ) {
+                    int j = last;
+                    while ( j >= 0 && buffer[i + j] == delimiter[j] ) j--;
+                    if ( j < 0 ) { // found
+                        size = write(sink, i - pos, size, max);
+                        pos = i + len;
+                        return size;
+                    }
+                    i += shift[buffer[i + last] & 0xFF];
+                }
+                // write out what can not be (a part of) the delimiter :
+                final int keep = Math.min(last, end - pos);
+                size = write(sink, end - pos - keep, size, max);
+                if ( ! fill(len) ) throw new EOFException("bad content body");
+            }
+        }
+
+        private long write(final Sink sink, final int length, long size, final long max)
+            throws IOException {
+            if ( length <= 0 ) return size;
+            size += length;
+            if ( max > 0 && size > max ) {
+                throw new LimitExceededException("part too large (limit " + max + " bytes)");
+            }
+            if ( sink != null ) sink.write(buffer, pos, length);
+            pos += length;
+            return size;
+        }
+
+        // ensure count bytes are available in the buffer (unless EOF)
+        private boolean fill(final int count) throws IOException {
+            if ( end - pos >= count ) return true;
+            if ( pos > 0 ) { // compact
+                System.arraycopy(buffer, pos, buffer, 0, end - pos);
+                end -= pos; pos = 0;
+            }
+            while ( ! eof && end - pos < count ) {
+                final int read = input.read(buffer, end, buffer.length - end);
+                if ( read == -1 ) eof = true;
+                else end += read;
+            }
+            return end - pos >= count;
+        }
+
+    }
+
+}
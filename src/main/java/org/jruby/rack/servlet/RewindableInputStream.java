@@ -12,6 +12,10 @@ import java.io.InputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import javax.servlet.ServletInputStream;
 
@@ -35,6 +39,14 @@ public class RewindableInputStream extends ServletInputStream {
     
     private static final int TMP_READ_BUFFER_SIZE = 1024;
     
+    // (memory) mapped mode spills from the stream in larger chunks :
+    private static final int MAPPED_READ_BUFFER_SIZE = 64 * 1024;
+    
+    /**
+     * Maximum size of a (memory) mapped window of a spilled (file) buffer.
+     */
+    public static final int MAPPED_WINDOW_SIZE = 64 * 1024 * 1024;
+    
     public static final String TMP_FILE_PREFIX = "jruby-rack-input_";
     
     private static int iniBufferSize = INI_BUFFER_SIZE;
@@ -67,18 +79,95 @@ public class RewindableInputStream extends ServletInputStream {
         RewindableInputStream.maxBufferSize = maxBufferSize;
     }
     
+    private static File spillDirectory;
+
+    public static File getDefaultSpillDirectory() {
+        return spillDirectory;
+    }
+
+    /**
+     * Set the directory temporary (spill) files are created in for all 
+     * instances created afterwards.
+     * @param spillDirectory the directory or null for the default temp dir
+     */
+    public static void setDefaultSpillDirectory(File spillDirectory) {
+        RewindableInputStream.spillDirectory = spillDirectory;
+    }
+    
+    private static boolean spillMapped;
+
+    public static boolean isDefaultSpillMapped() {
+        return spillMapped;
+    }
+
+    /**
+     * Set whether content spilled to a (temporary) file is read back through
+     * a memory mapped window (instead of file reads) for all instances created
+     * afterwards, mapped files are deleted asynchronously on close.
+     * @param spillMapped 
+     */
+    public static void setDefaultSpillMapped(boolean spillMapped) {
+        RewindableInputStream.spillMapped = spillMapped;
+    }
+    
+    private static boolean lazy;
+
+    public static boolean isDefaultLazy() {
+        return lazy;
+    }
+
+    /**
+     * Set whether instances created afterwards buffer lazily, reads pass 
+     * through (straight from the wrapped stream) while the content read is
+     * recorded, buffered reads start once the stream gets marked or rewound
+     * (replaying the recorded content).
+     * @param lazy 
+     */
+    public static void setDefaultLazy(boolean lazy) {
+        RewindableInputStream.lazy = lazy;
+    }
+    
+    private static ByteBufferPool bufferPool;
+
+    public static ByteBufferPool getDefaultBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Set the pool (memory) buffers are acquired from (on first read) and
+     * released to (on close) for all instances created afterwards.
+     * @param bufferPool the pool or null to allocate buffers per stream
+     */
+    public static void setDefaultBufferPool(ByteBufferPool bufferPool) {
+        RewindableInputStream.bufferPool = bufferPool;
+    }
+    
     private final InputStream input;
     
     // an in memory buffer, the wrapped stream will be buffered in memory 
     // until this buffer is full, then it will be written to a temp file.
     // we're using the buffer.limit() to track how many bytes are currently 
-    // left in the buffer
+    // left in the buffer, the buffer is acquired lazily (on first read)
     private ByteBuffer buffer;
+    private final int bufferIni;
     private final int bufferMax;
+    private final ByteBufferPool pool;
+    private boolean closed;
     
     // the on disk buffered content for this stream
     private RandomAccessFile bufferFile = null;
     private String bufferFilePath; // file path (for deletion)
+    private final File bufferFileDirectory;
+    
+    // mapped mode: the buffer is a (read-only) mapped window of the file
+    private final boolean mapped;
+    private long mappedStart; // file position of the mapped window
+    private long spillLength; // bytes written to the file so far
+    private byte[] spillData;
+    
+    // lazy mode: reading straight from the stream (until marked or rewound),
+    // we're recording what's been read with buffer.position() == limit()
+    private boolean passThrough;
 
     // last remembered position (mark support)
     private long mark = -1;
@@ -108,9 +197,12 @@ public class RewindableInputStream extends ServletInputStream {
      */
     public RewindableInputStream(InputStream input, int iniBufferSize, int maxBufferSize) {
         this.input = input; // super(input);
-        this.buffer = ByteBuffer.allocate(iniBufferSize);
-        this.buffer.limit(0); // empty
+        this.bufferIni = iniBufferSize;
         this.bufferMax = maxBufferSize;
+        this.pool = RewindableInputStream.bufferPool;
+        this.bufferFileDirectory = RewindableInputStream.spillDirectory;
+        this.mapped = RewindableInputStream.spillMapped;
+        this.passThrough = RewindableInputStream.lazy;
     }
 
     /**
@@ -119,7 +211,8 @@ public class RewindableInputStream extends ServletInputStream {
     @Override
     public synchronized int available() throws IOException {
         ensureOpen();
-        return input.available() + buffer.remaining();
+        if ( passThrough ) return input.available();
+        return input.available() + ( buffer == null ? 0 : buffer.remaining() );
     }
 
     /**
@@ -136,10 +229,14 @@ public class RewindableInputStream extends ServletInputStream {
     @Override
     public synchronized void mark(int readlimit) {
         try {
+            ensureBuffer();
+            endPassThrough();
             this.mark = getPosition(); //this.position;
             // to keep it simple we ensure there's enough
             // room left in the buffer itself :
-            assureBufferCapacity(readlimit, true);
+            if ( ! mapped || ! isFileBuffered() ) {
+                assureBufferCapacity(readlimit, true);
+            }
         }
         catch (IOException e) {
             // should not happen since we're forcing
@@ -157,6 +254,8 @@ public class RewindableInputStream extends ServletInputStream {
         if (this.mark < 0) {
             throw new IOException("The marked position is invalid");
         }
+        ensureBuffer();
+        endPassThrough();
         setPosition(this.mark);
     }
     
@@ -166,6 +265,13 @@ public class RewindableInputStream extends ServletInputStream {
     @Override
     public synchronized int read() throws IOException {
         ensureOpen();
+        ensureBuffer();
+        
+        if (passThrough) {
+            final int b = input.read();
+            if (b != -1) record(new byte[] { (byte) b }, 0, 1);
+            return b;
+        }
         
         if (fillBuffer(1) == -1) return -1;  // EOF
         
@@ -180,6 +286,13 @@ public class RewindableInputStream extends ServletInputStream {
     public synchronized int read(byte[] buffer, final int offset, final int length) 
         throws IOException {
         ensureOpen();
+        ensureBuffer();
+        
+        if (passThrough) {
+            final int read = input.read(buffer, offset, length);
+            if (read > 0) record(buffer, offset, read);
+            return read;
+        }
 
         int count = 0;
         while (count < length) {
@@ -199,19 +312,25 @@ public class RewindableInputStream extends ServletInputStream {
      */
     @Override
     public synchronized void close() throws IOException {
-        if (buffer == null) return;
+        if (closed) return;
+        closed = true;
 
         if (bufferFile != null) {
             try {
                 bufferFile.close();
             }
             finally {
-                new File(bufferFilePath).delete();
+                if (mapped) deleteLater(new File(bufferFilePath));
+                else new File(bufferFilePath).delete();
             }
         }
 
         super.close();
-        buffer = null;
+        if (buffer != null) {
+            // NOTE: a mapped buffer is not ours (heap buffer released on spill)
+            if (pool != null && buffer.hasArray()) pool.release(buffer);
+            buffer = null;
+        }
     }
     
     /**
@@ -220,15 +339,62 @@ public class RewindableInputStream extends ServletInputStream {
      */
     public synchronized void rewind() throws IOException {
         ensureOpen();
+        if (buffer == null) return; // nothing read yet
+        endPassThrough();
         setPosition(0);
     }
 
     private void ensureOpen() throws IOException {
-        if (buffer == null) {
+        if (closed) {
             throw new IOException("IO is closed");
         }
     }
 
+    private void ensureBuffer() {
+        if (buffer == null) {
+            buffer = pool == null ? 
+                ByteBuffer.allocate(bufferIni) : pool.acquire(bufferIni);
+            buffer.limit(0); // empty
+        }
+    }
+
+    /**
+     * Record (pass-through) content read, content is kept in the buffer and
+     * spilled to a file same as if it were read (buffered) from the stream.
+     */
+    private void record(final byte[] data, final int offset, final int length) 
+        throws IOException {
+        if ( ! isFileBuffered() ) {
+            assureBufferCapacity(length, false); // might switch to file
+        }
+        // isFileBuffered() might have changed with assureBufferCapacity
+        if ( isFileBuffered() ) {
+            if ( mapped ) {
+                final ByteBuffer content = ByteBuffer.wrap(data, offset, length);
+                while ( content.hasRemaining() ) {
+                    spillLength += bufferFile.getChannel().write(content, spillLength);
+                }
+            }
+            else {
+                bufferFile.write(data, offset, length); // file pointer at the end
+            }
+        }
+        else {
+            buffer.limit(buffer.position() + length);
+            buffer.put(data, offset, length);
+        }
+    }
+    
+    /**
+     * Switch from (lazy) pass-through to buffered reads, all content recorded
+     * so far is considered read (thus might be replayed after a rewind).
+     */
+    private void endPassThrough() throws IOException {
+        if ( ! passThrough ) return;
+        passThrough = false;
+        if ( mapped && isFileBuffered() ) map(spillLength);
+    }
+    
     /**
      * Fill the buffer from the underlying stream with count bytes.
      * @param count
@@ -241,7 +407,7 @@ public class RewindableInputStream extends ServletInputStream {
         }
         // isFileBuffered() might have changed with assureBufferCapacity
         if ( isFileBuffered() ) {
-            return fillBufferFromFile(count);
+            return mapped ? fillBufferFromMapping(count) : fillBufferFromFile(count);
         }
         else {
             if ( ! buffer.hasArray() ) {
@@ -269,6 +435,9 @@ public class RewindableInputStream extends ServletInputStream {
             // we'll try to incrementaly increase the buffer capacity :
             int newSize = buffer.capacity() + Math.max(count, buffer.capacity());
             if (newSize <= bufferMax) {
+                if (pool != null) { // grow into a (pooled) size class
+                    newSize = Math.min(pool.getCapacity(newSize), bufferMax);
+                }
                 buffer = copyBuffer(newSize);
             }
             // forcing is not really used - only here to ease mark() support
@@ -289,7 +458,8 @@ public class RewindableInputStream extends ServletInputStream {
      * @return a new buffer (copy of current)
      */
     private ByteBuffer copyBuffer(final int capacity) {
-        ByteBuffer newBuffer = ByteBuffer.allocate(capacity);
+        ByteBuffer newBuffer = pool == null ? 
+            ByteBuffer.allocate(capacity) : pool.acquire(capacity);
         if ( ! buffer.hasArray() || ! newBuffer.hasArray() ) {
             throw new IllegalStateException("byte buffer without backing array");
         }
@@ -300,6 +470,7 @@ public class RewindableInputStream extends ServletInputStream {
                 newBuffer.array(), newBuffer.arrayOffset(), 
                 buffer.limit()
         );
+        if (pool != null) pool.release(buffer);
         return newBuffer;
     }
 
@@ -346,6 +517,33 @@ public class RewindableInputStream extends ServletInputStream {
         return Math.min(buffer.remaining(), count);
     }
 
+    private int fillBufferFromMapping(final int count) throws IOException {
+        if ( buffer.remaining() < count ) {
+            final long position = mappedStart + buffer.position();
+            final FileChannel channel = bufferFile.getChannel();
+            while ( spillLength - position < count ) { // spill from stream
+                if ( spillData == null ) spillData = new byte[MAPPED_READ_BUFFER_SIZE];
+                final int dataLen = input.read(spillData);
+                if ( dataLen == -1 ) break; // no more data to read from stream
+                
+                final ByteBuffer data = ByteBuffer.wrap(spillData, 0, dataLen);
+                while ( data.hasRemaining() ) {
+                    spillLength += channel.write(data, spillLength);
+                }
+            }
+            // re-map if there's more (spilled) content than mapped :
+            if ( position + buffer.remaining() < spillLength ) map(position);
+            if ( buffer.remaining() == 0 ) return -1;
+        }
+        return Math.min(buffer.remaining(), count);
+    }
+    
+    private void map(final long position) throws IOException {
+        final long size = Math.min(spillLength - position, MAPPED_WINDOW_SIZE);
+        this.buffer = bufferFile.getChannel().map(FileChannel.MapMode.READ_ONLY, position, size);
+        this.mappedStart = position;
+    }
+    
     boolean isFileBuffered() {
         return this.bufferFile != null;
     }
@@ -357,14 +555,21 @@ public class RewindableInputStream extends ServletInputStream {
         
         final int position = this.buffer.position();
         
-        File tmpFile = File.createTempFile(TMP_FILE_PREFIX, "");
+        File tmpFile = File.createTempFile(TMP_FILE_PREFIX, "", bufferFileDirectory);
         this.bufferFile = new RandomAccessFile(tmpFile, "rw");
         this.bufferFilePath = tmpFile.getPath();
         
         this.buffer.position(this.buffer.arrayOffset());
         this.bufferFile.getChannel().write(this.buffer);
         
-        setPosition(position);
+        if ( mapped ) { // the (memory) buffer is no longer needed
+            this.spillLength = this.bufferFile.length();
+            if (pool != null) pool.release(this.buffer);
+            map(position);
+        }
+        else {
+            setPosition(position);
+        }
     }
     
     /**
@@ -375,7 +580,16 @@ public class RewindableInputStream extends ServletInputStream {
      * @throws IOException 
      */
     private void setPosition(final long position) throws IOException {
-        if ( isFileBuffered() ) {
+        if ( mapped && isFileBuffered() ) {
+            final long offset = position - mappedStart;
+            if ( offset >= 0 && offset <= buffer.limit() ) {
+                this.buffer.position((int) offset); // within the mapped window
+            }
+            else {
+                map(position);
+            }
+        }
+        else if ( isFileBuffered() ) {
             this.buffer.rewind().limit(0); // buffer.remaining() == 0
             this.bufferFile.seek(position);
         }
@@ -386,8 +600,13 @@ public class RewindableInputStream extends ServletInputStream {
     }
     
     long getPosition() throws IOException {
+        if ( buffer == null ) return 0;
+        if ( mapped && isFileBuffered() ) {
+            return mappedStart + this.buffer.position();
+        }
         if ( isFileBuffered() ) {
-            return bufferFile.getFilePointer();
+            // the file pointer is ahead by what has been buffered (not yet read)
+            return bufferFile.getFilePointer() - this.buffer.remaining();
         }
         else {
             return this.buffer.position();
@@ -395,11 +614,34 @@ public class RewindableInputStream extends ServletInputStream {
     }
 
     public int getCurrentBufferSize() {
-        return buffer.capacity();
+        return buffer == null ? bufferIni : buffer.capacity();
     }
     
     public int getMaximumBufferSize() {
         return bufferMax;
     }
     
+    private static ExecutorService deleter;
+    
+    /**
+     * Deletes a (large) spill file in the background, mapped files might not
+     * be deletable (until unmapped) on some systems thus deleted on exit.
+     */
+    private static synchronized void deleteLater(final File file) {
+        if ( deleter == null ) {
+            deleter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable task) {
+                    final Thread thread = new Thread(task, "jruby-rack-input-deleter");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        deleter.execute(new Runnable() {
+            public void run() {
+                if ( ! file.delete() && file.exists() ) file.deleteOnExit();
+            }
+        });
+    }
+    
 }
@@ -0,0 +1,149 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack.util;
+
+import java.util.AbstractQueue;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A lock-free (Treiber) stack exposed as a {@link java.util.Queue} where
+ * {@link #offer(Object)} pushes and {@link #poll()} pops elements, thus the
+ * most recently offered element is the one retrieved first (LIFO).
+ * <p>
+ * Removal of arbitrary elements is supported (elements get marked removed
+ * and are unlinked lazily), {@link #peekLast()} returns the least recently
+ * offered element. As with most concurrent collections {@link #size()} is
+ * not a constant time operation.
+ *
+ * @param <E> element type
+ */
+public class ConcurrentStack<E> extends AbstractQueue<E> {
+
+    private final AtomicReference<Node<E>> head = new AtomicReference<Node<E>>();
+
+    public boolean offer(final E element) {
+        if ( element == null ) throw new NullPointerException();
+        final Node<E> node = new Node<E>(element);
+        Node<E> top;
+        do {
+            top = head.get();
+            node.next = top;
+        }
+        while ( ! head.compareAndSet(top, node) );
+        return true;
+    }
+
+    public E poll() {
+        Node<E> top;
+        while ( ( top = head.get() ) != null ) {
+            if ( head.compareAndSet(top, top.next) ) {
+                if ( top.claim() ) return top.element;
+                // else it's been removed meanwhile - try next
+            }
+        }
+        return null;
+    }
+
+    public E peek() {
+        for ( Node<E> node = head.get(); node != null; node = node.next ) {
+            if ( ! node.isRemoved() ) return node.element;
+        }
+        return null;
+    }
+
+    /**
+     * @return the least recently offered (bottom) element or null if empty
+     */
+    public E peekLast() {
+        E last = null;
+        for ( Node<E> node = head.get(); node != null; node = node.next ) {
+            if ( ! node.isRemoved() ) last = node.element;
+        }
+        return last;
+    }
+
+    @Override
+    public boolean remove(final Object element) {
+        if ( element == null ) return false;
+        Node<E> prev = null;
+        for ( Node<E> node = head.get(); node != null; node = node.next ) {
+            if ( node.isRemoved() ) {
+                if ( prev != null ) prev.next = node.next; // unlink
+                continue;
+            }
+            if ( element.equals(node.element) && node.claim() ) {
+                if ( prev != null ) prev.next = node.next;
+                return true;
+            }
+            prev = node;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return peek() == null;
+    }
+
+    public int size() {
+        int size = 0;
+        for ( Node<E> node = head.get(); node != null; node = node.next ) {
+            if ( ! node.isRemoved() ) size++;
+        }
+        return size;
+    }
+
+    /**
+     * @return a weakly consistent iterator (top to bottom)
+     */
+    public Iterator<E> iterator() {
+        return new Iterator<E>() {
+
+            private Node<E> next = advance(head.get());
+            private Node<E> last;
+
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            public E next() {
+                if ( next == null ) throw new NoSuchElementException();
+                last = next;
+                next = advance(next.next);
+                return last.element;
+            }
+
+            public void remove() {
+                if ( last == null ) throw new IllegalStateException();
+                last.claim(); last = null;
+            }
+
+        };
+    }
+
+    private static <E> Node<E> advance(Node<E> node) {
+        while ( node != null && node.isRemoved() ) node = node.next;
+        return node;
+    }
+
+    private static class Node<E> extends AtomicBoolean {
+
+        final E element;
+        volatile Node<E> next;
+
+        Node(final E element) {
+            this.element = element;
+        }
+
+        final boolean claim() { return compareAndSet(false, true); }
+
+        final boolean isRemoved() { return get(); }
+
+    }
+
+}
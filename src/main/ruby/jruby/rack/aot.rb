@@ -0,0 +1,120 @@
+#--
+# This source code is available under the MIT license.
+# See the file LICENSE.txt for details.
+#++
+
+require 'fileutils'
+require 'tmpdir'
+
+module JRuby
+  module Rack
+    # Compiles (application) Ruby sources ahead of time - at deploy time - into
+    # JVM bytecode, a .class file is written next to each compiled .rb source.
+    # Runtimes load the precompiled scripts instead of parsing the sources (see
+    # the jruby.rack.aot parameter). Usable from a Rakefile e.g. :
+    #
+    #   require 'jruby/rack/aot'
+    #   JRuby::Rack::AOT.compile('tmp/war/WEB-INF') # an exploded web app
+    #   JRuby::Rack::AOT.compile_war('myapp.war')   # a packaged .war (updated)
+    #
+    # @see org.jruby.rack.PrecompiledLoadService
+    module AOT
+
+      # (WEB-INF relative) directories compiled by default
+      PATHS = %w( app config lib vendor gems )
+
+      # Compiles all .rb files (in place) under the given paths of root, files
+      # failing to compile are skipped (their sources are loaded at runtime).
+      # Options: :paths (defaults to PATHS), :verbose
+      # @return the compiled .class files (relative to root)
+      def self.compile(root, options = {})
+        require 'jruby/compiler'
+        compiler_options = JRuby::Compiler.default_options.merge(
+          :basedir => '.', :target => '.', :prefix => 'ruby',
+          :verbose => !! options[:verbose]
+        )
+        Dir.chdir(root) do
+          sources = ( options[:paths] || PATHS ).map do |path|
+            File.directory?(path) ? Dir.glob("#{path}/**/*.rb") : []
+          end.flatten
+          # NOTE: class names derive from the (root relative) file names
+          # thus these are unique within the application :
+          sources.select do |source|
+            JRuby::Compiler.compile_files_with_options([ source ], compiler_options) == 0
+          end.map { |source| source.sub(/\.rb$/, '.class') }
+        end
+      end
+
+      # Compiles the .rb sources (under the WEB-INF paths) of a packaged .war
+      # file, the .war gets updated with the compiled .class files.
+      # Options: same as #compile
+      # @return the compiled .class files (entry names)
+      def self.compile_war(war, options = {})
+        require 'java'
+        paths = ( options[:paths] || PATHS ).map { |path| "WEB-INF/#{path}/" }
+        dir = File.join(Dir.tmpdir, "jruby-rack-aot-#{$$}-#{rand(0x100000000).to_s(36)}")
+        begin
+          each_entry(war) do |zip, entry|
+            name = entry.name
+            next unless name =~ /\.rb$/ && paths.any? { |path| name.index(path) == 0 }
+            file = File.join(dir, name)
+            FileUtils.mkdir_p File.dirname(file)
+            File.open(file, 'wb') { |f| copy(zip.getInputStream(entry), f.to_outputstream) }
+          end
+          classes = compile(File.join(dir, 'WEB-INF'), options).map { |name| "WEB-INF/#{name}" }
+          update_war(war, dir, classes)
+          classes
+        ensure
+          FileUtils.rm_rf dir
+        end
+      end
+
+      def self.update_war(war, dir, classes)
+        updated = "#{war}.aot"
+        out = java.util.zip.ZipOutputStream.new(java.io.FileOutputStream.new(updated))
+        begin
+          each_entry(war) do |zip, entry| # (re-)compiled classes replace existing ones
+            next if classes.include?(entry.name)
+            copy_entry = java.util.zip.ZipEntry.new(entry.name)
+            copy_entry.time = entry.time
+            out.putNextEntry(copy_entry)
+            copy(zip.getInputStream(entry), out)
+            out.closeEntry
+          end
+          classes.each do |name| # newer than the sources (when exploded)
+            out.putNextEntry(java.util.zip.ZipEntry.new(name))
+            File.open(File.join(dir, name), 'rb') { |f| copy(f.to_inputstream, out) }
+            out.closeEntry
+          end
+        ensure
+          out.close
+        end
+        FileUtils.mv updated, war
+      end
+      private_class_method :update_war
+
+      def self.each_entry(war)
+        zip = java.util.zip.ZipFile.new(war)
+        begin
+          entries = zip.entries
+          yield(zip, entries.nextElement) while entries.hasMoreElements
+        ensure
+          zip.close
+        end
+      end
+      private_class_method :each_entry
+
+      def self.copy(input, output)
+        buffer = Java::byte[8192].new
+        while ( read = input.read(buffer) ) != -1
+          output.write(buffer, 0, read)
+        end
+        output.flush
+      ensure
+        input.close
+      end
+      private_class_method :copy
+
+    end
+  end
+end
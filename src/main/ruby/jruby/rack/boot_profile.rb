@@ -0,0 +1,26 @@
+#--
+# This source code is available under the MIT license.
+# See the file LICENSE.txt for details.
+#++
+
+# Times (loaded) requires while the runtime boots, the timings are reported to
+# the boot being profiled (the global gets cleared once the boot finishes).
+# @see org.jruby.rack.BootProfiler
+module Kernel
+
+  alias_method :require_without_boot_profile, :require
+
+  def require(path)
+    return require_without_boot_profile(path) unless profile = $jruby_rack_boot_profile
+    start = profile.now
+    loaded = require_without_boot_profile(path)
+    if loaded
+      feature = path.to_s
+      profile.required(feature, start)
+      profile.phase('bundler', start) if feature == 'bundler/setup'
+    end
+    loaded
+  end
+  private :require
+
+end
@@ -18,6 +18,8 @@ module JRuby::Rack
     end
 
     def boot!
+      profile = $jruby_rack_boot_profile # @see org.jruby.rack.BootProfiler
+      start = profile.now if profile
       adjust_load_path
       ENV['RACK_ENV'] = rack_env
       gem_path = layout.gem_path
@@ -34,6 +36,8 @@ module JRuby::Rack
       load_settings_from_init_rb
       load_extensions
       self
+    ensure
+      profile.phase('booter', start) if start
     end
     
     def default_layout_class
@@ -19,7 +19,16 @@ module Rack
       end
 
       def call(servlet_env)
-        JRuby::Rack::Response.new(@app.call(create_env(servlet_env)))
+        env = create_env(servlet_env)
+        response = @app.call(env)
+        if env.has_key?('rack.tempfiles') # uploads are deleted once responded
+          status, headers, body = *response
+          response = [ status, headers, Multipart::BodyProxy.new(body, env) ]
+        end
+        JRuby::Rack::Response.new(response)
+      rescue Exception
+        Multipart.cleanup(env) if env && env.has_key?('rack.tempfiles')
+        raise
       end
 
       def create_env(servlet_env)
@@ -50,6 +59,7 @@ module Rack
       
       autoload :DefaultEnv, "rack/handler/servlet/default_env"
       autoload :ServletEnv, "rack/handler/servlet/servlet_env"
+      autoload :Multipart, "rack/handler/servlet/multipart"
       
     end
     # #deprecated backwards compatibility
@@ -149,6 +149,8 @@ module Rack
           when 'jruby.rack.version'   then env[key] = JRuby::Rack::VERSION
           when 'jruby.rack.jruby.version' then env[key] = JRUBY_VERSION
           when 'jruby.rack.rack.release'  then env[key] = ::Rack.release
+          when 'rack.request.form_input', 'rack.request.form_hash'
+            env[key] if load_multipart(env) # parsed by Java (if enabled)
           else
             nil
           end
@@ -180,6 +182,11 @@ module Rack
 
         private
 
+        def load_multipart(env)
+          return @multipart if defined? @multipart
+          @multipart = Multipart.load(env)
+        end
+
         def rack_context
           @rack_context ||=            
             if @servlet_env.respond_to?(:context)
@@ -0,0 +1,134 @@
+#--
+# This source code is available under the MIT license.
+# See the file LICENSE.txt for details.
+#++
+
+require 'rack/handler/servlet'
+
+module Rack
+  module Handler
+    class Servlet
+      # Maps multipart/form-data bodies parsed (in Java) by the
+      # org.jruby.rack.servlet.MultipartParser into Rack's form parameters
+      # (in a Rack::Multipart compatible way), thus Rack::Request#POST won't
+      # parse the body (again). Enabled with the jruby.rack.request.multipart
+      # parameter (the parser is configured by the application factory).
+      module Multipart
+
+        # A (Tempfile like) uploaded file, deleted once the response is done.
+        class Tempfile < ::File
+
+          def size
+            ::File.size(path)
+          end
+
+          def unlink
+            ::File.delete(path) if ::File.exist?(path)
+          end
+          alias_method :delete, :unlink
+
+          def close!
+            close unless closed?
+            unlink
+          end
+
+        end
+
+        # Wraps the response body and deletes (uploaded) files once the body
+        # gets closed (after it's been written) as Rack::TempfileReaper does,
+        # thus a (streaming) body might still read the uploads.
+        class BodyProxy
+
+          def initialize(body, env)
+            @body, @env, @closed = body, env, false
+          end
+
+          def respond_to?(name, include_private = false)
+            super || @body.respond_to?(name, include_private)
+          end
+
+          def close
+            return if @closed
+            @closed = true
+            begin
+              @body.close if @body.respond_to?(:close)
+            ensure
+              Multipart.cleanup(@env)
+            end
+          end
+
+          def closed?
+            @closed
+          end
+
+          def each(*args, &block)
+            @body.each(*args, &block)
+          end
+
+          def method_missing(name, *args, &block)
+            @body.__send__(name, *args, &block)
+          end
+
+        end
+
+        # Parse the (multipart) body and fill in the form env keys.
+        # @return true if parsed, false if not a (parseable) multipart body
+        def self.load(env)
+          return false unless content_type = env['CONTENT_TYPE']
+          return false unless content_type =~ /\Amultipart\//i
+          input = env['rack.input']
+          return false unless input.is_a?(JRuby::RackInput)
+          return false unless parser = Java::OrgJrubyRackServlet::MultipartParser.getDefault
+
+          input.rewind
+          begin
+            parts = parser.parse(JRuby.reference(input).getInputStream, content_type).to_a
+          rescue Java::OrgJrubyRackServlet::MultipartParser::LimitExceededException => e
+            raise RangeError, e.message
+          rescue java.io.IOException => e
+            raise EOFError, e.message
+          ensure
+            input.rewind
+          end
+
+          # register all (uploaded) files before building params, thus these
+          # get deleted (on cleanup) even if building the params fails :
+          tempfiles = ( env['rack.tempfiles'] ||= [] )
+          files = []
+          begin
+            parts.each do |part|
+              files << ( part.file? ? Tempfile.new(part.file.path, 'rb') : nil )
+            end
+          ensure
+            tempfiles.concat files.compact
+            parts[files.size..-1].each { |part| part.delete } # failed to open
+          end
+
+          params = defined?(::Rack::Utils::KeySpaceConstrainedParams) ?
+            ::Rack::Utils::KeySpaceConstrainedParams.new : {}
+          parts.each_with_index do |part, i|
+            if tempfile = files[i]
+              data = { :filename => part.filename, :type => part.content_type,
+                       :name => part.name, :tempfile => tempfile, :head => part.head }
+            else
+              data = String.from_java_bytes(part.value)
+            end
+            ::Rack::Utils.normalize_params(params, part.name, data) if part.name
+          end
+
+          env['rack.request.form_input'] = input
+          env['rack.request.form_hash'] =
+            params.respond_to?(:to_params_hash) ? params.to_params_hash : params
+          true
+        end
+
+        # Delete (uploaded) files the request left behind.
+        def self.cleanup(env)
+          return unless tempfiles = env['rack.tempfiles']
+          tempfiles.each { |file| file.close! if file.is_a?(Tempfile) }
+        end
+
+      end
+    end
+  end
+end
@@ -154,6 +154,17 @@ describe org.jruby.rack.DefaultRackApplicationFactory do
     @app_factory.rackup_script.should == "# coding: us-ascii\nrun MyRackApp"
   end
   
+  it "reads the rackup script without using it till set" do
+    @rack_config.stub!(:getRackup).and_return 'run MyRackApp'
+    @app_factory.init @rack_context
+    @rack_config.stub!(:getRackup).and_return 'run MyNewRackApp'
+    rackup = @app_factory.readRackup
+    rackup.to_a.should == [ 'run MyNewRackApp', '<web.xml>' ]
+    @app_factory.rackup_script.should == 'run MyRackApp'
+    @app_factory.setRackup rackup
+    @app_factory.rackup_script.should == 'run MyNewRackApp'
+  end
+  
   it "initializes default request memory buffer size" do
     @rack_config.should_receive(:getInitialMemoryBufferSize).and_return 42
     @rack_config.should_receive(:getMaximumMemoryBufferSize).and_return 420
@@ -164,6 +175,38 @@ describe org.jruby.rack.DefaultRackApplicationFactory do
     input_stream.getCurrentBufferSize.should == 42
     input_stream.getMaximumBufferSize.should == 420
   end
+
+  it "initializes a request buffer pool" do
+    @rack_config.stub!(:getNumberProperty) do |name|
+      name == 'jruby.rack.request.buffer.pool' ? 8 : nil
+    end
+    @app_factory.init @rack_context
+    pool = org.jruby.rack.servlet.RewindableInputStream.getDefaultBufferPool
+    pool.getMaximumPooled.should == 8
+
+    @rack_config.stub!(:getNumberProperty) do |name|
+      name == 'jruby.rack.request.buffer.pool' ? 0 : nil
+    end
+    @app_factory.init @rack_context
+    org.jruby.rack.servlet.RewindableInputStream.getDefaultBufferPool.should be_nil
+  end
+
+  it "does not pool request buffers by default" do
+    @app_factory.init @rack_context
+    org.jruby.rack.servlet.RewindableInputStream.getDefaultBufferPool.should be_nil
+  end
+
+  it "initializes a multipart parser once enabled" do
+    @rack_config.stub!(:getBooleanProperty) do |name|
+      name == 'jruby.rack.request.multipart' ? true : nil
+    end
+    @app_factory.init @rack_context
+    org.jruby.rack.servlet.MultipartParser.getDefault.should_not be_nil
+
+    @rack_config.stub!(:getBooleanProperty).and_return nil
+    @app_factory.init @rack_context
+    org.jruby.rack.servlet.MultipartParser.getDefault.should be_nil
+  end
   
   before do
     reset_booter
@@ -292,6 +335,22 @@ describe org.jruby.rack.DefaultRackApplicationFactory do
         expect( response.getHeaders ).to be_empty
         expect( response.getBody ).to_not be nil
       end
+
+      it "shares the application runtime when configured" do
+        @rack_config.stub!(:getProperty) do |name|
+          name == 'jruby.rack.error.runtime' ? 'shared' : nil
+        end
+        app_factory.should_not_receive(:newRuntime)
+        error_application = app_factory.getErrorApplication
+        expect( error_application ).to be_a(org.jruby.rack.ErrorApplication)
+        # no (failed) application - falls back to the default response :
+        rack_env = mock("rack env")
+        rack_env.stub!(:getAttribute) do |name|
+          name == 'jruby.rack.exception' ? java.lang.RuntimeException.new('42') : nil
+        end
+        response = error_application.call rack_env
+        expect( response.getStatus ).to eql 500
+      end
       
     end
 
@@ -529,17 +588,37 @@ describe org.jruby.rack.PoolingRackApplicationFactory do
 
   it "should create a new application when empty" do
     app = mock "app"
-    @factory.should_receive(:getApplication).and_return app
+    @factory.should_receive(:newApplication).and_return app
+    app.should_receive(:init)
     @pooling_factory.getApplication.should == app
   end
 
   it "should not add newly created application to pool" do
-    app = mock "app"
-    @factory.should_receive(:getApplication).and_return app
+    app = mock "app"; app.stub!(:init)
+    @factory.should_receive(:newApplication).and_return app
     @pooling_factory.getApplication.should == app
     @pooling_factory.getApplicationPool.to_a.should == []
   end
   
+  it "boots new applications in the background (when the pool is not limited)" do
+    @factory.stub!(:init)
+    @rack_config.stub!(:getNumberProperty) do |name|
+      name == 'jruby.runtime.init.threads' ? 1 : nil
+    end
+    @pooling_factory.init(@rack_context)
+    @pooling_factory.init_threads.should == 1
+    @pooling_factory.acquire_timeout = 0.1.to_java # second
+    app = mock "app"
+    app.should_receive(:init).once.and_return { sleep(0.3) }
+    @factory.should_receive(:newApplication).once.and_return app
+    
+    lambda { # does not wait for the whole boot :
+      @pooling_factory.getApplication
+    }.should raise_error(org.jruby.rack.AcquireTimeoutException)
+    sleep(0.3)
+    @pooling_factory.getApplication.should == app # booted meanwhile
+  end
+  
   it "accepts an existing application and puts it back in the pool" do
     app = mock "app"
     @pooling_factory.getApplicationPool.to_a.should == []
@@ -560,6 +639,43 @@ describe org.jruby.rack.PoolingRackApplicationFactory do
     @pooling_factory.getApplicationPool.to_a.should == [] # and empty application pool
   end
   
+  it "waits for applications in use to be returned when destroyed" do
+    @factory.stub!(:init)
+    @pooling_factory.init(@rack_context)
+    app1, app2 = mock("app1"), mock("app2")
+    @pooling_factory.finishedWithApplication app1
+    @pooling_factory.finishedWithApplication app2
+    @pooling_factory.getApplication.should == app1
+    torn_down = java.util.concurrent.CopyOnWriteArrayList.new
+    @factory.stub!(:finishedWithApplication) { |app| torn_down << app }
+    @factory.should_receive(:destroy)
+    
+    Thread.new { sleep(0.2); @pooling_factory.finishedWithApplication app1 }
+    @pooling_factory.destroy
+    torn_down.to_a.should =~ [ app1, app2 ]
+    @pooling_factory.getApplicationPool.to_a.should == []
+  end
+  
+  it "does not wait for applications in use past the destroy timeout" do
+    @rack_config.stub!(:getNumberProperty) do |name|
+      name == 'jruby.runtime.destroy.timeout' ? 0.2 : nil
+    end
+    @factory.stub!(:init)
+    @pooling_factory.init(@rack_context)
+    @pooling_factory.destroy_timeout.should be_within(0.001).of(0.2)
+    app = mock("app")
+    @pooling_factory.finishedWithApplication app
+    @pooling_factory.getApplication.should == app
+    @factory.should_receive(:destroy)
+    
+    start = Time.now
+    @pooling_factory.destroy
+    (Time.now - start).should < 1.0
+    @factory.should_receive(:finishedWithApplication).with(app)
+    @pooling_factory.finishedWithApplication app # torn down once returned
+    @pooling_factory.getApplicationPool.to_a.should == []
+  end
+  
   it "creates applications during initialization according to the jruby.min.runtimes context parameter" do
     @factory.stub!(:init)
     @factory.stub!(:newApplication).and_return do
@@ -714,11 +830,36 @@ describe org.jruby.rack.PoolingRackApplicationFactory do
     lambda { @pooling_factory.getApplication.should == app2 }.should_not raise_error
   end
   
+  it "waits no longer than the acquire timeout (permit wait included)" do
+    @factory.stub!(:init)
+    @factory.should_receive(:newApplication).once.and_return do
+      app = mock "app"
+      app.should_receive(:init).and_return { sleep(0.5) }
+      app
+    end
+    @rack_config.stub!(:getInitialRuntimes).and_return 0
+    @rack_config.stub!(:getMaximumRuntimes).and_return 1
+    
+    @pooling_factory.init(@rack_context)
+    @pooling_factory.acquire_timeout = 0.3.to_java # second
+    # holds the (only) permit while the application boots :
+    first = Thread.new { @pooling_factory.getApplication rescue nil }
+    sleep(0.1)
+    millis = java.lang.System.currentTimeMillis
+    lambda { # waits for the permit (~ 0.2 secs) than for the booting app :
+      @pooling_factory.getApplication
+    }.should raise_error(org.jruby.rack.AcquireTimeoutException)
+    millis = java.lang.System.currentTimeMillis - millis
+    millis.should >= 250 # waited about ~ 0.3 secs
+    millis.should < 380 # (the app boots in ~ 0.5 secs)
+    first.join
+  end
+  
   it "gets and initializes new applications until maximum allows to create more" do
     @factory.stub!(:init)
-    @factory.should_receive(:newApplication).twice.and_return do
+    @factory.should_receive(:newApplication).exactly(4).times.and_return do
       app = mock "app (new)"
-      app.should_receive(:init).and_return { sleep(0.1) }
+      app.should_receive(:init).and_return { sleep(0.15) }
       app
     end
     @rack_config.stub!(:getBooleanProperty).with("jruby.runtime.init.wait").and_return false
@@ -726,23 +867,25 @@ describe org.jruby.rack.PoolingRackApplicationFactory do
     @rack_config.stub!(:getMaximumRuntimes).and_return 4
 
     @pooling_factory.init(@rack_context)
-    @pooling_factory.acquire_timeout = 0.10.to_java # second
+    @pooling_factory.acquire_timeout = 1.to_java # second
     
     lambda {
       2.times { @pooling_factory.getApplication.should_not be nil }
     }.should_not raise_error
     
-    @factory.should_receive(:getApplication).twice.and_return do
-      app = mock "app (get)"; sleep(0.15); app
-    end
-    
+    # both requests wait while 2 applications boot (in the background) :
     millis = java.lang.System.currentTimeMillis
-    lambda {
-      2.times { @pooling_factory.getApplication.should_not be nil }
-    }.should_not raise_error
+    apps = java.util.concurrent.CopyOnWriteArrayList.new
+    threads = 2.times.map do
+      Thread.new { apps.add @pooling_factory.getApplication }
+    end
+    threads.each(&:join)
     millis = java.lang.System.currentTimeMillis - millis
-    millis.should >= 300 # waited about 2 x 0.15 secs
+    apps.size.should == 2
+    millis.should >= 140 # waited about ~ 0.15 secs
+    millis.should < 300 # booted concurrently
     
+    @pooling_factory.acquire_timeout = 0.10.to_java # second
     millis = java.lang.System.currentTimeMillis
     lambda {
       @pooling_factory.getApplication
@@ -799,101 +942,991 @@ describe org.jruby.rack.PoolingRackApplicationFactory do
     expect( raise_error_logged ).to eql 1 # logs same init exception once
   end
   
-end
-
-describe org.jruby.rack.SerialPoolingRackApplicationFactory do
-
-  before :each do
-    @factory = mock "factory"
-    @pooling_factory = org.jruby.rack.SerialPoolingRackApplicationFactory.new @factory
-    @pooling_factory.context = @rack_context
-  end
   
-  it "initializes initial runtimes in serial order" do
-    @factory.should_receive(:init).with(@rack_context)
-    @factory.stub!(:newApplication).and_return do
-      app = mock "app"
-      app.stub!(:init).and_return do
-        sleep(0.05)
+  describe "elastic" do
+    
+    before :each do
+      @factory.stub!(:init)
+      @factory.stub!(:newApplication).and_return do
+        app = mock "app"; app.stub!(:init); app
       end
-      app
+      @torn_down = []
+      @factory.stub!(:finishedWithApplication) { |app| @torn_down << app }
+      @rack_config.stub!(:getNumberProperty) do |name|
+        case name
+        when 'jruby.runtime.pool.idle.ttl' then 0.2
+        when 'jruby.runtime.pool.spare.min' then 2
+        when 'jruby.runtime.pool.spare.max' then 3
+        when 'jruby.runtime.pool.maintain.interval' then 60
+        else nil
+        end
+      end
+      @rack_config.stub!(:getInitialRuntimes).and_return 1
+      @rack_config.stub!(:getMaximumRuntimes).and_return 6
+    end
+    
+    after(:each) { @pooling_factory.destroy }
+    
+    it "is configured from the context parameters" do
+      @pooling_factory.init(@rack_context)
+      @pooling_factory.should be_elastic
+      @pooling_factory.idle_time_to_live.should be_within(0.001).of(0.2)
+      @pooling_factory.minimum_spare_size.should == 2
+      @pooling_factory.maximum_spare_size.should == 3
+    end
+    
+    it "boots spare applications up to the minimum spare size" do
+      @pooling_factory.init(@rack_context)
+      @pooling_factory.getApplicationPool.size.should == 1
+      @pooling_factory.maintainPool
+      @pooling_factory.getApplicationPool.size.should == 2
+    end
+    
+    it "tears down surplus and idle applications (but keeps spares)" do
+      @pooling_factory.init(@rack_context)
+      @factory.stub!(:getApplication).and_return { mock "app (get)" }
+      apps = []; 6.times { apps << @pooling_factory.getApplication }
+      apps.each { |app| @pooling_factory.finishedWithApplication(app) }
+      
+      @pooling_factory.maintainPool
+      @pooling_factory.getApplicationPool.size.should == 3
+      @torn_down.size.should == 3
+      
+      sleep(0.3)
+      @pooling_factory.maintainPool
+      @pooling_factory.getApplicationPool.size.should == 2
+      @torn_down.size.should == 4
+    end
+    
+    it "never tears down applications below the minimum" do
+      @rack_config.stub!(:getInitialRuntimes).and_return 2
+      @pooling_factory.init(@rack_context)
+      @pooling_factory.setMinimumSpareSize(0)
+      sleep(0.3)
+      @pooling_factory.maintainPool
+      @pooling_factory.getApplicationPool.size.should == 2
+      @torn_down.should be_empty
     end
-    @rack_config.should_receive(:getInitialRuntimes).and_return 6
-    @rack_config.should_receive(:getMaximumRuntimes).and_return 8
     
-    @pooling_factory.init(@rack_context)
-    @pooling_factory.getApplicationPool.size.should == 6
   end
   
-end
-
-describe org.jruby.rack.SharedRackApplicationFactory do
-  
-  before :each do
-    @factory = mock "factory"
-    @shared_factory = org.jruby.rack.SharedRackApplicationFactory.new @factory
-  end
-
-  it "initializes the delegate factory and creates the (shared) application when initialized" do
-    @factory.should_receive(:init).with(@rack_context)
-    @factory.should_receive(:getApplication).and_return app = mock("application")
-    @shared_factory.init(@rack_context)
+  describe "recycling" do
+    
+    before :each do
+      @factory.stub!(:init)
+      @factory.stub!(:newApplication).and_return do
+        app = mock "app"; app.stub!(:init); app
+      end
+      @torn_down = []
+      @factory.stub!(:finishedWithApplication) { |app| @torn_down << app }
+      @rack_config.stub!(:getNumberProperty) do |name|
+        name == 'jruby.runtime.recycle.requests' ? 2 : nil
+      end
+      @rack_config.stub!(:getInitialRuntimes).and_return 1
+      @rack_config.stub!(:getMaximumRuntimes).and_return 1
+    end
+    
+    after(:each) { @pooling_factory.destroy }
+    
+    it "is configured from the context parameters" do
+      @pooling_factory.init(@rack_context)
+      @pooling_factory.should be_recycling
+      @pooling_factory.maximum_requests.should == 2
+      @pooling_factory.maximum_age.should be_nil
+    end
+    
+    it "replaces an idle application once it served enough requests" do
+      @pooling_factory.init(@rack_context)
+      app = @pooling_factory.getApplication
+      @pooling_factory.finishedWithApplication(app)
+      @pooling_factory.getApplication.should == app
+      @pooling_factory.finishedWithApplication(app)
+      sleep(0.2) # replacement boots in the background
+      @torn_down.should == [ app ]
+      @pooling_factory.getApplicationPool.size.should == 1
+      @pooling_factory.getApplication.should_not == app
+    end
+    
+    it "does not boot a replacement beyond the maximum" do
+      @pooling_factory.init(@rack_context)
+      app = @pooling_factory.getApplication
+      @pooling_factory.finishedWithApplication(app)
+      @pooling_factory.getApplication.should == app
+      @factory.should_receive(:newApplication).and_return do
+        @torn_down.should == [ app ] # torn down before the replacement boots
+        replacement = mock "replacement"; replacement.stub!(:init); replacement
+      end
+      @pooling_factory.finishedWithApplication(app)
+      @torn_down.should == [ app ]
+      sleep(0.2) # replacement boots in the background
+      @pooling_factory.getApplicationPool.size.should == 1
+    end
+    
+    it "keeps applications when not configured" do
+      @rack_config.stub!(:getNumberProperty).and_return nil
+      @pooling_factory.init(@rack_context)
+      @pooling_factory.should_not be_recycling
+      app = @pooling_factory.getApplication
+      3.times do
+        @pooling_factory.finishedWithApplication(app)
+        @pooling_factory.getApplication.should == app
+      end
+      @torn_down.should be_empty
+    end
+    
   end
   
-  it "throws an exception if the shared application cannot be initialized " do
-    @factory.should_receive(:init).with(@rack_context)
-    @factory.should_receive(:getApplication).and_raise java.lang.ArithmeticException.new('42')
+  describe "watchdog" do
     
-    @rack_context.should_receive(:log).with do |level, msg, e|
-      if level == 'ERROR' 
-        expect( e ).to be_a java.lang.ArithmeticException
-      else
-        true
+    before :each do
+      @factory.stub!(:init)
+      @factory.stub!(:newApplication).and_return do
+        app = mock "app"; app.stub!(:init); app.stub!(:getRuntime); app
+      end
+      @torn_down = []
+      @factory.stub!(:finishedWithApplication) { |app| @torn_down << app }
+      @rack_config.stub!(:getNumberProperty) do |name|
+        name == 'jruby.runtime.checkout.deadline' ? 0.2 : nil
       end
+      @rack_config.stub!(:getInitialRuntimes).and_return 1
+      @rack_config.stub!(:getMaximumRuntimes).and_return 1
     end
     
-    begin
-      @shared_factory.init(@rack_context)
-    rescue org.jruby.rack.RackInitializationException => e
-      e = unwrap_native_exception(e)
-      expect( e.message ).to eql 'java.lang.ArithmeticException: 42'
-    else
-      fail "expected to rescue RackInitializationException"
+    after(:each) { @pooling_factory.destroy }
+    
+    it "is configured from the context parameters" do
+      @pooling_factory.init(@rack_context)
+      @pooling_factory.watchdog.should_not be_nil
+      @pooling_factory.watchdog.deadline.should == 200
+    end
+    
+    it "quarantines and replaces an application not returned within the deadline" do
+      @pooling_factory.init(@rack_context)
+      wedged = @pooling_factory.getApplicationPool.to_a.first
+      thread = Thread.new do # the watchdog interrupts the thread
+        app = @pooling_factory.getApplication
+        java.lang.Thread.sleep(1000) rescue nil
+        @pooling_factory.finishedWithApplication(app)
+      end
+      sleep(0.5) # watchdog checks in the background
+      @pooling_factory.watchdog.quarantined.to_a.should == [ wedged ]
+      @pooling_factory.getApplicationPool.size.should == 1
+      app = @pooling_factory.getApplication # permit released
+      app.should_not == wedged
+      @pooling_factory.finishedWithApplication(app)
+      
+      thread.join
+      @torn_down.should == [ wedged ]
+      @pooling_factory.getApplicationPool.to_a.should == [ app ]
     end
+    
+    it "keeps applications returned in time" do
+      @pooling_factory.init(@rack_context)
+      app = @pooling_factory.getApplication
+      @pooling_factory.finishedWithApplication(app)
+      @pooling_factory.replaceWedgedApplications.should == 0
+      @pooling_factory.getApplication.should == app
+      @pooling_factory.finishedWithApplication(app)
+      @torn_down.should be_empty
+    end
+    
   end
-
-  it "throws initialization exception on each getApplication call if init failed" do
-    @factory.should_receive(:init).with(@rack_context)
-    @factory.should_receive(:getApplication).and_raise java.lang.RuntimeException.new('42')
-    @factory.should_not_receive(:getErrorApplication) # dispacther invokes this ...
+  
+  describe "generations" do
     
-    begin 
-      @shared_factory.init(@rack_context) 
-    rescue java.lang.RuntimeException => e
-      # NOOP
+    before :each do
+      @factory.stub!(:init)
+      @factory.stub!(:newApplication).and_return do
+        app = mock "app"; app.stub!(:init); app
+      end
+      @torn_down = []
+      @factory.stub!(:finishedWithApplication) { |app| @torn_down << app }
+      @rack_config.stub!(:getInitialRuntimes).and_return 2
+      @rack_config.stub!(:getMaximumRuntimes).and_return 2
     end
-    expect( lambda {
-      @shared_factory.getApplication
-    }).to raise_error(org.jruby.rack.RackInitializationException)
+    
+    after(:each) { @pooling_factory.destroy }
+    
+    it "swaps a new generation into the pool" do
+      @rack_config.stub!(:getInitialRuntimes).and_return 1
+      @rack_config.stub!(:getMaximumRuntimes).and_return 3
+      @pooling_factory.init(@rack_context)
+      @pooling_factory.generation.should == 0
+      idle = @pooling_factory.getApplicationPool.to_a.first
+      @pooling_factory.getApplication.should == idle
+      busy = @pooling_factory.getApplication
+      @pooling_factory.finishedWithApplication(idle)
+      
+      @pooling_factory.swapGeneration.should be_true
+      @pooling_factory.generation.should == 1
+      @torn_down.should == [ idle ]
+      pool = @pooling_factory.getApplicationPool.to_a
+      pool.size.should == 1
+      pool.should_not include(busy)
+      pool.should_not include(idle)
+      
+      @pooling_factory.finishedWithApplication(busy) # in-flight request done
+      @torn_down.should == [ idle, busy ]
+      @pooling_factory.getApplicationPool.to_a.should == pool
+    end
+    
+    it "boots the new generation within the pool maximum" do
+      @pooling_factory.init(@rack_context)
+      idle, busy = @pooling_factory.getApplicationPool.to_a
+      @pooling_factory.getApplication.should == idle
+      @pooling_factory.getApplication.should == busy
+      @pooling_factory.finishedWithApplication(idle)
+      booted = java.util.concurrent.atomic.AtomicInteger.new(0)
+      @factory.stub!(:newApplication).and_return do
+        booted.incrementAndGet
+        app = mock "app"; app.stub!(:init); app
+      end
+      # no room for the 2nd runtime till the in-flight request is done :
+      Thread.new { sleep(0.2); @pooling_factory.finishedWithApplication(busy) }
+      
+      @pooling_factory.swapGeneration.should be_true
+      booted.get.should == 2
+      @torn_down.should == [ idle, busy ]
+      pool = @pooling_factory.getApplicationPool.to_a
+      pool.size.should == 2
+      pool.should_not include(idle)
+      pool.should_not include(busy)
+    end
+    
+    it "keeps the current generation if the new one fails to boot" do
+      @rack_config.stub!(:getMaximumRuntimes).and_return 4
+      @pooling_factory.init(@rack_context)
+      pool = @pooling_factory.getApplicationPool.to_a
+      @factory.stub!(:newApplication).and_return do
+        app = mock "app"; app.stub!(:init).and_raise org.jruby.rack.RackInitializationException.new('failed')
+        app
+      end
+      @pooling_factory.swapGeneration.should be_false
+      @pooling_factory.generation.should == 0
+      @pooling_factory.getApplicationPool.to_a.should == pool
+    end
+    
+    it "does not pool applications of the previous generation booted meanwhile" do
+      @rack_config.stub!(:getNumberProperty) do |name|
+        name == 'jruby.runtime.generation.ready' ? 1 : nil
+      end
+      @pooling_factory.init(@rack_context)
+      old = @pooling_factory.getApplicationPool.to_a
+      late = @pooling_factory.createApplication(false) # booting (old rackup)
+      
+      @pooling_factory.swapGeneration.should be_true
+      @pooling_factory.putApplicationToPool(late).should be_false
+      (@pooling_factory.getApplicationPool.to_a & (old + [ late ])).should be_empty
+    end
+    
+    it "is exposed as an MBean" do
+      @pooling_factory.init(@rack_context)
+      server = java.lang.management.ManagementFactory.getPlatformMBeanServer
+      names = server.queryNames(javax.management.ObjectName.new('org.jruby.rack:type=ApplicationGenerations,*'), nil)
+      names.should_not be_empty
+    end
+    
+    it "boots a new generation when the trigger file is touched" do
+      require 'tmpdir'
+      trigger = File.join(Dir.tmpdir, "jruby-rack-redeploy-#{$$}.txt")
+      @rack_config.stub!(:getProperty) do |name|
+        name == 'jruby.runtime.generation.trigger' ? trigger : nil
+      end
+      @rack_config.stub!(:getNumberProperty) do |name|
+        name == 'jruby.runtime.pool.maintain.interval' ? 0.1 : nil
+      end
+      begin
+        @pooling_factory.init(@rack_context)
+        File.open(trigger, 'w') { |f| f << 'redeploy' }
+        sleep(0.5)
+        @pooling_factory.generation.should == 1
+      ensure
+        File.delete(trigger) if File.exist?(trigger)
+      end
+    end
+    
   end
-
-  it "returns the same application for any newApplication or getApplication call" do
-    @factory.should_receive(:init).with(@rack_context)
-    @factory.should_receive(:getApplication).and_return app = mock("application")
-    @shared_factory.init(@rack_context)
-    1.upto(5) do
-      @shared_factory.newApplication.should == app
-      @shared_factory.getApplication.should == app
-      @shared_factory.finishedWithApplication app
+  
+  it "hands out the most recently returned application first (when lifo)" do
+    @rack_config.stub!(:getProperty) do |name|
+      name == 'jruby.runtime.pool.order' ? 'lifo' : nil
     end
+    @factory.stub!(:init)
+    @pooling_factory.init(@rack_context)
+    @pooling_factory.should be_lifo
+    app1, app2 = mock("app1"), mock("app2")
+    @pooling_factory.finishedWithApplication app1
+    @pooling_factory.finishedWithApplication app2
+    @pooling_factory.getApplication.should == app2
+    @pooling_factory.finishedWithApplication app2
+    @pooling_factory.getApplication.should == app2
+    @pooling_factory.getApplication.should == app1
   end
-
-  it "finished with application using delegate factory when destroyed" do
-    @factory.should_receive(:init).with(@rack_context)
-    @factory.should_receive(:getApplication).and_return app = mock("application")
-    @factory.should_receive(:destroy)
-    @factory.should_receive(:finishedWithApplication).with(app)
-    @shared_factory.init(@rack_context)
+  
+  it "reclaims the application last used by the thread first (with affinity)" do
+    @rack_config.stub!(:getProperty) do |name|
+      name == 'jruby.runtime.pool.affinity' ? 'true' : nil
+    end
+    @factory.stub!(:init)
+    @pooling_factory.init(@rack_context)
+    @pooling_factory.should be_affinity
+    app1, app2 = mock("app1"), mock("app2")
+    @pooling_factory.finishedWithApplication app1
+    @pooling_factory.finishedWithApplication app2
+    @pooling_factory.getApplication.should == app2
+    @pooling_factory.getApplicationPool.to_a.should == [ app1 ]
+    
+    other = Thread.new { @pooling_factory.getApplication }.value
+    other.should == app1 # no affinity (in the other thread)
+  end
+  
+  it "skips reclaimed applications (without scanning) in other threads (with affinity)" do
+    @rack_config.stub!(:getProperty) do |name|
+      name == 'jruby.runtime.pool.affinity' ? 'true' : nil
+    end
+    @factory.stub!(:init)
+    @pooling_factory.init(@rack_context)
+    app1, app2, app3 = mock("app1"), mock("app2"), mock("app3")
+    @pooling_factory.finishedWithApplication app1
+    @pooling_factory.finishedWithApplication app2
+    @pooling_factory.getApplication.should == app2 # reclaimed
+    @pooling_factory.getApplicationPool.to_a.should == [ app1 ]
+    
+    @factory.should_receive(:newApplication).and_return app3
+    app3.should_receive(:init)
+    others = Thread.new do
+      [ @pooling_factory.getApplication, @pooling_factory.getApplication ]
+    end.value
+    others.should == [ app1, app3 ] # app2 left behind in the pool is skipped
+    
+    @pooling_factory.finishedWithApplication app2
+    @pooling_factory.getApplicationPool.to_a.should == [ app2 ]
+  end
+  
+  it "warms up applications before putting them into the pool" do
+    @rack_config.stub!(:getProperty) do |name|
+      name == 'jruby.runtime.warmup.paths' ? '/, /status' : nil
+    end
+    @rack_config.stub!(:getNumberProperty) do |name|
+      name == 'jruby.runtime.warmup.requests' ? 4 : nil
+    end
+    @rack_config.stub!(:getInitialRuntimes).and_return 1
+    @factory.stub!(:init)
+    app = mock "app"
+    app.should_receive(:init).ordered
+    app.should_receive(:call).exactly(4).times.ordered.and_return do |env|
+      env.getAttribute('jruby.rack.warmup').should be_true
+      mock("response", :getBody => '')
+    end
+    @factory.should_receive(:newApplication).and_return app
+    @pooling_factory.init(@rack_context)
+    @pooling_factory.getApplicationPool.to_a.should == [ app ]
+  end
+
+end
+
+describe org.jruby.rack.ApplicationWarmUp do
+  
+  before :each do
+    @app = mock "app"
+    @rack_config.stub!(:getProperty) do |name|
+      name == 'jruby.runtime.warmup.paths' ? '/, /users?page=1' : nil
+    end
+  end
+  
+  let(:warm_up) { org.jruby.rack.ApplicationWarmUp.configure(@rack_context) }
+  
+  it "is not configured without requests" do
+    @rack_config.stub!(:getProperty).and_return nil
+    warm_up.should be_nil
+  end
+  
+  it "replays requests till the maximum number of calls" do
+    warm_up.setMaximumCalls(5)
+    paths = []
+    @app.should_receive(:call).exactly(5).times.and_return do |env|
+      paths << "#{env.getMethod} #{env.getRequestURI}"
+      mock("response", :getBody => '')
+    end
+    warm_up.warmUp(@app).should == 5
+    paths.should == [ 'GET /', 'GET /users?page=1' ] * 2 + [ 'GET /' ]
+  end
+  
+  it "stops once the target latency is met" do
+    warm_up.setTargetLatency(1000.0)
+    @app.should_receive(:call).twice.and_return mock("response", :getBody => '')
+    warm_up.warmUp(@app).should == 2
+  end
+  
+  it "reads (recorded) requests from a file" do
+    require 'tempfile'
+    file = Tempfile.new('warmup')
+    file << "# recorded\nPOST /login\n\n/users\n"; file.close
+    @rack_config.stub!(:getProperty) do |name|
+      name == 'jruby.runtime.warmup.file' ? file.path : nil
+    end
+    warm_up.getRequests.map(&:to_a).should == [ [ 'POST', '/login' ], [ 'GET', '/users' ] ]
+  end
+  
+  it "does not propagate failures" do
+    @app.should_receive(:call).and_raise java.lang.IllegalStateException.new("failed")
+    warm_up.warmUp(@app).should == 0
+  end
+  
+end
+
+describe org.jruby.rack.BootProfiler do
+  
+  before :each do
+    @rack_context.stub!(:log)
+  end
+  
+  let(:profiler) { org.jruby.rack.BootProfiler.new(@rack_context) }
+  
+  it "is not configured unless enabled" do
+    org.jruby.rack.BootProfiler.configure(@rack_context).should be_nil
+  end
+  
+  it "aggregates phase timings across boots" do
+    2.times do
+      boot = profiler.newBoot
+      boot.phase('runtime', boot.now - 2_000_000)
+      boot.phase('rackup', boot.now)
+      boot.finish(nil)
+    end
+    profiler.getBoots.should == 2
+    phases = profiler.getPhases.to_a
+    phases.size.should == 2
+    phases[0].should =~ /^runtime: \d+ms total, 2 x \d+ms avg/
+    phases[1].should =~ /^rackup: /
+  end
+  
+  it "ranks the slowest requires" do
+    boot = profiler.newBoot
+    boot.required('json', boot.now - 1_000_000)
+    boot.required('rails/all', boot.now - 5_000_000)
+    boot.required('rack', boot.now)
+    boot.finish(nil)
+    profiler.setRequiresLimit(2)
+    profiler.getSlowestRequires.map { |req| req.split(':').first }.should == [ 'rails/all', 'json' ]
+  end
+  
+  it "logs the boot once finished" do
+    @rack_context.should_receive(:log).once.
+      with(org.jruby.rack.RackLogger::INFO, /runtime booted in \d+ms \(boot \d+ms\)/)
+    boot = profiler.newBoot
+    boot.phase('boot', boot.now)
+    boot.finish(nil)
+    boot.finish(nil)
+  end
+  
+end
+
+describe org.jruby.rack.LoadPathIndex do
+  
+  before :each do
+    require 'tmpdir'; require 'fileutils'
+    @dir = Dir.mktmpdir
+    FileUtils.mkdir_p [ "#{@dir}/a", "#{@dir}/b" ]
+    File.open("#{@dir}/a/indexed_lib.rb", 'w') { |f| f << "INDEXED_FROM = 'a'" }
+    File.open("#{@dir}/b/indexed_lib.rb", 'w') { |f| f << "INDEXED_FROM = 'b'" }
+  end
+  
+  after(:each) { FileUtils.rm_rf @dir }
+  
+  let(:index) { org.jruby.rack.LoadPathIndex.new(@rack_context) }
+  
+  def new_runtime(*load_path)
+    config = org.jruby.RubyInstanceConfig.new
+    config.setLoadServiceCreator(index)
+    config.setLoadPaths(load_path)
+    org.jruby.Ruby.newInstance(config)
+  end
+  
+  it "is not configured unless enabled" do
+    org.jruby.rack.LoadPathIndex.configure(@rack_context).should be_nil
+  end
+  
+  it "records resolved requires" do
+    runtime = new_runtime("#{@dir}/a")
+    runtime.evalScriptlet("require 'indexed_lib'; INDEXED_FROM").to_s.should == 'a'
+    index.size.should >= 1
+    runtime = new_runtime("#{@dir}/a")
+    runtime.evalScriptlet("require 'indexed_lib'; INDEXED_FROM").to_s.should == 'a'
+  end
+  
+  it "searches the load path when it changed before the recorded entry" do
+    new_runtime("#{@dir}/a").evalScriptlet("require 'indexed_lib'")
+    runtime = new_runtime("#{@dir}/b", "#{@dir}/a")
+    runtime.evalScriptlet("require 'indexed_lib'; INDEXED_FROM").to_s.should == 'b'
+  end
+
+end
+
+describe org.jruby.rack.PrecompiledLoadService do
+
+  before :each do
+    require 'tmpdir'; require 'fileutils'
+    require 'jruby/rack/aot'
+    @dir = Dir.mktmpdir
+    FileUtils.mkdir_p "#{@dir}/lib"
+    File.open("#{@dir}/lib/aot_lib.rb", 'w') { |f| f << "AOT_LOADED = 'compiled'" }
+    JRuby::Rack::AOT.compile(@dir).should == [ 'lib/aot_lib.class' ]
+    File.open("#{@dir}/lib/aot_lib.rb", 'w') { |f| f << "AOT_LOADED = 'source'" }
+    File.utime(Time.now - 60, Time.now - 60, "#{@dir}/lib/aot_lib.rb")
+  end
+
+  after(:each) { FileUtils.rm_rf @dir }
+
+  def loaded(aot)
+    config = org.jruby.RubyInstanceConfig.new
+    config.setLoadServiceCreator(org.jruby.rack.PrecompiledLoadService.creator(aot))
+    config.setLoadPaths([ "#{@dir}/lib" ])
+    org.jruby.Ruby.newInstance(config).evalScriptlet("require 'aot_lib'; AOT_LOADED").to_s
+  end
+
+  it "loads precompiled scripts" do
+    loaded(true).should == 'compiled'
+  end
+
+  it "loads sources modified since compiled" do
+    File.utime(Time.now + 60, Time.now + 60, "#{@dir}/lib/aot_lib.rb")
+    loaded(true).should == 'source'
+  end
+
+  it "ignores precompiled scripts when disabled" do
+    loaded(false).should == 'source'
+  end
+
+end
+
+describe org.jruby.rack.JitCodeCache do
+
+  before :each do
+    require 'tmpdir'; require 'fileutils'
+    @dir = Dir.mktmpdir
+    @rack_config.stub!(:getProperty) do |name|
+      name == 'jruby.runtime.jit.cache' ? @dir : nil
+    end
+  end
+
+  after(:each) { FileUtils.rm_rf @dir }
+
+  def jit_runtime(config = nil)
+    unless config
+      config = org.jruby.RubyInstanceConfig.new
+      config.setJitThreshold(5)
+      org.jruby.rack.JitCodeCache.configure(@rack_context, config)
+    end
+    runtime = org.jruby.Ruby.newInstance(config)
+    runtime.evalScriptlet("def jit_hot(x); x + 1; end; 20.times { |i| jit_hot(i) }")
+    [ config.getClassCache, runtime.getJITCompiler ]
+  end
+
+  def jit_files(cache)
+    Dir.glob("#{cache.getDirectory.getPath}/**/*.jit")
+  end
+
+  it "is not configured unless a directory is set" do
+    @rack_config.stub!(:getProperty).and_return nil
+    config = org.jruby.RubyInstanceConfig.new
+    org.jruby.rack.JitCodeCache.configure(@rack_context, config).should be_nil
+  end
+
+  it "stores JIT compiled classes" do
+    cache, jit = jit_runtime
+    jit.getCompileCount.should == 1
+    cache.getClassLoadCount.should == 1
+    jit_files(cache).size.should == 1
+  end
+
+  it "loads previously stored classes (without compiling)" do
+    jit_runtime
+    cache, jit = jit_runtime
+    cache.getClassLoadCount.should == 0
+    jit.getSuccessCount.should == 1 # jitted
+    jit.getCompileCount.should == 0 # generation skipped
+  end
+
+  it "re-uses classes across runtimes (without compiling)" do
+    cache, jit = jit_runtime
+    config = org.jruby.RubyInstanceConfig.new
+    config.setJitThreshold(5)
+    config.setClassCache(cache)
+    cache, jit = jit_runtime(config)
+    cache.getClassReuseCount.should == 1
+    jit.getCompileCount.should == 0
+  end
+
+  it "discards (and re-generates) corrupt classes" do
+    cache, jit = jit_runtime
+    file = jit_files(cache).first
+    data = File.open(file, 'rb') { |f| f.read }
+    data[-1, 1] = data[-1, 1] == "\0" ? "\1" : "\0" # checksum no longer matches
+    File.open(file, 'wb') { |f| f << data }
+    cache, jit = jit_runtime
+    cache.getClassLoadCount.should == 1
+    jit.getCompileCount.should == 1
+    jit_files(cache).size.should == 1
+  end
+
+end
+
+describe org.jruby.rack.CompiledScriptCache do
+
+  before :each do
+    @cache = org.jruby.rack.CompiledScriptCache.new(@rack_context)
+  end
+
+  def new_runtime(compile_mode = nil)
+    config = org.jruby.RubyInstanceConfig.new
+    config.setCompileMode(compile_mode) if compile_mode
+    org.jruby.Ruby.newInstance(config)
+  end
+
+  it "is not configured by default" do
+    @rack_config.stub!(:getBooleanProperty).and_return nil
+    org.jruby.rack.CompiledScriptCache.configure(@rack_context).should be_nil
+  end
+
+  it "is configured when enabled" do
+    @rack_config.stub!(:getBooleanProperty) do |name|
+      name == 'jruby.runtime.boot.compile' ? java.lang.Boolean::TRUE : nil
+    end
+    org.jruby.rack.CompiledScriptCache.configure(@rack_context).should_not be_nil
+  end
+
+  it "compiles a script once and runs it in every runtime" do
+    script = "$boot_count = ($boot_count || 0) + 1; __FILE__"
+    2.times do
+      runtime = new_runtime
+      @cache.executeScript(runtime, script, 'boot.rb').should == 'boot.rb'
+      runtime.evalScriptlet('$boot_count').should == 1
+    end
+    @cache.size.should == 1
+  end
+
+  it "interprets scripts when runtimes are not compiling" do
+    runtime = new_runtime(org.jruby.RubyInstanceConfig::CompileMode::OFF)
+    @cache.executeScript(runtime, "1 + 1", 'boot.rb').should == 2
+    @cache.size.should == 0
+  end
+
+  it "forgets compiled scripts when cleared" do
+    @cache.executeScript(new_runtime, "1 + 1", 'boot.rb')
+    @cache.clear
+    @cache.size.should == 0
+  end
+
+end
+
+describe org.jruby.rack.BulkheadRackApplicationFactory do
+  
+  before :each do
+    @factory = mock "factory"
+    @bulkhead_factory = mock "bulkhead factory"
+    @rack_config.stub!(:getProperty) do |name|
+      case name
+      when 'jruby.runtime.bulkhead.api.paths' then '/api, /status/'
+      when 'jruby.runtime.bulkhead.api.header' then 'X-Pool: api'
+      else nil
+      end
+    end
+    @bulkheads = org.jruby.rack.BulkheadRackApplicationFactory.new @factory
+    @bulkheads.addBulkhead('api', @bulkhead_factory, @rack_context)
+  end
+  
+  def request(path, headers = {})
+    request = org.jruby.rack.RackEnvironment.impl {}
+    request.stub!(:getPathInfo).and_return path
+    request.stub!(:getHeader) { |name| headers[name] }
+    request
+  end
+  
+  it "routes requests by path prefix" do
+    @bulkheads.getApplicationFactory(request('/api')).should == @bulkhead_factory
+    @bulkheads.getApplicationFactory(request('/api/users')).should == @bulkhead_factory
+    @bulkheads.getApplicationFactory(request('/status/1')).should == @bulkhead_factory
+    @bulkheads.getApplicationFactory(request('/apis')).should == @factory
+    @bulkheads.getApplicationFactory(request('/')).should == @factory
+  end
+  
+  it "routes requests by header" do
+    @bulkheads.getApplicationFactory(request('/', 'X-Pool' => 'API')).should == @bulkhead_factory
+    @bulkheads.getApplicationFactory(request('/', 'X-Pool' => 'web')).should == @factory
+  end
+  
+  it "initializes and destroys all bulkheads" do
+    @factory.should_receive(:init).with(@rack_context)
+    @bulkhead_factory.should_receive(:init).with(@rack_context)
+    @bulkheads.init(@rack_context)
+    @bulkhead_factory.should_receive(:destroy)
+    @factory.should_receive(:destroy)
+    @bulkheads.destroy
+  end
+  
+  it "reads bulkhead parameters prefixed with the bulkhead name" do
+    @servlet_context.stub!(:getInitParameter) do |name|
+      case name
+      when 'jruby.max.runtimes' then '8'
+      when 'jruby.min.runtimes' then '2'
+      when 'jruby.runtime.bulkheads' then 'api'
+      when 'jruby.runtime.bulkhead.api.max.runtimes' then '2'
+      when 'jruby.runtime.bulkhead.api.jruby.runtime.pool.order' then 'lifo'
+      else nil
+      end
+    end
+    config = org.jruby.rack.BulkheadRackApplicationFactory::Config.new(@servlet_context, 'api')
+    config.getMaximumRuntimes.should == 2
+    config.getInitialRuntimes.should == 2
+    config.getProperty('jruby.runtime.pool.order').should == 'lifo'
+    org.jruby.rack.BulkheadRackApplicationFactory.getBulkheadNames(config).should be_nil
+  end
+  
+end
+
+describe org.jruby.rack.ConcurrentPoolingRackApplicationFactory do
+  
+  before :each do
+    @factory = mock "factory"
+    @pooling_factory = org.jruby.rack.ConcurrentPoolingRackApplicationFactory.new @factory
+    @pooling_factory.context = @rack_context
+  end
+
+  it "should start out empty" do
+    @pooling_factory.getApplicationPool.should be_empty
+  end
+  
+  it "accepts an existing application and puts it back in the pool" do
+    app = mock "app"
+    @pooling_factory.finishedWithApplication app
+    @pooling_factory.getApplicationPool.to_a.should == [ app ]
+    @pooling_factory.getApplication.should == app
+    @pooling_factory.getApplicationPool.to_a.should == []
+  end
+  
+  it "does not add an application back into the pool if it already exists" do
+    @factory.stub!(:init)
+    @rack_config.should_receive(:getMaximumRuntimes).and_return 4
+    @pooling_factory.init(@rack_context)
+    app = mock("app")
+    @pooling_factory.finishedWithApplication app
+    @pooling_factory.finishedWithApplication app
+    @pooling_factory.getApplicationPool.size.should == 1
+  end
+  
+  it "does not allow new applications beyond the maximum specified" do
+    @factory.stub!(:init)
+    @rack_config.should_receive(:getMaximumRuntimes).and_return 1
+    @pooling_factory.init(@rack_context)
+    @pooling_factory.finishedWithApplication mock("app1")
+    @pooling_factory.finishedWithApplication mock("app2")
+    @pooling_factory.getApplicationPool.size.should == 1
+  end
+  
+  it "calls destroy on all cached applications when destroyed" do
+    app1, app2 = mock("app1"), mock("app2")
+    @pooling_factory.finishedWithApplication app1
+    @pooling_factory.finishedWithApplication app2
+    @factory.should_receive(:finishedWithApplication).with(app1)
+    @factory.should_receive(:finishedWithApplication).with(app2)
+    @factory.should_receive(:destroy)
+    
+    @pooling_factory.destroy
+    @pooling_factory.getApplicationPool.to_a.should == []
+  end
+  
+  it "waits till initial runtimes get initialized (with wait set to true)" do
+    @factory.stub!(:init)
+    @factory.stub!(:newApplication).and_return do
+      app = mock "app"
+      app.stub!(:init).and_return { sleep(0.10) }
+      app
+    end
+    @rack_config.stub!(:getBooleanProperty).with("jruby.runtime.init.wait").and_return true
+    @rack_config.should_receive(:getInitialRuntimes).and_return 4
+    @rack_config.should_receive(:getMaximumRuntimes).and_return 8
+    
+    @pooling_factory.init(@rack_context)
+    @pooling_factory.getApplicationPool.size.should >= 4
+  end
+  
+  it "waits acquire timeout till an application is available from the pool (than raises)" do
+    @factory.stub!(:init)
+    @factory.should_receive(:newApplication).twice.and_return do
+      app = mock "app"
+      app.should_receive(:init).and_return { sleep(0.2) }
+      app
+    end
+    @rack_config.stub!(:getBooleanProperty).with("jruby.runtime.init.wait").and_return false
+    @rack_config.should_receive(:getInitialRuntimes).and_return 2
+    @rack_config.should_receive(:getMaximumRuntimes).and_return 2
+    
+    @pooling_factory.init(@rack_context)
+    @pooling_factory.acquire_timeout = 1.to_java # second
+    @pooling_factory.getApplication.should_not be nil
+    app2 = @pooling_factory.getApplication # now the pool is empty
+    
+    @pooling_factory.acquire_timeout = 0.1.to_java # second
+    lambda { @pooling_factory.getApplication }.should raise_error(org.jruby.rack.AcquireTimeoutException)
+    
+    @pooling_factory.finishedWithApplication(app2) # gets back to the pool
+    lambda { @pooling_factory.getApplication.should == app2 }.should_not raise_error
+  end
+  
+  it "throws from init when application initialization in thread failed" do
+    @factory.stub!(:init)
+    @factory.stub!(:newApplication).and_return do
+      app = mock "app"
+      app.stub!(:init).and_return { sleep(0.05); raise "app.init raising" }
+      app
+    end
+    @rack_config.stub!(:getInitialRuntimes).and_return 2
+    @rack_config.stub!(:getMaximumRuntimes).and_return 2
+    
+    expect(lambda {
+      @pooling_factory.init(@rack_context)
+    }).to raise_error org.jruby.rack.RackInitializationException
+  end
+  
+  it "hands out the most recently returned application first (when lifo)" do
+    @pooling_factory.lifo = true
+    app1, app2 = mock("app1"), mock("app2")
+    @pooling_factory.finishedWithApplication app1
+    @pooling_factory.finishedWithApplication app2
+    @pooling_factory.getApplication.should == app2
+    @pooling_factory.getApplication.should == app1
+  end
+  
+  it "reclaims the application last used by the thread first (with affinity)" do
+    @pooling_factory.affinity = true
+    app1, app2 = mock("app1"), mock("app2")
+    @pooling_factory.finishedWithApplication app1
+    @pooling_factory.finishedWithApplication app2
+    @pooling_factory.getApplication.should == app2
+    @pooling_factory.getApplicationPool.size.should == 1
+    @pooling_factory.getApplication.should == app1
+  end
+  
+  it "skips reclaimed applications (without scanning) in other threads (with affinity)" do
+    @pooling_factory.affinity = true
+    app1, app2 = mock("app1"), mock("app2")
+    @pooling_factory.finishedWithApplication app1
+    @pooling_factory.finishedWithApplication app2
+    @pooling_factory.getApplication.should == app2 # reclaimed
+    
+    app3 = mock("app3")
+    @factory.should_receive(:newApplication).and_return app3
+    app3.should_receive(:init)
+    others = Thread.new do
+      [ @pooling_factory.getApplication, @pooling_factory.getApplication ]
+    end.value
+    others.should == [ app1, app3 ] # app2 left behind in the pool is skipped
+    
+    @pooling_factory.finishedWithApplication app2
+    @pooling_factory.getApplicationPool.to_a.should == [ app2 ]
+  end
+  
+  it "does not change the order of a non-empty pool" do
+    @pooling_factory.finishedWithApplication mock("app")
+    expect { @pooling_factory.lifo = true }.to raise_error(java.lang.IllegalStateException)
+  end
+  
+end
+
+describe org.jruby.rack.SerialPoolingRackApplicationFactory do
+
+  before :each do
+    @factory = mock "factory"
+    @pooling_factory = org.jruby.rack.SerialPoolingRackApplicationFactory.new @factory
+    @pooling_factory.context = @rack_context
+  end
+  
+  it "initializes initial runtimes in serial order" do
+    @factory.should_receive(:init).with(@rack_context)
+    @factory.stub!(:newApplication).and_return do
+      app = mock "app"
+      app.stub!(:init).and_return do
+        sleep(0.05)
+      end
+      app
+    end
+    @rack_config.should_receive(:getInitialRuntimes).and_return 6
+    @rack_config.should_receive(:getMaximumRuntimes).and_return 8
+    
+    @pooling_factory.init(@rack_context)
+    @pooling_factory.getApplicationPool.size.should == 6
+  end
+  
+end
+
+describe org.jruby.rack.SharedRackApplicationFactory do
+  
+  before :each do
+    @factory = mock "factory"
+    @shared_factory = org.jruby.rack.SharedRackApplicationFactory.new @factory
+  end
+
+  it "initializes the delegate factory and creates the (shared) application when initialized" do
+    @factory.should_receive(:init).with(@rack_context)
+    @factory.should_receive(:getApplication).and_return app = mock("application")
+    @shared_factory.init(@rack_context)
+  end
+  
+  it "throws an exception if the shared application cannot be initialized " do
+    @factory.should_receive(:init).with(@rack_context)
+    @factory.should_receive(:getApplication).and_raise java.lang.ArithmeticException.new('42')
+    
+    @rack_context.should_receive(:log).with do |level, msg, e|
+      if level == 'ERROR' 
+        expect( e ).to be_a java.lang.ArithmeticException
+      else
+        true
+      end
+    end
+    
+    begin
+      @shared_factory.init(@rack_context)
+    rescue org.jruby.rack.RackInitializationException => e
+      e = unwrap_native_exception(e)
+      expect( e.message ).to eql 'java.lang.ArithmeticException: 42'
+    else
+      fail "expected to rescue RackInitializationException"
+    end
+  end
+
+  it "throws initialization exception on each getApplication call if init failed" do
+    @factory.should_receive(:init).with(@rack_context)
+    @factory.should_receive(:getApplication).and_raise java.lang.RuntimeException.new('42')
+    @factory.should_not_receive(:getErrorApplication) # dispacther invokes this ...
+    
+    begin 
+      @shared_factory.init(@rack_context) 
+    rescue java.lang.RuntimeException => e
+      # NOOP
+    end
+    expect( lambda {
+      @shared_factory.getApplication
+    }).to raise_error(org.jruby.rack.RackInitializationException)
+  end
+
+  it "returns the same application for any newApplication or getApplication call" do
+    @factory.should_receive(:init).with(@rack_context)
+    @factory.should_receive(:getApplication).and_return app = mock("application")
+    @shared_factory.init(@rack_context)
+    1.upto(5) do
+      @shared_factory.newApplication.should == app
+      @shared_factory.getApplication.should == app
+      @shared_factory.finishedWithApplication app
+    end
+  end
+
+  it "finished with application using delegate factory when destroyed" do
+    @factory.should_receive(:init).with(@rack_context)
+    @factory.should_receive(:getApplication).and_return app = mock("application")
+    @factory.should_receive(:destroy)
+    @factory.should_receive(:finishedWithApplication).with(app)
+    @shared_factory.init(@rack_context)
     @shared_factory.destroy
   end
 
@@ -903,3 +1936,108 @@ describe org.jruby.rack.SharedRackApplicationFactory do
   end
   
 end
+
+describe org.jruby.rack.SharedPoolingRackApplicationFactory do
+  
+  before :each do
+    @factory = mock "factory"
+    @factory.stub!(:init)
+    @factory.stub!(:getApplication).and_return { mock "application" }
+    @shared_factory = org.jruby.rack.SharedPoolingRackApplicationFactory.new @factory
+    @rack_config.stub!(:getNumberProperty) do |name|
+      case name
+      when 'jruby.runtime.shared.concurrency' then 2
+      when 'jruby.runtime.acquire.timeout' then 0.2
+      else nil
+      end
+    end
+  end
+  
+  it "is configured from the context parameters" do
+    org.jruby.rack.SharedPoolingRackApplicationFactory.isConfigured(@rack_config).should be_true
+    @rack_config.stub!(:getInitialRuntimes).and_return 2
+    @rack_config.stub!(:getMaximumRuntimes).and_return 4
+    @shared_factory.init(@rack_context)
+    @shared_factory.concurrency.should == 2
+    @shared_factory.initial_size.should == 2
+    @shared_factory.maximum_size.should == 4
+    @shared_factory.applications.size.should == 2
+  end
+  
+  it "shares an application up to the concurrency limit (then queues)" do
+    @shared_factory.init(@rack_context)
+    app = @shared_factory.getApplication
+    @shared_factory.getApplication.should == app
+    @shared_factory.getActiveRequests(app).should == 2
+    
+    waiter = Thread.new { @shared_factory.getApplication }
+    sleep(0.1)
+    @shared_factory.finishedWithApplication app
+    waiter.value.should == app
+    
+    expect( lambda { @shared_factory.getApplication } ).
+      to raise_error(org.jruby.rack.AcquireTimeoutException)
+  end
+  
+  it "spills onto another application when all are busy" do
+    @rack_config.stub!(:getMaximumRuntimes).and_return 2
+    @shared_factory.init(@rack_context)
+    app1 = @shared_factory.getApplication
+    @shared_factory.getApplication.should == app1
+    app2 = @shared_factory.getApplication # waits for the boot
+    app2.should_not == app1
+    @shared_factory.applications.size.should == 2
+    @shared_factory.getApplication.should == app2
+  end
+  
+  it "finished with all applications using delegate factory when destroyed" do
+    @rack_config.stub!(:getInitialRuntimes).and_return 2
+    @shared_factory.init(@rack_context)
+    apps = @shared_factory.applications.to_a
+    @factory.should_receive(:finishedWithApplication).with(apps[0])
+    @factory.should_receive(:finishedWithApplication).with(apps[1])
+    @factory.should_receive(:destroy)
+    @shared_factory.destroy
+  end
+  
+  it "does not hand out applications once destroyed" do
+    @shared_factory.init(@rack_context)
+    @factory.stub!(:finishedWithApplication)
+    @factory.stub!(:destroy)
+    @shared_factory.destroy
+    expect( lambda { @shared_factory.getApplication } ).
+      to raise_error(org.jruby.rack.RackException)
+  end
+  
+end
+
+describe org.jruby.rack.ApplicationWatchdog do
+  
+  it "does not interrupt a thread that returned the application meanwhile" do
+    watchdog = org.jruby.rack.ApplicationWatchdog.new(@rack_context, 100)
+    app = mock "app"
+    wedged = java.util.concurrent.CountDownLatch.new(1)
+    returned = java.util.concurrent.CountDownLatch.new(1)
+    result = {}
+    worker = java.lang.Thread.new do
+      watchdog.checkOut(app)
+      wedged.await
+      result[:quarantined] = watchdog.checkIn(app)
+      returned.countDown
+      begin
+        java.lang.Thread.sleep(500); result[:interrupted] = false
+      rescue => e
+        result[:interrupted] = true
+      end
+    end
+    worker.start
+    sleep(0.2)
+    app.stub!(:getRuntime) do # while logging the backtrace of the thread
+      wedged.countDown; returned.await; nil
+    end
+    watchdog.quarantineWedged.to_a.should == [ app ]
+    worker.join
+    result.should == { :quarantined => true, :interrupted => false }
+  end
+  
+end
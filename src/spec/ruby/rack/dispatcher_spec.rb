@@ -40,6 +40,28 @@ describe org.jruby.rack.DefaultRackDispatcher do
       res.stub!(:isCommitted).and_return true
       @dispatcher.process(req, res)
     end
+
+    it "exposes the failed application to an error application sharing it's runtime" do
+      @rack_config.stub!(:getProperty) do |name|
+        name == 'jruby.rack.error.runtime' ? 'shared' : nil
+      end
+      @dispatcher = org.jruby.rack.DefaultRackDispatcher.new @rack_context
+      application = mock("application")
+      @rack_factory.stub!(:getApplication).and_return application
+      @rack_factory.should_receive(:finishedWithApplication).with application
+      @rack_factory.stub!(:getErrorApplication).and_return error_app = mock("error application")
+      application.stub!(:call).and_raise "some error"
+      req, res = mock("request"), mock("response")
+      req.should_receive(:setAttribute).with(org.jruby.rack.RackEnvironment::APPLICATION, application)
+      req.should_receive(:setAttribute).with(org.jruby.rack.RackEnvironment::EXCEPTION, anything())
+      # removed once the (failed) application is returned :
+      req.should_receive(:setAttribute).with(org.jruby.rack.RackEnvironment::APPLICATION, nil)
+      res.stub!(:isCommitted).and_return false
+      res.should_receive(:reset)
+      error_app.should_receive(:call).and_return rack_response = mock("rack response")
+      rack_response.should_receive(:respond)
+      @dispatcher.process(req, res)
+    end
     
     context 'init error' do
       
@@ -91,4 +113,132 @@ describe org.jruby.rack.DefaultRackDispatcher do
     
   end
   
-end
\ No newline at end of file
+end
+describe org.jruby.rack.DefaultRackDispatcher, "with bulkheads" do
+  
+  before :each do
+    @default_factory = org.jruby.rack.RackApplicationFactory.impl {}
+    @reports_factory = org.jruby.rack.RackApplicationFactory.impl {}
+    @rack_config.stub!(:getProperty) do |name|
+      name == 'jruby.runtime.bulkhead.reports.paths' ? '/reports' : nil
+    end
+    @rack_factory = org.jruby.rack.BulkheadRackApplicationFactory.new(@default_factory)
+    @rack_factory.addBulkhead('reports', @reports_factory, @rack_context)
+    @rack_context.stub!(:getRackFactory).and_return @rack_factory
+    @dispatcher = org.jruby.rack.DefaultRackDispatcher.new @rack_context
+  end
+  
+  it "processes requests using the matching bulkhead's factory" do
+    request = org.jruby.rack.RackEnvironment.impl {}
+    request.stub!(:getPathInfo).and_return '/reports/monthly'
+    request.stub!(:getHeader).and_return nil
+    application = mock("application")
+    @reports_factory.should_receive(:getApplication).and_return(application)
+    @reports_factory.should_receive(:finishedWithApplication).with(application)
+    @default_factory.should_not_receive(:getApplication)
+    application.should_receive(:call).and_return rack_response = mock("rack response")
+    rack_response.should_receive(:respond)
+    
+    @dispatcher.process(request, mock("response"))
+  end
+  
+  it "processes requests not matching any bulkhead using the default factory" do
+    request = org.jruby.rack.RackEnvironment.impl {}
+    request.stub!(:getPathInfo).and_return '/reportsx'
+    request.stub!(:getHeader).and_return nil
+    application = mock("application")
+    @default_factory.should_receive(:getApplication).and_return(application)
+    @default_factory.should_receive(:finishedWithApplication).with(application)
+    application.should_receive(:call).and_return rack_response = mock("rack response")
+    rack_response.should_receive(:respond)
+    
+    @dispatcher.process(request, mock("response"))
+  end
+  
+  it "returns applications to the bulkhead they were acquired from" do
+    request = org.jruby.rack.RackEnvironment.impl {}
+    request.stub!(:getPathInfo).and_return '/reports/monthly'
+    request.stub!(:getHeader).and_return nil
+    attributes = {}
+    request.stub!(:getAttribute) { |key| attributes[key] }
+    request.stub!(:setAttribute) { |key, value| attributes[key] = value }
+    application = mock("application")
+    @reports_factory.should_receive(:getApplication).and_return(application)
+    @reports_factory.should_receive(:finishedWithApplication).with(application)
+    @default_factory.should_not_receive(:finishedWithApplication)
+    application.should_receive(:call) do
+      request.stub!(:getPathInfo).and_return '/forwarded' # e.g. a forward
+      rack_response = mock("rack response")
+      rack_response.should_receive(:respond)
+      rack_response
+    end
+    
+    @dispatcher.process(request, mock("response"))
+  end
+  
+end
+
+describe org.jruby.rack.DefaultRackDispatcher, "with admission control" do
+  
+  before :each do
+    @rack_factory = org.jruby.rack.RackApplicationFactory.impl {}
+    @rack_context.stub!(:getRackFactory).and_return @rack_factory
+    @rack_config.stub!(:getNumberProperty) do |name|
+      case name
+      when 'jruby.rack.admission.queue' then 0
+      when 'jruby.rack.admission.concurrency' then 1
+      when 'jruby.rack.admission.retry.after' then 5
+      else nil
+      end
+    end
+    @dispatcher = org.jruby.rack.DefaultRackDispatcher.new @rack_context
+  end
+  
+  it "is configured from the context parameters" do
+    admission = @dispatcher.getAdmissionController
+    admission.should_not be_nil
+    admission.getQueueSize.should == 0
+    admission.getRetryAfter.should == 5
+  end
+  
+  it "shares the controller among dispatchers of a context" do
+    attributes = {}
+    @rack_context.stub!(:getAttribute) { |name| attributes[name] }
+    @rack_context.stub!(:setAttribute) { |name, value| attributes[name] = value }
+    admission = org.jruby.rack.DefaultRackDispatcher.new(@rack_context).getAdmissionController
+    admission.should_not be_nil
+    another = org.jruby.rack.DefaultRackDispatcher.new(@rack_context).getAdmissionController
+    another.should equal(admission)
+  end
+  
+  it "rejects requests over the limit with a 503 (before acquiring an application)" do
+    application = mock("application")
+    @rack_factory.should_receive(:getApplication).once.and_return(application)
+    @rack_factory.should_receive(:finishedWithApplication).with(application)
+    
+    rejected = mock("rejected response")
+    rejected.stub!(:isCommitted).and_return false
+    rejected.should_receive(:defaultRespond) do |response|
+      response.getStatus.should == 503
+      response.getHeaders['Retry-After'].should == '5'
+    end
+    application.should_receive(:call) do
+      @dispatcher.process(mock("another request"), rejected) # concurrent request
+      rack_response = mock("rack response")
+      rack_response.should_receive(:respond)
+      rack_response
+    end
+    @dispatcher.process(mock("request"), mock("response"))
+  end
+  
+  it "admits requests again once processing finished" do
+    application = mock("application")
+    @rack_factory.should_receive(:getApplication).twice.and_return(application)
+    @rack_factory.should_receive(:finishedWithApplication).twice.with(application)
+    application.should_receive(:call).twice.and_return rack_response = mock("rack response")
+    rack_response.should_receive(:respond).twice
+    
+    2.times { @dispatcher.process(mock("request"), mock("response")) }
+  end
+  
+end
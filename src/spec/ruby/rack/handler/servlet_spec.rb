@@ -8,6 +8,7 @@
 require File.expand_path('spec_helper', File.dirname(__FILE__) + '/../..')
 require 'rack/handler/servlet'
 require 'stringio'
+require 'jruby'
 
 describe Rack::Handler::Servlet do
   
@@ -594,6 +595,123 @@ describe Rack::Handler::Servlet do
     
   end
 
+  describe "multipart" do
+
+    let(:content) do
+      "--AaB03x\r\n" +
+      "Content-Disposition: form-data; name=\"user[name]\"\r\n\r\n" +
+      "Joe\r\n" +
+      "--AaB03x\r\n" +
+      "Content-Disposition: form-data; name=\"file\"; filename=\"hello.txt\"\r\n" +
+      "Content-Type: text/plain\r\n\r\n" +
+      "hello world\r\n" +
+      "--AaB03x--\r\n"
+    end
+
+    before do
+      org.jruby.rack.servlet.MultipartParser.setDefault(
+        org.jruby.rack.servlet.MultipartParser.new(0, 0)
+      )
+      @servlet_request = org.jruby.rack.mock.MockHttpServletRequest.new(@servlet_context)
+      @servlet_request.setMethod 'POST'
+      @servlet_request.setContentType 'multipart/form-data; boundary=AaB03x'
+      @servlet_request.setContent content.to_java_bytes
+      @servlet_env = org.jruby.rack.servlet.ServletRackEnvironment.new(
+        @servlet_request, org.jruby.rack.mock.MockHttpServletResponse.new, @rack_context
+      )
+      org.jruby.rack.RackInput.getRackInputClass(JRuby.runtime)
+      input = org.jruby.rack.servlet.RewindableInputStream.new(@servlet_request.getInputStream)
+      @servlet_env.stub!(:to_io).and_return JRuby::RackInput.new(input)
+    end
+
+    after { org.jruby.rack.servlet.MultipartParser.setDefault(nil) }
+
+    it "parses the body into form params" do
+      env = servlet.create_env(@servlet_env)
+      params = Rack::Request.new(env).POST
+      params['user'].should == { 'name' => 'Joe' }
+      file = params['file']
+      file[:filename].should == 'hello.txt'
+      file[:type].should == 'text/plain'
+      file[:tempfile].read.should == 'hello world'
+      env['rack.input'].read.should =~ /^--AaB03x/
+    end
+
+    it "deletes uploaded files once the response body is closed" do
+      path = nil
+      app.should_receive(:call) do |env|
+        path = Rack::Request.new(env).POST['file'][:tempfile].path
+        File.exist?(path).should be true
+        [ 200, {}, [] ]
+      end
+      response = servlet.call(@servlet_env)
+      File.exist?(path).should be true
+      response.getBody # closes the body
+      File.exist?(path).should be false
+    end
+
+    it "keeps uploaded files while the response body is being iterated" do
+      app.should_receive(:call) do |env|
+        params = Rack::Request.new(env).POST
+        body = Object.new
+        body.instance_variable_set(:@params, params)
+        def body.each; yield @params['file'][:tempfile].read; end
+        [ 200, {}, body ]
+      end
+      servlet.call(@servlet_env).getBody.should == 'hello world'
+    end
+
+    it "deletes uploaded files when the application raises" do
+      path = nil
+      app.should_receive(:call) do |env|
+        path = Rack::Request.new(env).POST['file'][:tempfile].path
+        raise 'failed'
+      end
+      lambda { servlet.call(@servlet_env) }.should raise_error(RuntimeError)
+      File.exist?(path).should be false
+    end
+
+    describe "with conflicting params" do
+
+      let(:content) do
+        "--AaB03x\r\n" +
+        "Content-Disposition: form-data; name=\"file\"; filename=\"hello.txt\"\r\n\r\n" +
+        "hello world\r\n" +
+        "--AaB03x\r\n" +
+        "Content-Disposition: form-data; name=\"user\"\r\n\r\n" +
+        "Joe\r\n" +
+        "--AaB03x\r\n" +
+        "Content-Disposition: form-data; name=\"user[name]\"\r\n\r\n" +
+        "Joe\r\n" +
+        "--AaB03x\r\n" +
+        "Content-Disposition: form-data; name=\"other\"; filename=\"other.txt\"\r\n\r\n" +
+        "hello again\r\n" +
+        "--AaB03x--\r\n"
+      end
+
+      it "deletes all uploaded files when building params fails" do
+        paths = nil
+        app.should_receive(:call) do |env|
+          lambda { Rack::Request.new(env).POST }.should raise_error(TypeError)
+          paths = env['rack.tempfiles'].map { |file| file.path }
+          [ 200, {}, [] ]
+        end
+        servlet.call(@servlet_env).getBody
+        paths.size.should == 2
+        paths.each { |path| File.exist?(path).should be false }
+      end
+
+    end
+
+    it "leaves parsing to rack when disabled" do
+      org.jruby.rack.servlet.MultipartParser.setDefault(nil)
+      env = servlet.create_env(@servlet_env)
+      env['rack.request.form_hash'].should be nil
+      Rack::Request.new(env).POST['user'].should == { 'name' => 'Joe' }
+    end
+
+  end
+
   describe 'servlet-env' do
 
     before do
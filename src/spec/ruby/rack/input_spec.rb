@@ -68,6 +68,13 @@ module InputSpec
         lines.should == ["hello\r\n", "goodbye"]
       end
 
+      it "should read what's left after gets" do
+        input.gets.should == "hello\r\n"
+        input.read(3).should == "goo"
+        input.read.should == "dbye"
+        input.read(1).should == nil
+      end
+
     end
 
     def it_should_behave_like_rewindable_rack_input
@@ -205,10 +212,42 @@ describe JRuby::RackInput, "for rewindable input (with buffer size and max)" do
   
 end
 
+describe JRuby::RackInput, "for large input" do
+  include InputSpec
+
+  before :each do
+    @content = (1..20000).map { |i| "line #{i}\n" }.join + ( "x" * 50000 )
+  end
+
+  let(:input) { JRuby::RackInput.new(rewindable_input) }
+
+  it "gets lines spanning read chunks" do
+    lines = []
+    input.each { |line| lines << line }
+    lines.size.should == 20001
+    lines[19999].should == "line 20000\n"
+    lines.last.size.should == 50000
+  end
+
+  it "reads (all) after gets" do
+    input.gets.should == "line 1\n"
+    input.read.size.should == @content.size - 7
+    input.rewind
+    input.read(@content.size + 1).should == @content
+  end
+
+end
+
 describe JRuby::RackInput, "for non-rewindable input" do
   include InputSpec
   
   let(:input) { JRuby::RackInput.new(stream_input) }
 
   it_should_behave_like_rack_input
+
+  it "should not lose what gets read ahead on rewind" do
+    input.gets.should == "hello\r\n"
+    input.rewind
+    input.read.should == "goodbye"
+  end
 end
@@ -0,0 +1,137 @@
+#--
+# This source code is available under the MIT license.
+# See the file LICENSE.txt for details.
+#++
+
+require File.expand_path('spec_helper', File.dirname(__FILE__) + '/..')
+
+describe org.jruby.rack.RequestPriorities do
+  
+  before :each do
+    @rack_config.stub!(:getProperty) do |name|
+      case name
+      when 'jruby.runtime.priorities' then 'health, default, crawler'
+      when 'jruby.runtime.priority.health.paths' then '/health'
+      when 'jruby.runtime.priority.crawler.header' then 'X-Crawler'
+      when 'jruby.runtime.priority.crawler.remote' then '10.0.'
+      else nil
+      end
+    end
+    @rack_config.stub!(:getNumberProperty).and_return nil
+  end
+  
+  let(:priorities) { org.jruby.rack.RequestPriorities.configure(@rack_context) }
+  
+  def request(path, remote = '127.0.0.1', headers = {})
+    request = org.jruby.rack.RackEnvironment.impl {}
+    request.stub!(:getPathInfo).and_return path
+    request.stub!(:getRemoteAddr).and_return remote
+    request.stub!(:getHeader) { |name| headers[name] }
+    request
+  end
+  
+  it "is not configured without priority classes" do
+    @rack_config.stub!(:getProperty).and_return nil
+    priorities.should be_nil
+  end
+  
+  it "classifies requests" do
+    priorities.getLevels.should == 3
+    priorities.classify(request('/health')).should == 0
+    priorities.classify(request('/')).should == 1
+    priorities.classify(request('/', '10.0.0.8')).should == 2
+    priorities.classify(request('/', '127.0.0.1', 'X-Crawler' => '1')).should == 2
+  end
+  
+  it "keeps the current priority while processing a request" do
+    priorities.enter request('/health')
+    org.jruby.rack.RequestPriorities.getCurrentPriority.should == 0
+    priorities.exit
+    org.jruby.rack.RequestPriorities.getCurrentPriority.should be_nil
+  end
+  
+  describe "permits" do
+    
+    let(:permits) { priorities.newPermits(1) }
+    
+    def waiter(path, acquired)
+      Thread.new do
+        priorities.enter request(path)
+        begin
+          if permits.tryAcquire(5, java.util.concurrent.TimeUnit::SECONDS)
+            acquired << path; permits.release
+          end
+        ensure
+          priorities.exit
+        end
+      end
+    end
+    
+    it "are handed to the highest priority waiter first" do
+      permits.tryAcquire.should be_true
+      acquired = java.util.concurrent.CopyOnWriteArrayList.new
+      threads = [ waiter('/', acquired) ]; sleep(0.2)
+      threads << waiter('/health', acquired); sleep(0.2)
+      permits.release
+      threads.each(&:join)
+      acquired.to_a.should == [ '/health', '/' ]
+      permits.availablePermits.should == 1
+    end
+    
+    it "are handed to the longest waiting request (to avoid starvation)" do
+      priorities.setFairness(1)
+      permits.tryAcquire.should be_true
+      acquired = java.util.concurrent.CopyOnWriteArrayList.new
+      threads = [ waiter('/', acquired) ]; sleep(0.2)
+      threads << waiter('/health', acquired); sleep(0.2)
+      permits.release
+      threads.each(&:join)
+      acquired.to_a.should == [ '/', '/health' ]
+    end
+    
+    it "time out" do
+      permits.tryAcquire.should be_true
+      permits.tryAcquire(50, java.util.concurrent.TimeUnit::MILLISECONDS).should be_false
+      permits.release
+      permits.availablePermits.should == 1
+    end
+    
+  end
+  
+  describe "runtimes" do
+    
+    it "are handed to the highest priority request waiting (on a boot) first" do
+      @rack_config.stub!(:getInitialRuntimes).and_return 0
+      @rack_config.stub!(:getMaximumRuntimes).and_return 4
+      factory = mock "factory"
+      factory.stub!(:init)
+      factory.stub!(:newApplication).and_return do
+        app = mock "app"
+        app.stub!(:init).and_return { sleep(0.3) }
+        app
+      end
+      pool = org.jruby.rack.PoolingRackApplicationFactory.new factory
+      pool.init(@rack_context)
+      pool.acquire_timeout = 2.to_java # seconds
+      
+      acquired = java.util.concurrent.CopyOnWriteArrayList.new
+      # each (waiting) request boots an application in the background :
+      threads = [ '/', '/health', '/', '/' ].map do |path|
+        thread = Thread.new do
+          pool.priorities.enter request(path)
+          begin
+            app = pool.getApplication; acquired << path
+            sleep(0.5); pool.finishedWithApplication(app)
+          ensure
+            pool.priorities.exit
+          end
+        end
+        sleep(0.05); thread
+      end
+      threads.each(&:join)
+      acquired.to_a.should == [ '/health', '/', '/', '/' ]
+    end
+    
+  end
+  
+end
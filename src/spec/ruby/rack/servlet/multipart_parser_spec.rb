@@ -0,0 +1,76 @@
+#--
+# This source code is available under the MIT license.
+# See the file LICENSE.txt for details.
+#++
+
+require File.expand_path('spec_helper', File.dirname(__FILE__) + '/../..')
+
+java_import 'org.jruby.rack.servlet.MultipartParser'
+
+describe MultipartParser do
+
+  let(:content_type) { 'multipart/form-data; boundary=AaB03x' }
+
+  def body(*parts)
+    parts.map { |head, value| "--AaB03x\r\n#{head}\r\n\r\n#{value}\r\n" }.join + "--AaB03x--\r\n"
+  end
+
+  def parse(body, parser = MultipartParser.new(0, 0))
+    input = java.io.ByteArrayInputStream.new(body.to_java_bytes)
+    @parts = parser.parse(input, content_type).to_a
+  end
+
+  after { ( @parts || [] ).each { |part| part.delete } }
+
+  it "resolves the boundary" do
+    MultipartParser.getBoundary(content_type).should == 'AaB03x'
+    MultipartParser.getBoundary('multipart/mixed; boundary="A b"; charset=utf-8').should == 'A b'
+    MultipartParser.getBoundary('text/plain; boundary=AaB03x').should be nil
+  end
+
+  it "parses fields" do
+    parts = parse body([ 'Content-Disposition: form-data; name="a"', "1\r\n--AaB03" ],
+                       [ 'Content-Disposition: form-data; name="b[]"', '' ])
+    parts.map(&:name).should == [ 'a', 'b[]' ]
+    String.from_java_bytes(parts[0].value).should == "1\r\n--AaB03"
+    parts[1].value.length.should == 0
+    parts[0].should_not be_file
+  end
+
+  it "writes files into temporary files" do
+    content = "\0\r\n" * 10000
+    parts = parse body([ "Content-Disposition: form-data; name=\"f\"; filename=\"C:\\\\tmp\\\\a.bin\"\r\n" +
+                         "Content-Type: application/octet-stream", content ],
+                       [ 'Content-Disposition: form-data; name="none"; filename=""', '' ])
+    parts.size.should == 1
+    file = parts[0]
+    file.should be_file
+    file.filename.should == 'a.bin'
+    file.content_type.should == 'application/octet-stream'
+    file.size.should == content.size
+    File.open(file.file.path, 'rb') { |f| f.read }.should == content
+  end
+
+  it "fails on a truncated body" do
+    lambda {
+      parse body([ 'Content-Disposition: form-data; name="a"', '1' ])[0, 50]
+    }.should raise_error(java.io.EOFException)
+  end
+
+  it "limits parts" do
+    fields = (1..3).map { |i| [ "Content-Disposition: form-data; name=\"f#{i}\"", i ] }
+    lambda {
+      parse body(*fields), MultipartParser.new(2, 0)
+    }.should raise_error(MultipartParser::LimitExceededException)
+    parse(body(*fields), MultipartParser.new(3, 0)).size.should == 3
+  end
+
+  it "limits part size" do
+    file = [ 'Content-Disposition: form-data; name="f"; filename="f"', 'x' * 100 ]
+    lambda {
+      parse body(file), MultipartParser.new(0, 99)
+    }.should raise_error(MultipartParser::LimitExceededException)
+    parse(body(file), MultipartParser.new(0, 100)).size.should == 1
+  end
+
+end
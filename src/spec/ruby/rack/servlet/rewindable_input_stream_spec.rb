@@ -8,6 +8,7 @@
 require File.expand_path('spec_helper', File.dirname(__FILE__) + '/../..')
 
 java_import 'org.jruby.rack.servlet.RewindableInputStream'
+java_import 'org.jruby.rack.servlet.ByteBufferPool'
 
 describe RewindableInputStream do
 
@@ -174,6 +175,133 @@ describe RewindableInputStream do
     File.exist?(stream.bufferFilePath).should be false
   end
   
+  it "should mark and reset (temp file)" do
+    input = []; 100.times { |i| input << i }
+    stream = rewindable_input_stream(input.to_java(:byte), 8, 32)
+    stream.read(new_byte_array(100), 0, 100).should == 100
+    stream.rewind
+    stream.read.should == 0
+    stream.mark(5)
+    stream.read.should == 1
+    stream.reset
+    stream.read.should == 1
+  end
+  
+  describe "lazy" do
+
+    before { RewindableInputStream.setDefaultLazy(true) }
+    after { RewindableInputStream.setDefaultLazy(false) }
+
+    it "passes data through and replays it after rewind" do
+      input = []; 100.times { |i| input << i }
+      stream = rewindable_input_stream(input.to_java(:byte), 8, 256)
+      data = new_byte_array(100)
+      stream.read(data, 0, 30).should == 30
+      30.times { |i| data[i].should == i }
+      stream.rewind
+      stream.read(data, 0, 100).should == 100
+      100.times { |i| data[i].should == i }
+      stream.read.should == -1
+    end
+
+    it "replays data from a temp file after rewind" do
+      @stream = rewindable_input_stream((0...127).to_a.to_java(:byte), 8, 32)
+      @stream.read(new_byte_array(127), 0, 127).should == 127
+      @stream.rewind
+      it_should_read_127_bytes
+    end
+
+    it "marks and resets (after reading some)" do
+      stream = rewindable_input_stream((1..10).to_a.to_java(:byte), 4, 16)
+      3.times { stream.read }
+      stream.mark(4)
+      stream.read.should == 4
+      stream.reset
+      stream.read.should == 4
+      stream.rewind
+      stream.read.should == 1
+    end
+
+  end
+  
+  describe "with a buffer pool" do
+
+    before { RewindableInputStream.setDefaultBufferPool(@pool = ByteBufferPool.new(8, 32, 2)) }
+    after { RewindableInputStream.setDefaultBufferPool(nil) }
+
+    it "acquires a buffer on first read" do
+      stream = rewindable_input_stream('1234567890', 8, 32)
+      stream.getCurrentBufferSize.should == 8
+      stream.read.should == 49
+      stream.close
+      @pool.size.should == 1
+      rewindable_input_stream('1234567890', 8, 32)
+      @pool.size.should == 1
+    end
+
+    it "releases buffers when grown and on close" do
+      stream = rewindable_input_stream('1234567890' * 3, 8, 32)
+      stream.read(new_byte_array(30), 0, 30).should == 30
+      stream.getCurrentBufferSize.should == 32
+      @pool.size.should == 1 # the initial (8) buffer
+      stream.rewind
+      stream.read(new_byte_array(30), 0, 30).should == 30
+      stream.close
+      @pool.size.should == 2
+      stream.close
+      @pool.size.should == 2
+    end
+
+    it "keeps the pool bounded" do
+      streams = (1..5).map { rewindable_input_stream('1', 8, 32) }
+      streams.each { |stream| stream.read }
+      streams.each { |stream| stream.close }
+      @pool.size.should == 2
+    end
+
+  end
+  
+  describe "with a mapped spill file" do
+
+    before do
+      require 'tmpdir'
+      @dir = Dir.mktmpdir
+      RewindableInputStream.setDefaultSpillDirectory(java.io.File.new(@dir))
+      RewindableInputStream.setDefaultSpillMapped(true)
+    end
+
+    after do
+      RewindableInputStream.setDefaultSpillDirectory(nil)
+      RewindableInputStream.setDefaultSpillMapped(false)
+      FileUtils.rm_rf @dir
+    end
+
+    it "reads (and rewinds) the content" do
+      @stream = it_should_read_127_bytes(16, 64)
+      Dir.glob("#{@dir}/#{RewindableInputStream::TMP_FILE_PREFIX}*").size.should == 1
+      @stream.rewind
+      it_should_read_127_bytes
+    end
+
+    it "reads data one by one" do
+      input = []; 100.times { |i| input << i }
+      stream = rewindable_input_stream(input.to_java(:byte), 8, 32)
+      100.times { |i| stream.read.should == i }
+      stream.read.should == -1
+      stream.rewind
+      100.times { |i| stream.read.should == i }
+    end
+
+    it "deletes the spill file (asynchronously) on close" do
+      stream = rewindable_input_stream('1234567890' * 10, 10, 20)
+      100.times { stream.read }
+      stream.close
+      sleep 0.2
+      Dir.glob("#{@dir}/*").should be_empty
+    end
+
+  end
+  
   after :all do
     tmpdir = java.lang.System.getProperty("java.io.tmpdir")
     prefix = RewindableInputStream::TMP_FILE_PREFIX
@@ -113,6 +113,14 @@ describe org.jruby.rack.RackServletContextListener do
     factory.should be_a(org.jruby.rack.SharedRackApplicationFactory)
   end
   
+  it "shares runtimes with a concurrency limit when configured" do
+    @rack_config.stub!(:getNumberProperty).and_return nil
+    @rack_config.stub!(:getNumberProperty).with('jruby.runtime.shared.concurrency').and_return 8
+    factory = RackServletContextListener.new.
+      send(:newApplicationFactory, @rack_config)
+    factory.should be_a(org.jruby.rack.SharedPoolingRackApplicationFactory)
+  end
+  
 end
 
 describe org.jruby.rack.rails.RailsServletContextListener do
@@ -137,6 +145,14 @@ describe org.jruby.rack.rails.RailsServletContextListener do
     factory.should be_a(org.jruby.rack.SerialPoolingRackApplicationFactory)
   end
   
+  it "uses the concurrent pool when configured" do
+    @rack_config.stub!(:getMaximumRuntimes).and_return(3)
+    @rack_config.stub!(:getBooleanProperty).with("jruby.runtime.pool.concurrent").and_return(true)
+    factory = RailsServletContextListener.new.
+      send(:newApplicationFactory, @rack_config)
+    factory.should be_a(org.jruby.rack.ConcurrentPoolingRackApplicationFactory)
+  end
+  
   it "does not pool when max = 1" do
     @rack_config.stub!(:getMaximumRuntimes).and_return(1)
     factory = RailsServletContextListener.new.
@@ -0,0 +1,53 @@
+#--
+# This source code is available under the MIT license.
+# See the file LICENSE.txt for details.
+#++
+
+require File.expand_path('spec_helper', File.dirname(__FILE__) + '/../..')
+
+describe org.jruby.rack.util.ConcurrentStack do
+  
+  let(:stack) { org.jruby.rack.util.ConcurrentStack.new }
+  
+  it "polls the most recently offered element" do
+    stack.offer 1; stack.offer 2; stack.offer 3
+    stack.peek.should == 3
+    stack.poll.should == 3
+    stack.poll.should == 2
+    stack.size.should == 1
+  end
+  
+  it "peeks the least recently offered element last" do
+    stack.peekLast.should be_nil
+    stack.offer 1; stack.offer 2
+    stack.peekLast.should == 1
+  end
+  
+  it "removes elements" do
+    stack.offer 1; stack.offer 2; stack.offer 3
+    stack.remove(2).should be_true
+    stack.remove(2).should be_false
+    stack.to_a.should == [ 3, 1 ]
+    stack.poll.should == 3
+    stack.poll.should == 1
+    stack.poll.should be_nil
+    stack.should be_empty
+  end
+  
+  it "does not lose elements when used concurrently" do
+    100.times { |i| stack.offer i }
+    threads = (1..4).map do
+      Thread.new do
+        1000.times do
+          if x = stack.poll then stack.offer(x) end
+          if y = stack.peekLast
+            stack.offer(y) if stack.remove(y)
+          end
+        end
+      end
+    end
+    threads.each(&:join)
+    stack.to_a.sort.should == (0...100).to_a
+  end
+  
+end